@@ -486,6 +486,41 @@ class BDBClient(store: BDBStore) {
     rc
   }
 
+  def removeExpiredQueueEntries(queue_key: Long, firstSeq:Long, lastSeq:Long, now:Long): (Seq[QueueEntryRecord], QueueEntryRange) = {
+    with_ctx() { ctx=>
+      import ctx._
+      val removed = ListBuffer[QueueEntryRecord]()
+      val remaining = new QueueEntryRange
+      entries_db.cursor_from(tx, (queue_key, firstSeq)) { (key, value) =>
+        val current_key:(Long,Long) = key
+        if( current_key._1 == queue_key && current_key._2 <= lastSeq ) {
+          val entry:QueueEntryRecord = value
+          if( entry.expiration != 0 && entry.expiration <= now ) {
+            removed += entry
+            entries_db.delete(tx, key)
+            decrement_message_reference(ctx, entry.message_key)
+          } else {
+            if( remaining.count == 0 ) {
+              remaining.first_entry_seq = current_key._2
+            }
+            remaining.last_entry_seq = current_key._2
+            remaining.count += 1
+            remaining.size += entry.size
+            if( remaining.expiration == 0 ) {
+              remaining.expiration = entry.expiration
+            } else if( entry.expiration != 0 ) {
+              remaining.expiration = entry.expiration.min(remaining.expiration)
+            }
+          }
+          true // keep cursoring..
+        } else {
+          false
+        }
+      }
+      (removed, remaining)
+    }
+  }
+
   val metric_load_from_index_counter = new TimeCounter
   var metric_load_from_index = metric_load_from_index_counter(false)
 
@@ -52,6 +52,8 @@ class BDBStore(var config:BDBStoreDTO) extends DelayingStoreSupport {
   override def toString = "bdb store at "+config.directory
 
   def flush_delay = config.flush_delay.getOrElse(500)
+
+  override def group_commit_latency = config.group_commit_latency.getOrElse(0L)
   
   protected def get_next_msg_key = next_msg_key.getAndIncrement
 
@@ -204,6 +206,13 @@ class BDBStore(var config:BDBStoreDTO) extends DelayingStoreSupport {
     }
   }
 
+  def remove_expired_queue_entries(queueKey: Long, firstSeq: Long, lastSeq: Long, now: Long)(callback: (Seq[QueueEntryRecord], QueueEntryRange) => Unit) = {
+    write_executor ^{
+      val (removed, remaining) = client.removeExpiredQueueEntries(queueKey, firstSeq, lastSeq, now)
+      callback(removed, remaining)
+    }
+  }
+
   def poll_stats:Unit = {
     def displayStats = {
       if( service_state.is_started ) {
@@ -18,12 +18,13 @@ package org.apache.activemq.apollo.broker
 
 import _root_.org.fusesource.hawtdispatch._
 import org.fusesource.hawtbuf._
-import org.apache.activemq.apollo.filter.Filterable
+import org.apache.activemq.apollo.filter.{BooleanExpression, Filterable}
 import org.apache.activemq.apollo.broker.store.StoreUOW
 import org.apache.activemq.apollo.util.Log
 import java.util.concurrent.atomic.{AtomicReference, AtomicLong}
 import org.apache.activemq.apollo.dto.DestinationDTO
 import org.apache.activemq.apollo.broker.protocol.{ProtocolFactory, Protocol}
+import collection.mutable.ListBuffer
 
 object DeliveryProducer extends Log
 
@@ -69,6 +70,13 @@ trait DeliveryConsumer extends Retained {
   def exclusive = false
   def dispatch_queue:DispatchQueue;
   def matches(message:Delivery):Boolean
+
+  /**
+   * The selector the consumer filters messages with, if any.  Queues use
+   * it to index their consumers, but still call matches before delivering
+   * a message to the consumer.
+   */
+  def message_selector:BooleanExpression = null
   def connect(producer:DeliveryProducer):DeliverySession
   def is_persistent:Boolean
 }
@@ -165,6 +173,59 @@ object Expired extends DeliveryResult
  */
 object Poisoned extends DeliveryResult
 
+/**
+ * An ack callback which can be applied together with the other acks
+ * which have the same batch key as a single event.
+ */
+trait BatchAck extends ((DeliveryResult, StoreUOW)=>Unit) {
+
+  /**
+   * Acks with the same batch key can be passed to ack_batch together.
+   */
+  def batch_key:AnyRef
+
+  /**
+   * Applies all the acks, which all have the batch key of this ack.
+   */
+  def ack_batch(acks:Seq[BatchAck], result:DeliveryResult, uow:StoreUOW):Unit
+}
+
+object BatchAck {
+
+  /**
+   * Applies the result to all the acks.  The acks which support batching
+   * get applied as one event per batch key, in the order they were passed in.
+   */
+  def ack(acks:Iterable[(DeliveryResult, StoreUOW)=>Unit], result:DeliveryResult, uow:StoreUOW):Unit = {
+    var batches:java.util.LinkedHashMap[AnyRef, ListBuffer[BatchAck]] = null
+    acks.foreach {
+      case null =>
+      case ack:BatchAck =>
+        if( batches == null ) {
+          batches = new java.util.LinkedHashMap[AnyRef, ListBuffer[BatchAck]]()
+        }
+        var batch = batches.get(ack.batch_key)
+        if( batch == null ) {
+          batch = ListBuffer[BatchAck]()
+          batches.put(ack.batch_key, batch)
+        }
+        batch += ack
+      case ack =>
+        ack(result, uow)
+    }
+    if( batches != null ) {
+      val i = batches.values.iterator
+      while( i.hasNext ) {
+        val batch = i.next
+        if( batch.size == 1 ) {
+          batch.head(result, uow)
+        } else {
+          batch.head.ack_batch(batch, result, uow)
+        }
+      }
+    }
+  }
+}
 
 sealed trait RetainAction
 object RetainSet extends RetainAction
@@ -0,0 +1,95 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker
+
+import org.apache.activemq.apollo.util.Log
+
+/**
+ * <p>
+ * Picks which of the competing subscriptions parked on a queue entry
+ * gets to acquire it.  The subscriptions are offered in the order
+ * they are parked on the entry.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+trait DispatchPolicy {
+
+  /**
+   * If true, the first subscription which can acquire the entry gets it
+   * and the remaining subscriptions are not considered.
+   */
+  def first_wins = false
+
+  /**
+   * Should the subscription acquire the entry instead of the previously
+   * selected subscription?
+   */
+  def prefer(sub:Subscription, selected:Subscription):Boolean
+}
+
+/**
+ * The first subscription that can take the entry gets it.  It then moves to
+ * the back of the line so the other subscriptions get first dibs at the
+ * next entry.
+ */
+object RoundRobinDispatchPolicy extends DispatchPolicy {
+  override def first_wins = true
+  def prefer(sub:Subscription, selected:Subscription) = false
+}
+
+/**
+ * The subscription with the smallest size of acquired but not yet
+ * acked entries gets the entry.
+ */
+object LeastOutstandingDispatchPolicy extends DispatchPolicy {
+  def prefer(sub:Subscription, selected:Subscription) = sub.acquired_size < selected.acquired_size
+}
+
+/**
+ * The subscription with the smallest size of outstanding entries relative
+ * to the size of its consumer's receive buffer gets the entry, so consumers
+ * with bigger buffers get a bigger share of the entries.
+ */
+object WeightedDispatchPolicy extends DispatchPolicy {
+  def prefer(sub:Subscription, selected:Subscription) = {
+    sub.acquired_size * weight(selected) < selected.acquired_size * weight(sub)
+  }
+  private def weight(sub:Subscription) = sub.consumer_buffer.max(1).toLong
+}
+
+object DispatchPolicy extends Log {
+
+  /**
+   * Creates the policy for the name used in the queue configuration.  Names
+   * which are not one of the built in policies are loaded as the class name
+   * of a DispatchPolicy implementation.
+   */
+  def apply(name:String):DispatchPolicy = name match {
+    case null | "round_robin" => RoundRobinDispatchPolicy
+    case "least_outstanding" => LeastOutstandingDispatchPolicy
+    case "weighted" => WeightedDispatchPolicy
+    case clazz =>
+      try {
+        Broker.class_loader.loadClass(clazz).newInstance().asInstanceOf[DispatchPolicy]
+      } catch {
+        case e:Throwable =>
+          warn(e, "Could not create the '%s' dispatch policy, using round_robin instead", clazz)
+          RoundRobinDispatchPolicy
+      }
+  }
+}
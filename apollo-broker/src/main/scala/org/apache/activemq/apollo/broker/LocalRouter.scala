@@ -50,6 +50,10 @@ object DestinationMetricsSupport {
     to.nack_size_counter += from.nack_size_counter
     to.nack_ts = to.nack_ts max from.nack_ts
 
+    to.drop_item_counter += from.drop_item_counter
+    to.drop_size_counter += from.drop_size_counter
+    to.drop_ts = to.drop_ts max from.drop_ts
+
     to.expired_item_counter += from.expired_item_counter
     to.expired_size_counter += from.expired_size_counter
     to.expired_ts = to.expired_ts max from.expired_ts
@@ -201,6 +205,14 @@ class LocalRouter(val virtual_host:VirtualHost) extends BaseService with Router
     virtual_host.config.auto_create_destinations.getOrElse(true)
   }
 
+  /**
+   * How many looked up paths the routing path maps of each domain cache.
+   */
+  def path_cache_size = {
+    import OptionSupport._
+    virtual_host.config.path_cache_size.getOrElse(10000)
+  }
+
   private val ALL = new Path(List(AnyDescendantPart))
 
   def authorizer = virtual_host.authorizer
@@ -228,12 +240,20 @@ class LocalRouter(val virtual_host:VirtualHost) extends BaseService with Router
     // holds all the destinations in the domain by id
     var destination_by_id = LinkedHashMap[String, D]()
     // holds all the destinations in the domain by path
-    var destination_by_path = new PathMap[D]()
+    var destination_by_path = new CachingPathMap[D](10000)
     // Can store consumers on wild cards paths
 
     val consumers = HashMap[DeliveryConsumer, ConsumerContext[D]]()
-    val consumers_by_path = new PathMap[(ConsumerContext[D], BindAddress)]()
-    val producers_by_path = new PathMap[ProducerContext]()
+    val consumers_by_path = new CachingPathMap[(ConsumerContext[D], BindAddress)](10000)
+    val producers_by_path = new CachingPathMap[ProducerContext](10000)
+
+    // The path maps get created before the config is available.
+    def configure_path_caches = {
+      val size = path_cache_size
+      destination_by_path.resize(size)
+      consumers_by_path.resize(size)
+      producers_by_path.resize(size)
+    }
 
     def destinations:Iterable[D] = JavaConversions.collectionAsScalaIterable(destination_by_path.get(ALL))
 
@@ -266,14 +286,13 @@ class LocalRouter(val virtual_host:VirtualHost) extends BaseService with Router
       destination_by_id.put(dest.id, dest)
 
       // binds any matching wild card subs and producers...
-      import JavaConversions._
-      consumers_by_path.get( path ).foreach { case (consumer_context, bind_address)=>
+      consumers_by_path.foreachMatch( path ) { case (consumer_context, bind_address)=>
         if( authorizer.can(consumer_context.security, bind_action(consumer_context.consumer), dest) ) {
           consumer_context.matched_destinations += dest
           dest.bind(bind_address, consumer_context.consumer)
         }
       }
-      producers_by_path.get( path ).foreach { x=>
+      producers_by_path.foreachMatch( path ) { x=>
         if( authorizer.can(x.security, "send", dest) ) {
           dest.connect(x.connect_address, x.producer)
         }
@@ -843,8 +862,15 @@ class LocalRouter(val virtual_host:VirtualHost) extends BaseService with Router
     }
   }
 
+  def configure_path_caches = {
+    local_topic_domain.configure_path_caches
+    local_queue_domain.configure_path_caches
+    local_dsub_domain.configure_path_caches
+  }
+
   protected def _start(on_completed: Runnable) = {
     val tracker = new LoggingTracker("router startup", virtual_host.console_log)
+    configure_path_caches
     if( virtual_host.store!=null ) {
       val task = tracker.task("list_queues")
       virtual_host.store.list_queues { queue_keys =>
@@ -1296,6 +1322,7 @@ class LocalRouter(val virtual_host:VirtualHost) extends BaseService with Router
 
   def apply_update(on_completed:Runnable) = {
     val tracker = new LoggingTracker("domain update", virtual_host.broker.console_log)
+    configure_path_caches
     local_topic_domain.apply_update(tracker)
     local_queue_domain.apply_update(tracker)
     local_dsub_domain.apply_update(tracker)
@@ -20,7 +20,7 @@ import java.util.concurrent.TimeUnit
 
 import org.fusesource.hawtdispatch._
 import protocol.ProtocolFactory
-import collection.mutable.ListBuffer
+import collection.mutable.{ArrayBuffer, HashSet, ListBuffer}
 import org.apache.activemq.apollo.broker.store._
 import org.apache.activemq.apollo.util._
 import org.apache.activemq.apollo.util.list._
@@ -32,6 +32,7 @@ import security.SecuredResource._
 import security.{SecuredResource, SecurityContext}
 import org.apache.activemq.apollo.dto._
 import org.fusesource.hawtbuf.UTF8Buffer
+import org.apache.activemq.apollo.filter.PropertyConstraint
 
 object Queue extends Log {
   val subcsription_counter = new AtomicInteger(0)
@@ -52,6 +53,240 @@ object Queue extends Log {
     }
   }
 
+  /**
+   * Tracks the queue entries which have an expiration set on a timer
+   * wheel so that the periodic maintenance does not have to walk
+   * the entries of the queue to find the expired ones.  Registering and
+   * removing an entry are constant time operations.
+   */
+  class ExpirationIndex(resolution:Long=100) {
+
+    private var wheel:TimerWheel[QueueEntry] = _
+
+    def size = if( wheel==null ) 0 else wheel.size
+
+    def +=(entry:QueueEntry) = {
+      if( entry.expiration_timer==null && entry.expiration!=0 ) {
+        if( wheel==null ) {
+          wheel = new TimerWheel[QueueEntry](resolution, entry.queue.now)
+        }
+        entry.expiration_timer = wheel.schedule(entry, entry.expiration)
+      }
+    }
+
+    def -=(entry:QueueEntry) = {
+      if( entry.expiration_timer!=null ) {
+        wheel.cancel(entry.expiration_timer)
+        entry.expiration_timer = null
+      }
+    }
+
+    /**
+     * Passes all the entries which have expired by the given time to
+     * the function.  The entry stays in the index and gets checked
+     * again on a later call if the function returns false.
+     *
+     * @returns the number of entries that were visited.
+     */
+    def expired(now:Long)(func: QueueEntry=>Boolean):Int = {
+      if( wheel==null ) {
+        0
+      } else {
+        wheel.advance(now) { timer =>
+          val entry = timer.value
+          if( entry.expiration_timer eq timer ) {
+            entry.expiration_timer = null
+            if( !func(entry) && entry.expiration_timer==null ) {
+              entry.expiration_timer = wheel.schedule(entry, now+resolution)
+            }
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Checks messages against the property constraints of the subscription
+   * selectors.  The property values of the message are cached so that
+   * they are only looked up once no matter how many subscriptions
+   * constrain the same property.
+   */
+  class SelectorCandidates(message:Message) {
+
+    private val values = new java.util.HashMap[String, AnyRef]()
+
+    /**
+     * @returns false if the message can not match a selector with the
+     *          given constraint.
+     */
+    def apply(constraint:PropertyConstraint):Boolean = {
+      val property = constraint.getProperty
+      var value = values.get(property)
+      if( value==null && !values.containsKey(property) ) {
+        value = message.getProperty(property)
+        values.put(property, value)
+      }
+      value match {
+        case null => false
+        case value:String => constraint.getValues.contains(value)
+        case _ => true // let the selector sort out the type conversions.
+      }
+    }
+  }
+
+  /**
+   * The subscriptions with a selector constraint which are parked on an
+   * entry, indexed by the constrained property and value.  Dispatching the
+   * entry only has to evaluate the subscriptions in the buckets of the
+   * message's property values, the others get advanced without looking
+   * at the message.
+   */
+  class ParkedSelectors {
+
+    private val by_value = new java.util.HashMap[String, java.util.HashMap[AnyRef, List[Subscription]]]()
+    // Used when the property value is not a string, those are not indexed.
+    private val by_property = new java.util.HashMap[String, List[Subscription]]()
+    var all:List[Subscription] = Nil
+
+    def isEmpty = all.isEmpty
+
+    def +=(sub:Subscription) = {
+      val constraint = sub.selector_constraint
+      val property = constraint.getProperty
+      val subs = by_property.get(property)
+      by_property.put(property, sub :: (if( subs==null ) Nil else subs))
+      var values = by_value.get(property)
+      if( values==null ) {
+        values = new java.util.HashMap[AnyRef, List[Subscription]]()
+        by_value.put(property, values)
+      }
+      val i = constraint.getValues.iterator()
+      while( i.hasNext ) {
+        val value = i.next()
+        val bucket = values.get(value)
+        values.put(value, sub :: (if( bucket==null ) Nil else bucket))
+      }
+      all ::= sub
+    }
+
+    def -=(sub:Subscription) = {
+      if( all.contains(sub) ) {
+        val constraint = sub.selector_constraint
+        val property = constraint.getProperty
+        by_property.get(property).filterNot(_ == sub) match {
+          case Nil =>
+            by_property.remove(property)
+            by_value.remove(property)
+          case subs =>
+            by_property.put(property, subs)
+            val values = by_value.get(property)
+            val i = constraint.getValues.iterator()
+            while( i.hasNext ) {
+              val value = i.next()
+              values.get(value).filterNot(_ == sub) match {
+                case Nil => values.remove(value)
+                case bucket => values.put(value, bucket)
+              }
+            }
+        }
+        all = all.filterNot(_ == sub)
+      }
+    }
+
+    /**
+     * @returns the subscriptions which could match the message.
+     */
+    def candidates(message:Message):List[Subscription] = {
+      var rc:List[Subscription] = Nil
+      val i = by_property.entrySet().iterator()
+      while( i.hasNext ) {
+        val entry = i.next()
+        message.getProperty(entry.getKey) match {
+          case null =>
+          case value:String =>
+            val bucket = by_value.get(entry.getKey).get(value)
+            if( bucket!=null ) {
+              rc :::= bucket
+            }
+          case _ => rc :::= entry.getValue // let the selector sort out the type conversions.
+        }
+      }
+      rc
+    }
+  }
+
+  final val DEFAULT_PRIORITY = 4
+  final val MESSAGE_GROUP_PROPERTY = "JMSXGroupID"
+  final val MAX_PRIORITY = 9
+
+  final val PRIORITY_LEVELS = MAX_PRIORITY-DEFAULT_PRIORITY
+
+  /**
+   * Tracks the loaded entries which have a priority higher than the
+   * default priority in one list per priority level so that they can be
+   * dispatched ahead of the entries which were enqueued before them
+   * without having to re-sort the queue.  The lists are sorted by
+   * sequence and every subscription keeps a cursor per level past the
+   * entries it could not acquire, so they are not scanned again on
+   * every dispatch.  The cursors are reset when the subscription rewinds.
+   */
+  class PriorityIndex {
+
+    private val levels = Array.fill(PRIORITY_LEVELS)(new java.util.TreeMap[java.lang.Long, QueueEntry]())
+
+    private def level(priority:Int) = priority.min(MAX_PRIORITY) - DEFAULT_PRIORITY - 1
+
+    def size = levels.foldLeft(0)(_ + _.size)
+
+    def +=(entry:QueueEntry) = {
+      val loaded = entry.as_loaded
+      if( loaded!=null && !loaded.is_acquired ) {
+        val l = level(loaded.delivery.message.priority)
+        if( l >= 0 ) {
+          levels(l).put(entry.seq, entry)
+        }
+      }
+    }
+
+    def -=(entry:QueueEntry) = {
+      levels.foreach( _.remove(entry.seq) )
+    }
+
+    def clear = levels.foreach(_.clear)
+
+    /**
+     * Delivers to the subscription the oldest entry of the highest
+     * priority level which has a priority higher than the given
+     * priority and which is ahead of the subscription's position.
+     *
+     * @returns true if an entry was delivered.
+     */
+    def dispatch(sub:Subscription, priority:Int):Boolean = {
+      val lowest = level(priority)
+      var l = levels.length-1
+      while( l > lowest ) {
+        val start = sub.pos.seq.max(sub.priority_cursors(l))
+        val i = levels(l).tailMap(start, false).values.iterator
+        while( i.hasNext ) {
+          val cur = i.next
+          val loaded = cur.as_loaded
+          if( loaded==null || loaded.is_acquired || loaded.remove_pending || !cur.isLinked ) {
+            // it's no longer available to be dispatched.
+            i.remove
+          } else if( loaded.can_acquire(sub) ) {
+            i.remove
+            loaded.acquire(sub)
+            return true
+          } else {
+            sub.priority_cursors(l) = cur.seq
+          }
+        }
+        l -= 1
+      }
+      false
+    }
+  }
+
 }
 
 import Queue._
@@ -88,7 +323,7 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
     ack_source.cancel
   }
 
-  val ack_source = createSource(new ListEventAggregator[(Subscription#AcquiredQueueEntry, DeliveryResult, StoreUOW)](), dispatch_queue)
+  val ack_source = createSource(new ListEventAggregator[(Seq[QueueAck], DeliveryResult, StoreUOW)](), dispatch_queue)
   ack_source.setEventHandler(^ {drain_acks});
   ack_source.resume
 
@@ -154,6 +389,24 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
    */
   var tune_max_enqueue_rate = 0
 
+  /**
+   * Should loaded entries with a priority higher than the default
+   * priority get dispatched ahead of the entries enqueued before them?
+   */
+  var tune_priority_dispatch = false
+
+  /**
+   * Should all the entries of a message group get dispatched to the
+   * subscription which owns the group?
+   */
+  var tune_message_groups = false
+  var tune_message_group_limit = 1024
+
+  /**
+   * Picks which of the competing subscriptions acquires an entry.
+   */
+  var dispatch_policy:DispatchPolicy = RoundRobinDispatchPolicy
+
   var now = System.currentTimeMillis
 
   var enqueue_item_counter = 0L
@@ -199,6 +452,64 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
 
   var individual_swapped_items = 0
 
+  // Entries which are in the Loaded or Swapped state.  The swap scheduler only
+  // needs to look at these instead of walking the full entries list.
+  val swap_candidates = new java.util.LinkedHashSet[QueueEntry]()
+
+  // Entries which have been flagged as prefetched since the last swap run.
+  var prefetched_entries = new ArrayBuffer[QueueEntry]()
+
+  val expiration_index = new ExpirationIndex
+  val priority_index = new PriorityIndex
+
+  // Maps message group ids to the subscription which owns the group.  It's
+  // kept in access order so that the groups which were used the longest
+  // ago get released first.
+  val group_owners = new java.util.LinkedHashMap[AnyRef, GroupOwner](16, 0.75f, true)
+
+  class GroupOwner(val group:AnyRef, val sub:Subscription) {
+    // How many entries of the group the subscription has acquired.
+    var acquired = 0
+  }
+
+  /**
+   * Releases the groups which don't have any acquired entries, least recently
+   * used first, until no more than tune_message_group_limit groups are owned.
+   * Releasing those is safe since none of their entries are being processed.
+   */
+  def release_idle_groups = {
+    var rewind_to:QueueEntry = null
+    val i = group_owners.values().iterator()
+    while( group_owners.size > tune_message_group_limit && i.hasNext ) {
+      val owner = i.next()
+      if( owner.acquired == 0 ) {
+        i.remove()
+        owner.sub.owned_groups -= owner.group
+        // The owner may not have reached all the entries of the group yet
+        // (it could be full) and the other subs skipped over them.
+        val pos = owner.sub.pos
+        if( pos!=null && (rewind_to==null || pos.seq < rewind_to.seq) ) {
+          rewind_to = pos
+        }
+      }
+    }
+    if( rewind_to!=null ) {
+      // rewind the competing subs past the owner back to it so that
+      // the older entries of the released groups get dispatched first.
+      all_subscriptions.values.toArray.foreach { sub:Subscription =>
+        if( !sub.browser && sub.pos!=null && rewind_to.seq < sub.pos.seq ) {
+          sub.rewind(rewind_to)
+        }
+      }
+    }
+  }
+
+  val swap_latency_counter = new TimeCounter
+  var swap_latency = swap_latency_counter(false)
+
+  val swap_visited_counter = new IntMetricCounter
+  var swap_visited = swap_visited_counter(false)
+
   val swap_source = createSource(EventAggregators.INTEGER_ADD, dispatch_queue)
   swap_source.setEventHandler(^{ swap_messages });
   swap_source.resume
@@ -228,6 +539,19 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
     tune_catchup_enqueue_rate = mem_size(update.catchup_enqueue_rate,"-1")
     tune_max_enqueue_rate = mem_size(update.max_enqueue_rate,"-1")
     tune_quota = mem_size(update.quota,"-1")
+    tune_priority_dispatch = update.priority_dispatch.getOrElse(false)
+    if( !tune_priority_dispatch ) {
+      priority_index.clear
+    }
+    tune_message_groups = update.message_groups.getOrElse(false)
+    tune_message_group_limit = update.message_group_limit.getOrElse(1024)
+    dispatch_policy = DispatchPolicy(update.dispatch_policy)
+    if( !tune_message_groups ) {
+      group_owners.clear
+      all_subscriptions.values.foreach(_.owned_groups.clear)
+    } else {
+      release_idle_groups
+    }
 
     auto_delete_after = update.auto_delete_after.getOrElse(30)
     if( auto_delete_after!= 0 ) {
@@ -294,6 +618,19 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
     rc.metrics = this.get_queue_metrics
     rc.metrics.current_time = now
 
+    rc.maintenance_latency = new TimeMetricDTO
+    rc.maintenance_latency.count = swap_latency.count
+    rc.maintenance_latency.total = swap_latency.total
+    rc.maintenance_latency.max = swap_latency.max
+    rc.maintenance_latency.min = swap_latency.min
+
+    rc.maintenance_visited = new IntMetricDTO
+    rc.maintenance_visited.count = swap_visited.count
+    rc.maintenance_visited.total = swap_visited.total
+    rc.maintenance_visited.max = swap_visited.max
+    rc.maintenance_visited.min = swap_visited.min
+    rc.expiring_items = expiration_index.size
+
     if( entries ) {
       var cur = this.head_entry
       while( cur!=null ) {
@@ -302,7 +639,7 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
         e.seq = cur.seq
         e.count = cur.count
         e.size = cur.size
-        e.consumer_count = cur.parked.size
+        e.consumer_count = cur.all_parked.size
         e.is_prefetched = cur.prefetched
         e.state = cur.label
 
@@ -567,7 +904,10 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
           entry.dispatch
         }
 
-        if( !consumers_keeping_up_historically  ) {
+        // High priority entries stay loaded so that they can get dispatched
+        // ahead of the entries in front of them.
+        val high_priority = tune_priority_dispatch && queue_delivery.message.priority > DEFAULT_PRIORITY
+        if( !consumers_keeping_up_historically && !high_priority ) {
           entry.swap(true)
         } else if( entry.as_loaded.is_acquired && persisted) {
           // If the message as dispatched and it's marked to get persisted anyways,
@@ -596,18 +936,20 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
     expired_size_counter += delivery.size
   }
 
-  def expired(entry:QueueEntry, dequeue:Boolean=true):Unit = {
+  def expired(entry:QueueEntry, dequeue:Boolean=true):Unit = expired(1, entry.size, dequeue)
+
+  def expired(count:Int, size:Long, dequeue:Boolean):Unit = {
     if(dequeue) {
       might_unfill {
-        dequeue_item_counter += 1
-        dequeue_size_counter += entry.size
+        dequeue_item_counter += count
+        dequeue_size_counter += size
         dequeue_ts = now
       }
     }
 
     expired_ts = now
-    expired_item_counter += 1
-    expired_size_counter += entry.size
+    expired_item_counter += count
+    expired_size_counter += size
   }
 
   def display_stats: Unit = {
@@ -659,64 +1001,100 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
     if( !service_state.is_started )
       return
 
-    var cur = entries.getHead
-    while( cur!=null ) {
+    // Only the entries near the subscription positions, the entries at the
+    // producer tail, and the expiring entries get visited so that the cost
+    // of a swap run is proportional to the active window of the queue and
+    // not to the number of entries in the queue.
+    var visited = 0
+    swap_latency_counter.time {
 
-      // reset the prefetch flags and handle expiration...
-      cur.prefetched = false
-      val next = cur.getNext
+      // reset the prefetch flags..
+      val last_prefetched = prefetched_entries
+      prefetched_entries = new ArrayBuffer[QueueEntry](last_prefetched.size)
+      last_prefetched.foreach( _.prefetched = false )
+      visited += last_prefetched.size
 
       // handle expiration...
-      if( cur.expiration != 0 && cur.expiration <= now ) {
+      visited += expiration_index.expired(now) { cur =>
         cur.state match {
           case x:QueueEntry#SwappedRange =>
-            // load the range to expire the messages in it.
-            cur.load(null)
+            // let the store drop the expired messages in the range
+            // so that we don't have to load it.
+            x.expire_entries
+            true
           case x:QueueEntry#Swapped =>
             // remove the expired message if it has not been
             // acquired.
             if( !x.is_acquired ) {
               expired(cur)
               x.remove
+              true
+            } else {
+              false
             }
           case x:QueueEntry#Loaded =>
             // remove the expired message if it has not been
             // acquired.
             if( !x.is_acquired ) {
-              expired(cur)
-              x.remove
+              if( !x.remove_pending ) {
+                expired(cur)
+                x.remove
+              }
+              true
+            } else {
+              false
             }
           case _ =>
+            true
         }
       }
-      cur = next
-    }
 
-    // Set the prefetch flags
-    consumers_keeping_up = false
-    all_subscriptions.valuesIterator.foreach{ x=>
-      x.refill_prefetch
-    }
-    consumers_keeping_up = consumers_keeping_up && delivery_rate > tune_fast_delivery_rate
-    if( consumers_keeping_up ) {
-      consumers_keeping_up_counter += 1
-      consumers_keeping_up_historically = true
-    }
+      // Set the prefetch flags
+      consumers_keeping_up = false
+      all_subscriptions.valuesIterator.foreach{ x=>
+        x.refill_prefetch
+      }
+      consumers_keeping_up = consumers_keeping_up && delivery_rate > tune_fast_delivery_rate
 
-    // swap out messages.
-    cur = entries.getHead
-    while( cur!=null ) {
-      val next = cur.getNext
-      if( cur.prefetched ) {
-        // Prefteched entries need to get loaded..
-        cur.load(consumer_swapped_in)
-      } else {
-        // This is a non-prefetched entry.. entires ahead and behind the
-        // consumer subscriptions.
-        val loaded = cur.as_loaded
-        if( loaded!=null ) {
-          // It's in memory.. perhaps we need to swap it out..
-          if(!consumers_keeping_up_historically) {
+      // Hand the higher priority entries to the subs which are waiting on
+      // entries that are still being loaded.
+      if( tune_priority_dispatch ) {
+        all_subscriptions.valuesIterator.foreach{ sub=>
+          if( !sub.browser && !sub.pos.is_loaded ) {
+            while( !sub.full && priority_index.dispatch(sub, DEFAULT_PRIORITY) ) {}
+          }
+        }
+      }
+      if( consumers_keeping_up ) {
+        consumers_keeping_up_counter += 1
+        consumers_keeping_up_historically = true
+      }
+
+      // Prefteched entries need to get loaded..
+      prefetched_entries.foreach { cur =>
+        if( cur.isLinked && cur.prefetched ) {
+          cur.load(consumer_swapped_in)
+        }
+      }
+      visited += prefetched_entries.size
+
+      // swap out messages.
+      val swapped = ListBuffer[QueueEntry]()
+      val candidates = swap_candidates.toArray(new Array[QueueEntry](swap_candidates.size))
+      visited += candidates.length
+      candidates.foreach { cur =>
+        if( !cur.isLinked || !(cur.is_loaded || cur.is_swapped) ) {
+          // No longer an individual swapped or loaded entry.
+          swap_candidates.remove(cur)
+        } else if( cur.is_swapped ) {
+          swapped += cur
+        } else if( !cur.prefetched ) {
+          // This is a non-prefetched entry.. entires ahead and behind the
+          // consumer subscriptions.
+          if( is_high_priority(cur) ) {
+            // Keep it loaded so it can still be dispatched ahead of
+            // the entries in front of it.
+          } else if(!consumers_keeping_up_historically) {
             // Swap out ASAP if consumers are not keeping up..
             cur.swap(true)
           } else {
@@ -729,7 +1107,6 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
             } else if ( cur.is_acquired ) {
               // Entry was just used...
               cur.load(consumer_swapped_in)
-//              cur.swap(false)
             } else {
               // Does not look to be anywhere close to the consumer.. so get
               // rid of it asap.
@@ -738,47 +1115,71 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
           }
         }
       }
-      cur = next
-    }                               
 
+      // Combine swapped items into swapped ranges
+      if( individual_swapped_items > tune_swap_range_size*2 ) {
+        combine_swapped(swapped)
+      }
+    }
+    swap_visited_counter += visited
 
-    // Combine swapped items into swapped ranges
-    if( individual_swapped_items > tune_swap_range_size*2 ) {
+    if(!messages.full) {
+      messages.refiller.run
+    }
 
-      var distance_from_sub = tune_swap_range_size;
-      var cur = entries.getHead
-      var combine_counter = 0;
+  }
 
-      while( cur!=null ) {
+  def is_high_priority(entry:QueueEntry) = {
+    val loaded = entry.as_loaded
+    tune_priority_dispatch && loaded!=null && !loaded.is_acquired && loaded.delivery.message.priority > DEFAULT_PRIORITY
+  }
 
-        // get the next now.. since cur may get combined and unlinked
-        // from the entry list.
-        val next = cur.getNext
+  /**
+   * Combines the individual swapped entries which are not near any subscription
+   * position into swapped ranges.
+   */
+  def combine_swapped(swapped:Seq[QueueEntry]) = {
+
+    // Distance is measured from the closest prefetched entry before the entry.
+    val prefetched_seqs = prefetched_entries.map(_.seq).toArray
+    java.util.Arrays.sort(prefetched_seqs)
+    def distance_from_sub(seq:Long) = {
+      var i = java.util.Arrays.binarySearch(prefetched_seqs, seq)
+      if( i < 0 ) {
+        i = -(i + 1) - 1
+      }
+      if( i < 0 ) {
+        Long.MaxValue
+      } else {
+        seq - prefetched_seqs(i)
+      }
+    }
 
-        if( cur.prefetched ) {
-          distance_from_sub = 0
-        } else {
-          distance_from_sub += 1
-          if( cur.can_combine_with_prev ) {
-            cur.getPrevious.as_swapped_range.combineNext
+    var combine_counter = 0
+    swapped.sortBy(_.seq).foreach { cur =>
+      // cur may have been combined into a range by now.
+      if( cur.isLinked && cur.is_swapped && !cur.prefetched ) {
+        val prev = cur.getPrevious
+        if( cur.can_combine_with_prev ) {
+          prev.as_swapped_range.combineNext
+          combine_counter += 1
+        } else if( !cur.is_acquired && distance_from_sub(cur.seq) > tune_swap_range_size ) {
+          cur.swapped_range
+          combine_counter += 1
+        }
+
+        // The range may now be adjacent to an existing range.
+        val range = if( cur.isLinked ) cur else prev
+        if( range.is_swapped_range ) {
+          val next = range.getNext
+          if( next!=null && !next.prefetched && next.is_swapped_range && next.can_combine_with_prev ) {
+            range.as_swapped_range.combineNext
             combine_counter += 1
-          } else {
-            if( cur.is_swapped && !cur.is_acquired && distance_from_sub > tune_swap_range_size ) {
-              cur.swapped_range
-              combine_counter += 1
-            }
           }
-
         }
-        cur = next
       }
-      trace("combined %d entries", combine_counter)
-    }
-    
-    if(!messages.full) {
-      messages.refiller.run
     }
-
+    trace("combined %d entries", combine_counter)
   }
 
   var delivery_rate = 0L
@@ -831,6 +1232,8 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
       }
 
       swap_messages
+      swap_latency = swap_latency_counter(true)
+      swap_visited = swap_visited_counter(true)
       check_idle
       schedule_periodic_maintenance
     }
@@ -863,31 +1266,71 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
     }
   }
 
+  /**
+   * The ack callback given to the deliveries which get dispatched to
+   * subscriptions.  Acks get applied on the queue's dispatch queue.
+   */
+  class QueueAck(val entry:Subscription#AcquiredQueueEntry) extends BatchAck {
+
+    def batch_key = Queue.this
+
+    def apply(consumed:DeliveryResult, uow:StoreUOW) = {
+      if( uow!=null ) {
+        uow.retain()
+      }
+      ack_source.merge((this :: Nil, consumed, uow))
+    }
+
+    def ack_batch(acks:Seq[BatchAck], consumed:DeliveryResult, uow:StoreUOW) = {
+      if( uow!=null ) {
+        uow.retain()
+      }
+      ack_source.merge((acks.asInstanceOf[Seq[QueueAck]], consumed, uow))
+    }
+  }
+
   def drain_acks = might_unfill {
+    // The dequeues of the acks which are not part of a transaction
+    // get stored using a single unit of work.
+    var batch:StoreUOW = null
     ack_source.getData.foreach {
-      case (entry, consumed, uow) =>
-        consumed match {
-          case Consumed =>
+      case (acks, consumed, uow) =>
+        acks.foreach { ack =>
+          val entry = ack.entry
+          def dequeue_uow = if( uow!=null ) {
+            uow
+          } else {
+            if( batch==null && entry.entry.messageKey != -1 ) {
+              batch = virtual_host.store.create_uow
+            }
+            batch
+          }
+          consumed match {
+            case Consumed =>
 //            debug("ack consumed: ("+store_id+","+entry.entry.seq+")")
-            entry.ack(uow)
-          case Expired=>
+              entry.ack(dequeue_uow)
+            case Expired=>
 //            debug("ack expired: ("+store_id+","+entry.entry.seq+")")
-            entry.entry.queue.expired(entry.entry, false)
-            entry.ack(uow)
-          case Delivered =>
-            entry.entry.redelivered
-            entry.nack
-          case Poisoned =>
-            // TODO: send to DLQ once that is supported.
-            entry.entry.redelivered
-            entry.nack
-          case Undelivered =>
-            entry.nack
+              entry.entry.queue.expired(entry.entry, false)
+              entry.ack(dequeue_uow)
+            case Delivered =>
+              entry.entry.redelivered
+              entry.nack
+            case Poisoned =>
+              // TODO: send to DLQ once that is supported.
+              entry.entry.redelivered
+              entry.nack
+            case Undelivered =>
+              entry.nack
+          }
         }
         if( uow!=null ) {
           uow.release()
         }
     }
+    if( batch!=null ) {
+      batch.release
+    }
   }
 
   /////////////////////////////////////////////////////////////////////
@@ -1084,13 +1527,19 @@ object QueueEntry extends Sizer[QueueEntry] with Log {
 class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] with Comparable[QueueEntry] with Runnable {
   import QueueEntry._
 
-  // Subscriptions waiting to dispatch this entry.
+  // Subscriptions waiting to dispatch this entry.  The ones with a
+  // selector constraint are kept in parked_selectors.
   var parked:List[Subscription] = Nil
+  var parked_selectors:ParkedSelectors = null
 
   // subscriptions will set this to true if they are interested
   // in the entry.
   var prefetched = false
 
+  // The expiration this entry was registered with in the queue's
+  // expiration index or 0 if it is not in the index.
+  var expiration_timer:TimerWheel[QueueEntry]#Timer = _
+
   // The current state of the entry: Head | Tail | Loaded | Swapped | SwappedRange
   var state:EntryState = new Tail
 
@@ -1110,6 +1559,7 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
   def init(delivery:Delivery):QueueEntry = {
     queue.producer_swapped_in += delivery
     state = new Loaded(delivery, false, queue.producer_swapped_in)
+    queue.expiration_index += this
     this
   }
 
@@ -1120,15 +1570,32 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
       SimpleAddress(qer.sender.utf8().toString)
     }
     state = new Swapped(qer.message_key, qer.message_locator, qer.size, qer.expiration, qer.redeliveries, null, sender)
+    queue.expiration_index += this
     this
   }
 
   def init(range:QueueEntryRange):QueueEntry = {
     state = new SwappedRange(range.last_entry_seq, range.count, range.size, range.expiration)
+    queue.expiration_index += this
     this
   }
 
-  def hasSubs = !parked.isEmpty
+  def hasSubs = !parked.isEmpty || (parked_selectors!=null && !parked_selectors.isEmpty)
+
+  def all_parked = if( parked_selectors==null ) parked else parked ::: parked_selectors.all
+
+  def clear_parked = {
+    parked = Nil
+    parked_selectors = null
+  }
+
+  /**
+   * Flags the entry as being prefetched by a subscription.
+   */
+  def prefetch = {
+    prefetched = true
+    queue.prefetched_entries += this
+  }
 
   /**
    * Dispatches this entry to the consumers and continues dispatching subsequent
@@ -1148,16 +1615,28 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
   }
 
   def ::=(sub:Subscription) = {
-    parked ::= sub
+    if( sub.selector_constraint==null ) {
+      parked ::= sub
+    } else {
+      if( parked_selectors==null ) {
+        parked_selectors = new ParkedSelectors
+      }
+      parked_selectors += sub
+    }
   }
 
   def :::=(l:List[Subscription]) = {
-    parked :::= l
+    val (selecting, others) = l.partition(_.selector_constraint!=null)
+    parked :::= others
+    selecting.foreach(this ::= _)
   }
 
 
   def -=(s:Subscription) = {
     parked = parked.filterNot(_ == s)
+    if( parked_selectors!=null ) {
+      parked_selectors -= s
+    }
   }
 
   def nextOrTail():QueueEntry = {
@@ -1189,7 +1668,7 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
   }
 
   override def toString = {
-    "{seq: "+seq+", prefetched: "+prefetched+", value: "+state+", subscriptions: "+parked+"}"
+    "{seq: "+seq+", prefetched: "+prefetched+", value: "+state+", subscriptions: "+all_parked+"}"
   }
 
   /////////////////////////////////////////////////////
@@ -1215,7 +1694,7 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
   def is_swapped_range = as_swapped_range!=null
   def is_swapped_or_swapped_range = is_swapped || is_swapped_range
   def is_loading = state match {
-    case state:SwappedRange => state.loading
+    case state:SwappedRange => state.loading || state.expiring
     case state:Swapped => state.loading
     case _ => false
   }
@@ -1243,7 +1722,7 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
     getPrevious !=null &&
       getPrevious.is_swapped_range &&
         ( (is_swapped && !is_acquired) || is_swapped_range ) &&
-          (getPrevious.count + count  < queue.tune_swap_range_size) && !is_loading
+          (getPrevious.count + count  < queue.tune_swap_range_size) && !is_loading && !getPrevious.is_loading
   }
 
   trait EntryState {
@@ -1332,11 +1811,15 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
      */
     def remove:Unit = {
       // advance subscriptions that were on this entry..
-      advance(parked)
-      parked = Nil
+      advance(all_parked)
+      clear_parked
 
       // take the entry of the entries list..
       unlink
+      queue.expiration_index -= entry
+      if( queue.tune_priority_dispatch ) {
+        queue.priority_index -= entry
+      }
       //TODO: perhaps refill subscriptions.
     }
 
@@ -1367,9 +1850,9 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
      * in this entry.. just advance the parked subs onto the next entry.
      */
     override def dispatch() = {
-      if( parked != Nil ) {
-        advance(parked)
-        parked = Nil
+      if( hasSubs ) {
+        advance(all_parked)
+        clear_parked
         true
 
       } else {
@@ -1417,6 +1900,10 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
 
     queue.loaded_items += 1
     queue.loaded_size += size
+    queue.swap_candidates.add(entry)
+    if( queue.tune_priority_dispatch ) {
+      queue.priority_index += entry
+    }
 
     def label = {
       var rc = "loaded"
@@ -1563,6 +2050,94 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
       }
     }
 
+    private var candidates:SelectorCandidates = _
+
+    /**
+     * Does the subscription want this entry?  The subscription's selector
+     * constraint is checked first so that the selector only gets evaluated
+     * if the entry could possibly match it.
+     */
+    def matches(sub:Subscription) = {
+      if( sub.selector_constraint!=null && candidates==null ) {
+        candidates = new SelectorCandidates(delivery.message)
+      }
+      (sub.selector_constraint==null || candidates(sub.selector_constraint)) && sub.matches(delivery)
+    }
+
+    def is_exclusive_target(sub:Subscription) = {
+      // Find the the first exclusive target of the message
+      val exclusive_target = queue.exclusive_subscriptions.find( matches(_) )
+      !exclusive_target.isDefined || (exclusive_target.get == sub)
+    }
+
+    private var _group:AnyRef = _
+    private var group_loaded = false
+
+    /**
+     * The message group of the entry or null if it's not part of a group.
+     */
+    def group = {
+      if( !group_loaded ) {
+        _group = delivery.message.getProperty(MESSAGE_GROUP_PROPERTY)
+        group_loaded = true
+      }
+      _group
+    }
+
+    /**
+     * Entries of a message group can only be acquired by the subscription
+     * which owns the group.  If the owner does not want the entry, it can go
+     * to any subscription without changing the owner of the group.
+     */
+    def is_group_target(sub:Subscription) = {
+      if( !queue.tune_message_groups || group==null ) {
+        true
+      } else {
+        val owner = queue.group_owners.get(group)
+        owner==null || owner.sub==sub || (!owner.sub.closing && !matches(owner.sub))
+      }
+    }
+
+    /**
+     * Can the entry be acquired by the subscription?
+     */
+    def can_acquire(sub:Subscription) = {
+      !is_acquired && !sub.browser && !sub.full && matches(sub) && is_exclusive_target(sub) && is_group_target(sub)
+    }
+
+    /**
+     * Acquires the entry for the subscription and delivers it to
+     * the subscription.  The subscription must not be full.
+     */
+    def acquire(sub:Subscription) = {
+      acquirer = sub
+
+      val owner = if( queue.tune_message_groups && group!=null ) {
+        var rc = queue.group_owners.get(group)
+        if( rc==null ) {
+          rc = new queue.GroupOwner(group, sub)
+          queue.group_owners.put(group, rc)
+          sub.owned_groups += group
+        }
+        // Only count the entries acquired by the owner, the others don't
+        // keep the group from being released.
+        if( rc.sub==sub ) rc else null
+      } else {
+        null
+      }
+
+      val acquiredQueueEntry = sub.acquire(entry, owner)
+      val acquiredDelivery = delivery.copy
+      if( acquiredDelivery.sender==null ) {
+        acquiredDelivery.sender = queue.address
+      }
+
+      acquiredDelivery.ack = new queue.QueueAck(acquiredQueueEntry)
+
+      val accepted = sub.offer(acquiredDelivery)
+      assert(accepted, "sub should have accepted, it had reported not full earlier.")
+    }
+
     override def dispatch():Boolean = {
 
       queue.assert_executing
@@ -1574,13 +2149,18 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
       }
 
       // Nothing to dispatch if we don't have subs..
-      if( parked.isEmpty ) {
+      if( !hasSubs ) {
         return false
       }
 
       var heldBack = ListBuffer[Subscription]()
       var advancing = ListBuffer[Subscription]()
 
+      // Only the subs with a selector constraint the message can match
+      // need to be looked at, the rest of them just advance.
+      val selectors = parked_selectors
+      val selecting = if( selectors==null ) Nil else selectors.candidates(delivery.message)
+
       // avoid doing the copy if its' not needed.
       var _browser_copy:Delivery = null
       def browser_copy = {
@@ -1594,10 +2174,10 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
       }
 
       var acquiringSub: Subscription = null
-      parked.foreach{ sub=>
+      (parked ::: selecting).foreach{ sub=>
 
         if( sub.browser ) {
-          if (!sub.matches(delivery)) {
+          if (!matches(sub)) {
             // advance: not interested.
             advancing += sub
           } else {
@@ -1611,47 +2191,39 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
           }
 
         } else {
-          if( is_acquired ) {
+          if( is_acquired || (acquiringSub!=null && queue.dispatch_policy.first_wins) ) {
             // advance: another sub already acquired this entry..
             advancing += sub
           } else {
-            if (!sub.matches(delivery)) {
+            if (!matches(sub)) {
               // advance: not interested.
               advancing += sub
             } else {
 
-              // Find the the first exclusive target of the message
-              val exclusive_target = queue.exclusive_subscriptions.find( _.matches(delivery) )
-
-              // Is the current sub not the exclusive target?
-              if( exclusive_target.isDefined && (exclusive_target.get != sub) ) {
+              // Is the current sub not the exclusive or message group target?
+              if( !is_exclusive_target(sub) || !is_group_target(sub) ) {
                 // advance: not interested.
                 advancing += sub
               } else {
+
+                // Let the sub first take the higher priority entries further up the queue.
+                if( queue.tune_priority_dispatch ) {
+                  while( !sub.full && queue.priority_index.dispatch(sub, delivery.message.priority) ) {}
+                }
+
                 // Is the sub flow controlled?
                 if( sub.full ) {
                   // hold back: flow controlled
                   heldBack += sub
-                } else {
-                  // advance: accepted...
+                } else if( acquiringSub==null ) {
+                  acquiringSub = sub
+                } else if( queue.dispatch_policy.prefer(sub, acquiringSub) ) {
+                  // advance: the policy picked this sub instead.
+                  advancing += acquiringSub
                   acquiringSub = sub
-                  acquirer = sub
-
-                  val acquiredQueueEntry = sub.acquire(entry)
-                  val acquiredDelivery = delivery.copy
-                  if( acquiredDelivery.sender==null ) {
-                    acquiredDelivery.sender = queue.address
-                  }
-
-                  acquiredDelivery.ack = (consumed, uow)=> {
-                    if( uow!=null ) {
-                      uow.retain()
-                    }
-                    queue.ack_source.merge((acquiredQueueEntry, consumed, uow))
-                  }
-
-                  val accepted = sub.offer(acquiredDelivery)
-                  assert(accepted, "sub should have accepted, it had reported not full earlier.")
+                } else {
+                  // advance: the policy picked another sub.
+                  advancing += sub
                 }
               }
             }
@@ -1662,15 +2234,27 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
       // The acquiring sub is added last to the list so that
       // the other competing subs get first dibs at the next entry.
       if( acquiringSub != null ) {
+        // advance: accepted...
+        acquire(acquiringSub)
         advancing += acquiringSub
       }
 
+      if( selectors!=null ) {
+        if( selecting.isEmpty ) {
+          advancing ++= selectors.all
+        } else {
+          val visited = selecting.toSet
+          advancing ++= selectors.all.filterNot(visited.contains(_))
+        }
+      }
+
       if ( advancing.isEmpty ) {
         return false
       } else {
 
         // The held back subs stay on this entry..
-        parked = heldBack.toList
+        clear_parked
+        entry :::= heldBack.toList
 
         // the advancing subs move on to the next entry...
         advance(advancing)
@@ -1695,6 +2279,7 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
   class Swapped(override val message_key:Long, override val message_locator:AtomicReference[Object], override val size:Int, override val expiration:Long, var _redeliveries:Short, var acquirer:Subscription, override  val sender:DestinationAddress) extends EntryState {
 
     queue.individual_swapped_items += 1
+    queue.swap_candidates.add(entry)
 
     var space:MemorySpace = _
 
@@ -1809,14 +2394,14 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
       }
 
       // Nothing to dispatch if we don't have subs..
-      if( parked.isEmpty ) {
+      if( !hasSubs ) {
         return false
       }
 
       var heldBack = ListBuffer[Subscription]()
       var advancing = ListBuffer[Subscription]()
 
-      parked.foreach{ sub=>
+      all_parked.foreach{ sub=>
         if( sub.browser ) {
           heldBack += sub
         } else {
@@ -1830,19 +2415,20 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
       }
 
       if ( advancing.isEmpty ) {
-        if (space==null && !parked.isEmpty) {
+        if (space==null) {
           // If we are not swapping in try to get a sub to prefetch us.
-          parked.foreach(_.refill_prefetch)
+          all_parked.foreach(_.refill_prefetch)
         }
         return false
       } else {
 
         // The held back subs stay on this entry..
-        parked = heldBack.toList
+        clear_parked
+        entry :::= heldBack.toList
 
-        if (space==null && !parked.isEmpty) {
+        if (space==null) {
           // If we are not swapping in try to get a sub to prefetch us.
-          parked.foreach(_.refill_prefetch)
+          heldBack.foreach(_.refill_prefetch)
         }
 
         // the advancing subs move on to the next entry...
@@ -1877,6 +2463,7 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
     override def expiration = _expiration
 
     var loading = false
+    var expiring = false
 
     override def as_swapped_range = this
 
@@ -1887,13 +2474,58 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
       var rc = "swapped_range"
       if( loading ) {
         rc = "swapped_range|swapping in"
+      } else if( expiring ) {
+        rc = "swapped_range|expiring"
       }
       rc
     }
-    override def toString = { "swapped_range:{ swapping_in: "+loading+", count: "+count+", size: "+size+"}" }
+    override def toString = { "swapped_range:{ swapping_in: "+loading+", expiring: "+expiring+", count: "+count+", size: "+size+"}" }
+
+    /**
+     * Has the store remove the expired entries in the range without
+     * loading the range.
+     */
+    def expire_entries = {
+      if( !loading && !expiring ) {
+        expiring = true
+        queue.virtual_host.store.remove_expired_queue_entries(queue.store_id, seq, last, queue.now) { (removed, remaining) =>
+          queue.dispatch_queue {
+            expiring = false
+            assert(isLinked)
+
+            var size_count = 0
+            removed.foreach( size_count += _.size )
+
+            // we may need to adjust the enqueue count if entries
+            // were dropped at the store level
+            val item_delta = count - (removed.size + remaining.count)
+            val size_delta = size - (size_count + remaining.size)
+            if ( item_delta!=0 || size_delta!=0 ) {
+              info("Detected store change in range %d to %d. %d message(s) and %d bytes", seq, last, item_delta, size_delta)
+              queue.enqueue_item_counter -= item_delta
+              queue.enqueue_size_counter -= size_delta
+            }
+
+            queue.expired(removed.size, size_count, true)
+
+            if( remaining.count == 0 ) {
+              remove
+            } else {
+              _count = remaining.count
+              _size = remaining.size
+              last = remaining.last_entry_seq
+              queue.expiration_index -= entry
+              _expiration = remaining.expiration
+              queue.expiration_index += entry
+            }
+            queue.trigger_swap
+          }
+        }
+      }
+    }
 
     override def swap_in(space:MemorySpace) = {
-      if( !loading ) {
+      if( !loading && !expiring ) {
         loading = true
         queue.virtual_host.store.list_queue_entries(queue.store_id, seq, last) { records =>
           queue.dispatch_queue {
@@ -1926,11 +2558,13 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
             val next = getNext
 
             // move the subs to the first entry that we just loaded.
-            parked.foreach(_.advance(next))
-            next :::= parked
+            val subs = all_parked
+            subs.foreach(_.advance(next))
+            next :::= subs
             queue.trigger_swap
 
             unlink
+            queue.expiration_index -= entry
           }
         }
       }
@@ -1954,6 +2588,7 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
         last = value.as_swapped_range.last
         _count += value.as_swapped_range.count
       }
+      val prev_expiration = _expiration
       if(_expiration == 0){
         _expiration = value.expiration
       } else {
@@ -1961,6 +2596,11 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
           _expiration = value.expiration.min(_expiration)
         }
       }
+      if( prev_expiration != _expiration ) {
+        // re-index under the new expiration.
+        queue.expiration_index -= entry
+        queue.expiration_index += entry
+      }
       _size += value.size
       value.remove
     }
@@ -1983,6 +2623,13 @@ class Subscription(val queue:Queue, val consumer:DeliveryConsumer) extends Deliv
   def dispatch_queue = queue.dispatch_queue
 
   val id = Queue.subcsription_counter.incrementAndGet
+
+  /**
+   * The property values the consumer's selector requires.  Entries which
+   * don't have one of those values can skip the selector evaluation.
+   */
+  val selector_constraint = Option(consumer.message_selector).map(PropertyConstraint.extract(_)).orNull
+
   var acquired = new LinkedNodeList[AcquiredQueueEntry]
   var session: DeliverySession = null
   var pos:QueueEntry = null
@@ -2010,6 +2657,16 @@ class Subscription(val queue:Queue, val consumer:DeliveryConsumer) extends Deliv
   def browser = consumer.browser
   def exclusive = consumer.exclusive
 
+  // The sequence of the last high priority entry this subscription could
+  // not acquire, per priority level.
+  val priority_cursors = new Array[Long](PRIORITY_LEVELS)
+
+  // The message groups which this subscription owns.
+  val owned_groups = HashSet[AnyRef]()
+
+  // Is the subscription waiting for it's acquired entries to get settled before closing?
+  def closing = pending_close_action!=null
+
   val consumer_buffer = consumer.receive_buffer_size
   
   // This opens up the consumer
@@ -2078,7 +2735,17 @@ class Subscription(val queue:Queue, val consumer:DeliveryConsumer) extends Deliv
       pending_close_action = ()=> {
         queue.change_consumer_capacity( - consumer_buffer )
 
-        if( exclusive ) {
+        var rewind = exclusive
+        if( !owned_groups.isEmpty ) {
+          // Hand the groups over to the other subs now that all the
+          // acquired entries have been settled.  They need to rewind
+          // since they skipped over the entries of the groups.
+          owned_groups.foreach(queue.group_owners.remove(_))
+          owned_groups.clear
+          rewind = true
+        }
+
+        if( rewind ) {
           // rewind all the subs to the start of the queue.
           queue.all_subscriptions.values.foreach(_.rewind(queue.head_entry))
         }
@@ -2113,6 +2780,7 @@ class Subscription(val queue:Queue, val consumer:DeliveryConsumer) extends Deliv
    */
   def rewind(value:QueueEntry):Unit = {
     assert(value!=null)
+    java.util.Arrays.fill(priority_cursors, 0L)
     pos -= this
     value ::= this
     pos = value
@@ -2132,7 +2800,7 @@ class Subscription(val queue:Queue, val consumer:DeliveryConsumer) extends Deliv
     check_consumer_stall
   }
 
-  def acquire(entry:QueueEntry) = new AcquiredQueueEntry(entry)
+  def acquire(entry:QueueEntry, group_owner:Queue#GroupOwner=null) = new AcquiredQueueEntry(entry, group_owner)
 
   def check_load_stall = {
     if ( pos.is_swapped_or_swapped_range ) {
@@ -2200,7 +2868,7 @@ class Subscription(val queue:Queue, val consumer:DeliveryConsumer) extends Deliv
       // Non-Browsers prefetch non-acquired messages.
       if( !cursor.prefetched && (browser || !cursor.is_acquired) ) {
         remaining -= cursor.size
-        cursor.prefetched = true
+        cursor.prefetch
         cursor.load(queue.consumer_swapped_in)
       }
       cursor = next
@@ -2213,10 +2881,22 @@ class Subscription(val queue:Queue, val consumer:DeliveryConsumer) extends Deliv
 
   }
 
-  class AcquiredQueueEntry(val entry:QueueEntry) extends LinkedNode[AcquiredQueueEntry] {
+  class AcquiredQueueEntry(val entry:QueueEntry, group_owner:Queue#GroupOwner) extends LinkedNode[AcquiredQueueEntry] {
 
     acquired.addLast(this)
     acquired_size += entry.size
+    if( group_owner!=null ) {
+      group_owner.acquired += 1
+    }
+
+    private def release_group = {
+      if( group_owner!=null ) {
+        group_owner.acquired -= 1
+        if( group_owner.acquired == 0 ) {
+          queue.release_idle_groups
+        }
+      }
+    }
 
     def ack(uow:StoreUOW):Unit = {
       assert_executing
@@ -2246,6 +2926,7 @@ class Subscription(val queue:Queue, val consumer:DeliveryConsumer) extends Deliv
 
       // we may now be able to prefetch some messages..
       acquired_size -= entry.size
+      release_group
 
       val next = entry.nextOrTail
       entry.remove // entry size changes to 0
@@ -2265,10 +2946,15 @@ class Subscription(val queue:Queue, val consumer:DeliveryConsumer) extends Deliv
 
       total_nack_count += 1
       entry.state match {
-        case x:entry.Loaded=> x.acquirer = null
+        case x:entry.Loaded=>
+          x.acquirer = null
+          if( queue.tune_priority_dispatch ) {
+            queue.priority_index += entry
+          }
         case x:entry.Swapped=> x.acquirer = null
       }
       acquired_size -= entry.size
+      release_group
 
       // track for stats
       queue.nack_item_counter += 1
@@ -2284,7 +2970,7 @@ class Subscription(val queue:Queue, val consumer:DeliveryConsumer) extends Deliv
           val matches = if( loaded!=null ) {
             // small perf optimization.. no need to rewind if the
             // consumer is not interested in the message. (not the typical case).
-            sub.matches(loaded.delivery)
+            loaded.matches(sub)
           } else {
             true // if message was not loaded lets just assume it was.
           }
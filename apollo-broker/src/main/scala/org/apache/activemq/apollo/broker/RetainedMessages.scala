@@ -0,0 +1,268 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker
+
+import org.fusesource.hawtdispatch._
+import org.fusesource.hawtbuf.{Buffer, UTF8Buffer}
+import org.apache.activemq.apollo.util._
+import org.apache.activemq.apollo.broker.store.PBSupport
+import org.apache.activemq.apollo.broker.protocol.ProtocolFactory
+import collection.mutable.ListBuffer
+
+object RetainedMessages extends Log {
+  val STORE_PREFIX = "retained:"
+}
+
+/**
+ * <p>
+ * The last value cache of a topic.  It holds the last message retained
+ * for every value of the topic's retain_key header, or a single message
+ * if the topic has no retain key.  The retained messages are saved as map
+ * entries in the virtual host's store so they survive broker restarts.
+ * Only up to retain_max_size worth of messages are kept in memory, the
+ * least recently used ones get evicted and are loaded back from the store
+ * when a consumer subscribes.
+ * </p>
+ *
+ * <p>
+ * Only accessed from the topic's dispatch queue.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class RetainedMessages(val topic:Topic) {
+  import RetainedMessages._
+
+  class Entry(val key:String) {
+    // null when the message has been evicted from memory.
+    var delivery:Delivery = _
+    // false until the message has made it into the store, it can't
+    // be evicted before then since it could not be loaded back.
+    var stored = true
+    def store_key:Buffer = new UTF8Buffer(store_prefix + key)
+  }
+
+  // Kept in access order so that the least recently used messages get evicted first.
+  val entries = new java.util.LinkedHashMap[String, Entry](16, 0.75f, true)
+  var memory_size = 0L
+
+  def store = topic.virtual_host.store
+  def dispatch_queue = topic.dispatch_queue
+  def store_prefix = STORE_PREFIX + topic.id + "\u0000"
+
+  def key_header = topic.config.retain_key
+  def max_memory_size = MemoryPropertyEditor.parse(Option(topic.config.retain_max_size).getOrElse("1M"))
+
+  var loaded = store == null
+  val pending_replays = ListBuffer[DeliveryConsumer]()
+
+  val replay_producer = new DeliveryProducer {
+    def dispatch_queue = RetainedMessages.this.dispatch_queue
+  }
+
+  /**
+   * Finds the messages which were retained by the topic before
+   * it got deleted or before the broker was restarted.
+   */
+  def load = {
+    if( store!=null ) {
+      store.get_prefixed_map_entries(new UTF8Buffer(store_prefix)) { stored =>
+        dispatch_queue {
+          stored.foreach { case (key, _) =>
+            val name = new UTF8Buffer(key).toString.substring(store_prefix.length)
+            if( !entries.containsKey(name) ) {
+              entries.put(name, new Entry(name))
+            }
+          }
+          loaded = true
+          pending_replays.foreach(replay(_))
+          pending_replays.clear
+        }
+      }
+    }
+  }
+
+  def key_of(delivery:Delivery) = {
+    val header = key_header
+    if( header==null ) {
+      ""
+    } else {
+      Option(delivery.message.getProperty(header)).map(_.toString).getOrElse("")
+    }
+  }
+
+  def set(delivery:Delivery) = {
+    dispatch_queue.assertExecuting()
+    val key = key_of(delivery)
+    remove_from_memory(entries.remove(key))
+    val entry = new Entry(key)
+    entry.delivery = delivery
+    entries.put(key, entry)
+    memory_size += delivery.size
+
+    if( store!=null ) {
+      entry.stored = false
+      val uow = store.create_uow
+      uow.put(entry.store_key, PBSupport.encode_message_record_buffer(delivery.createMessageRecord))
+      uow.on_complete {
+        dispatch_queue {
+          entry.stored = true
+          evict
+        }
+      }
+      uow.release
+    }
+  }
+
+  def remove(delivery:Delivery) = {
+    dispatch_queue.assertExecuting()
+    val entry = entries.remove(key_of(delivery))
+    if( entry!=null ) {
+      remove_from_memory(entry)
+      if( store!=null ) {
+        val uow = store.create_uow
+        uow.put(entry.store_key, null)
+        uow.release
+      }
+    }
+  }
+
+  private def remove_from_memory(entry:Entry) = {
+    if( entry!=null && entry.delivery!=null ) {
+      memory_size -= entry.delivery.size
+      entry.delivery.message.release
+      entry.delivery = null
+    }
+  }
+
+  /**
+   * Evicts the least recently used messages from memory.  Without
+   * a store, there is nowhere to evict them to, so they are kept.
+   * Messages which are still being stored are skipped, they get
+   * another chance once their unit of work completes.
+   */
+  private def evict = {
+    if( store!=null ) {
+      val max = max_memory_size
+      val i = entries.values().iterator()
+      while( memory_size > max && i.hasNext ) {
+        val entry = i.next()
+        if( entry.stored ) {
+          remove_from_memory(entry)
+        }
+      }
+    }
+  }
+
+  /**
+   * Sends the retained messages to a new consumer of the topic.
+   */
+  def replay(consumer:DeliveryConsumer):Unit = {
+    dispatch_queue.assertExecuting()
+    if( !loaded ) {
+      pending_replays += consumer
+      return
+    }
+    if( entries.isEmpty ) {
+      return
+    }
+
+    import collection.JavaConversions._
+    val in_memory = ListBuffer[Delivery]()
+    val evicted = ListBuffer[Entry]()
+    entries.values().toList.foreach { entry =>
+      if( entry.delivery!=null ) {
+        in_memory += entry.delivery
+      } else {
+        evicted += entry
+      }
+    }
+
+    val replay = new RetainedReplay(consumer)
+    in_memory.foreach(replay.add(_))
+    replay.pending += evicted.size
+    evicted.foreach { entry =>
+      store.get_map_entry(entry.store_key) { value =>
+        dispatch_queue {
+          value.map(decode(_)) match {
+            case Some(delivery) =>
+              // cache it again unless it got replaced in the mean time.
+              if( entries.get(entry.key) eq entry ) {
+                delivery.message.retain
+                entry.delivery = delivery
+                memory_size += delivery.size
+              }
+              replay.add(delivery)
+              delivery.message.release
+              evict
+            case None =>
+          }
+          replay.pending -= 1
+          replay.drain
+        }
+      }
+    }
+    replay.drain
+  }
+
+  def decode(value:Buffer) = {
+    val record = PBSupport.decode_message_record_buffer(value)
+    val delivery = new Delivery
+    delivery.message = ProtocolFactory.get(record.protocol.toString).get.decode(record)
+    delivery.size = record.buffer.length
+    delivery
+  }
+
+  /**
+   * Streams retained messages to a single consumer over a session
+   * which gets closed once they have all been sent.
+   */
+  class RetainedReplay(consumer:DeliveryConsumer) {
+    consumer.retain
+    val session = consumer.connect(replay_producer)
+    session.refiller = ^{ drain }
+    val deliveries = new java.util.LinkedList[Delivery]()
+    var pending = 0
+    var closed = false
+
+    def add(delivery:Delivery) = {
+      val copy = delivery.copy()
+      copy.sender = topic.address
+      if( consumer.matches(copy) ) {
+        copy.message.retain
+        deliveries.add(copy)
+      }
+    }
+
+    def drain:Unit = {
+      while( !deliveries.isEmpty ) {
+        val delivery = deliveries.peek()
+        if( !session.offer(delivery) ) {
+          return
+        }
+        deliveries.poll()
+        delivery.message.release
+      }
+      if( pending==0 && !closed ) {
+        closed = true
+        session.close
+        consumer.release
+      }
+    }
+  }
+
+}
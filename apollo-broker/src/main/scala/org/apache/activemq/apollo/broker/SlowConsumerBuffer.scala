@@ -0,0 +1,263 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker
+
+import org.fusesource.hawtdispatch._
+import org.apache.activemq.apollo.util._
+import org.apache.activemq.apollo.dto.TopicDTO
+import java.util.concurrent.TimeUnit
+
+object SlowConsumerBuffer extends Log {
+  val POLICIES = Set("drop_oldest", "drop_newest", "conflate", "disconnect")
+}
+
+/**
+ * <p>
+ * Sits between a topic and one of its consumers so that the consumer
+ * can't slow down the topic's producers.  It always accepts the messages
+ * from the producers and buffers them while the consumer is busy.  Once
+ * the buffer is full, the slow consumer policy decides what happens:
+ * </p>
+ *
+ * <ul>
+ * <li>drop_oldest: the oldest buffered message is dropped</li>
+ * <li>drop_newest: the new message is dropped</li>
+ * <li>conflate: a new message replaces the buffered message which has the
+ * same conflation key header, otherwise the oldest message is dropped</li>
+ * <li>disconnect: the consumer's connection gets closed</li>
+ * </ul>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class SlowConsumerBuffer(val topic:Topic, val consumer:DeliveryConsumer, val policy:String, config:TopicDTO) extends DeliveryConsumer {
+  import SlowConsumerBuffer._
+  import OptionSupport._
+
+  val max_size = MemoryPropertyEditor.parse(Option(config.slow_consumer_max_size).getOrElse("1M"))
+  val max_items = config.slow_consumer_max_items.getOrElse(0)
+  val conflation_key = config.conflation_key
+  val timeout = config.slow_consumer_timeout.getOrElse(0L)
+
+  val dispatch_queue = createQueue(topic.address + " slow consumer buffer")
+  dispatch_queue.setTargetQueue(consumer.dispatch_queue)
+
+  // The deliveries keyed by their conflation key, or by the
+  // delivery itself if they don't have one.
+  val buffer = new java.util.LinkedHashMap[AnyRef, Delivery]()
+  var buffer_size = 0L
+
+  @volatile
+  var drop_item_counter = 0L
+  @volatile
+  var drop_size_counter = 0L
+  @volatile
+  var drop_ts = 0L
+
+  var stalled_since = 0L
+  // Set once the buffer stops accepting messages, which happens before
+  // it gets released if the consumer was disconnected.
+  var closed = false
+  var released = false
+
+  val producer = new DeliveryProducer {
+    def dispatch_queue = SlowConsumerBuffer.this.dispatch_queue
+  }
+
+  var session:DeliverySession = _
+
+  consumer.retain
+  dispatch_queue {
+    session = consumer.connect(producer)
+    session.refiller = ^{ drain }
+  }
+
+  val session_manager = new SessionSinkMux[Delivery](new Sink[Delivery] {
+    var refiller:Runnable = NOOP
+    def full = false
+    def offer(delivery: Delivery) = {
+      enqueue(delivery)
+      true
+    }
+  }, dispatch_queue, Delivery)
+
+  override def toString = consumer.toString
+  override def connection = consumer.connection
+
+  def retained() = consumer.retained()
+  def retain() = consumer.retain()
+  def release() = consumer.release()
+
+  def matches(delivery: Delivery) = consumer.matches(delivery)
+  def is_persistent = false
+
+  def connect(producer: DeliveryProducer) = new SlowConsumerBufferSession(producer)
+
+  class SlowConsumerBufferSession(val producer: DeliveryProducer) extends DeliverySession with SessionSinkFilter[Delivery] {
+
+    override def toString = SlowConsumerBuffer.this.toString
+    override def consumer = SlowConsumerBuffer.this
+
+    val downstream = session_manager.open(producer.dispatch_queue, producer.send_buffer_size)
+
+    def close = dispatch_queue {
+      session_manager.close(downstream, (delivery)=>{
+        if( delivery.ack!=null ) {
+          delivery.ack(Undelivered, delivery.uow)
+        }
+      })
+    }
+
+    def offer(delivery: Delivery) = {
+      if (downstream.full) {
+        false
+      } else {
+        // Hold on to the message until it has been passed on
+        // to the consumer or dropped.
+        val copy = delivery.copy()
+        copy.message.retain
+        copy.ack = (result, uow) => copy.message.release
+        val rc = downstream.offer(copy)
+        assert(rc, "session should accept since it was not full")
+        true
+      }
+    }
+  }
+
+  def enqueue(delivery:Delivery):Unit = {
+    if( closed ) {
+      delivery.ack(Undelivered, null)
+      return
+    }
+    if( buffer.isEmpty && session!=null && session.offer(delivery) ) {
+      stalled_since = 0
+      delivery.ack(Consumed, null)
+      return
+    }
+
+    if( policy == "drop_newest" && is_full(delivery.size) ) {
+      drop(delivery)
+      return
+    }
+
+    val key = if( policy == "conflate" && conflation_key!=null ) {
+      Option(delivery.message.getProperty(conflation_key)).getOrElse(delivery)
+    } else {
+      delivery
+    }
+    val previous = buffer.remove(key)
+    if( previous!=null ) {
+      buffer_size -= previous.size
+      drop(previous)
+    }
+    buffer.put(key, delivery)
+    buffer_size += delivery.size
+
+    while( is_full(0) ) {
+      if( policy == "disconnect" ) {
+        disconnect("it exceeded the slow consumer buffer limits")
+        return
+      }
+      val eldest = buffer.values().iterator().next()
+      buffer.values().remove(eldest)
+      buffer_size -= eldest.size
+      drop(eldest)
+    }
+
+    if( stalled_since==0 ) {
+      val stall = topic.now
+      stalled_since = stall
+      if( timeout > 0 ) {
+        dispatch_queue.after(timeout, TimeUnit.MILLISECONDS) {
+          if( stalled_since == stall && !closed ) {
+            disconnect("it did not accept any messages for "+timeout+" ms")
+          }
+        }
+      }
+    }
+  }
+
+  def is_full(extra:Int) = {
+    (buffer_size + extra) > max_size || (max_items > 0 && buffer.size + (if (extra > 0) 1 else 0) > max_items)
+  }
+
+  def drain:Unit = {
+    val i = buffer.values().iterator()
+    while( i.hasNext ) {
+      val delivery = i.next()
+      if( closed || !session.offer(delivery) ) {
+        return
+      }
+      i.remove()
+      buffer_size -= delivery.size
+      stalled_since = 0
+      delivery.ack(Consumed, null)
+    }
+    stalled_since = 0
+  }
+
+  def drop(delivery:Delivery) = {
+    drop_item_counter += 1
+    drop_size_counter += delivery.size
+    drop_ts = topic.now
+    delivery.ack(Consumed, null)
+  }
+
+  def disconnect(reason:String) = {
+    consumer.connection match {
+      case Some(connection) =>
+        warn("Disconnecting slow consumer %s from topic %s since %s", consumer, topic.address, reason)
+        closed = true
+        clear
+        connection.stop(NOOP)
+      case None =>
+        // Nothing to disconnect, so just drop messages.
+        while( is_full(0) ) {
+          val eldest = buffer.values().iterator().next()
+          buffer.values().remove(eldest)
+          buffer_size -= eldest.size
+          drop(eldest)
+        }
+    }
+  }
+
+  private def clear = {
+    val i = buffer.values().iterator()
+    while( i.hasNext ) {
+      drop(i.next())
+    }
+    buffer.clear()
+    buffer_size = 0
+  }
+
+  def close = dispatch_queue {
+    if( !released ) {
+      released = true
+      closed = true
+      val i = buffer.values().iterator()
+      while( i.hasNext ) {
+        i.next().ack(Undelivered, null)
+      }
+      buffer.clear()
+      buffer_size = 0
+      if( session!=null ) {
+        session.close
+      }
+      consumer.release
+    }
+  }
+
+}
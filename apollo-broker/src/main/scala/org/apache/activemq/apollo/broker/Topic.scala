@@ -41,9 +41,6 @@ class Topic(val router:LocalRouter, val address:DestinationAddress, var config_u
   val resource_kind =SecuredResource.TopicKind
   var proxy_sessions = new HashSet[DeliverySession]()
 
-  @transient
-  var retained_message: Delivery = _
-
   implicit def from_link(from:LinkDTO):(Long,Long,Long)=(from.enqueue_item_counter, from.enqueue_size_counter, from.enqueue_ts)
   implicit def from_session(from:DeliverySession):(Long,Long,Long)=(from.enqueue_item_counter, from.enqueue_size_counter, from.enqueue_ts)
 
@@ -95,11 +92,18 @@ class Topic(val router:LocalRouter, val address:DestinationAddress, var config_u
       enqueue_ts = now
       value.retain match {
         case RetainSet =>
-          // TODO: perhaps persist so that we can recall what was
-          // retained across broker restarts.
-          retained_message = value;
+          val copy = value.copy()
+          copy.message.retain
+          dispatch_queue {
+            retained.set(copy)
+          }
         case RetainRemove =>
-          retained_message = null;
+          val copy = value.copy()
+          copy.message.retain
+          dispatch_queue {
+            retained.remove(copy)
+            copy.message.release
+          }
         case _ =>
       }
       true
@@ -174,6 +178,7 @@ class Topic(val router:LocalRouter, val address:DestinationAddress, var config_u
   val consumers = HashMap[DeliveryConsumer, ProxyDeliveryConsumer]()
   var durable_subscriptions = ListBuffer[Queue]()
   var consumer_queues = HashMap[DeliveryConsumer, Queue]()
+  var consumer_buffers = HashMap[DeliveryConsumer, SlowConsumerBuffer]()
   var idled_at = 0L
   val created_at = now
   var auto_delete_after = 0
@@ -184,6 +189,16 @@ class Topic(val router:LocalRouter, val address:DestinationAddress, var config_u
 
   import OptionSupport._
 
+  val retained = new RetainedMessages(this)
+  retained.load
+
+  // The fan out is set up when the topic is created, changing the
+  // fan_out setting later on does not affect existing topics.
+  val fanout = config.fan_out.getOrElse(0) match {
+    case 0 => null
+    case count => new TopicFanout(this, count)
+  }
+
   override def toString = address.toString
 
   def virtual_host: VirtualHost = router.virtual_host
@@ -234,6 +249,13 @@ class Topic(val router:LocalRouter, val address:DestinationAddress, var config_u
     }
     this.consumers.foreach { case (consumer, proxy) =>
       val o = copy(proxy.link)
+      for( buffer <- consumer_buffers.get(consumer) ) {
+        o.drop_item_counter = buffer.drop_item_counter
+        o.drop_size_counter = buffer.drop_size_counter
+        rc.metrics.drop_item_counter += buffer.drop_item_counter
+        rc.metrics.drop_size_counter += buffer.drop_size_counter
+        rc.metrics.drop_ts = rc.metrics.drop_ts max buffer.drop_ts
+      }
       consumers_links.put(proxy.consumer, o)
       rc.consumers.add(o)
     }
@@ -352,6 +374,12 @@ class Topic(val router:LocalRouter, val address:DestinationAddress, var config_u
           case "block" =>
             // just have dispatcher dispatch directly to them..
             consumer
+
+          case policy if SlowConsumerBuffer.POLICIES.contains(policy) =>
+            // buffer a bounded amount of messages for the consumer
+            val buffer = new SlowConsumerBuffer(this, consumer, policy, config)
+            consumer_buffers += consumer->buffer
+            buffer
         }
     }
 
@@ -389,32 +417,19 @@ class Topic(val router:LocalRouter, val address:DestinationAddress, var config_u
         }
     }
 
-    val r = retained_message
-    if (r != null) {
-      val copy = r.copy()
-      copy.sender = address
+    retained.replay(consumer)
 
-      val producer = new  DeliveryProducerRoute(router) {
-        refiller = NOOP
-        val dispatch_queue = createQueue()
-        override protected def on_connected = {
-          copy.ack = (d,x) => consumer.dispatch_queue {
-            unbind(consumer :: Nil)
-          }
-          offer(copy) // producer supports 1 message overflow.
-        }
-      }
-      producer.bind(consumer :: Nil)
-      producer.connected()
-    }
-    
     val proxy = ProxyDeliveryConsumer(target, link, consumer)
     consumers.put(consumer, proxy)
     topic_metrics.consumer_counter += 1
-    val list = proxy :: Nil
-    producers.keys.foreach({ r=>
-      r.bind(list)
-    })
+    if( fanout!=null && fanout.accepts(target) ) {
+      fanout.bind(proxy)
+    } else {
+      val list = proxy :: Nil
+      producers.keys.foreach({ r=>
+        r.bind(list)
+      })
+    }
     check_idle
   }
 
@@ -445,11 +460,22 @@ class Topic(val router:LocalRouter, val address:DestinationAddress, var config_u
           }
           List(queue)
         case None =>
-          List(consumer)
+          consumer_buffers.remove(consumer) match {
+            case Some(buffer) =>
+              buffer.close
+              topic_metrics.drop_item_counter += buffer.drop_item_counter
+              topic_metrics.drop_size_counter += buffer.drop_size_counter
+              topic_metrics.drop_ts = topic_metrics.drop_ts max buffer.drop_ts
+              List(buffer)
+            case None =>
+              List(consumer)
+          }
+      }
+      if( fanout==null || !fanout.unbind(proxy, list) ) {
+        producers.keys.foreach({ r=>
+          r.unbind(list)
+        })
       }
-      producers.keys.foreach({ r=>
-        r.unbind(list)
-      })
     }
     check_idle
   }
@@ -483,7 +509,12 @@ class Topic(val router:LocalRouter, val address:DestinationAddress, var config_u
     }
     producers.put(producer, link)
     topic_metrics.producer_counter += 1
-    producer.bind(producer_tracker::consumers.values.toList )
+    val targets:List[DeliveryConsumer] = if( fanout!=null ) {
+      fanout.partitions ::: consumers.values.filterNot(fanout.is_bound(_)).toList
+    } else {
+      consumers.values.toList
+    }
+    producer.bind(producer_tracker::targets)
     check_idle
   }
 
@@ -0,0 +1,138 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker
+
+import org.fusesource.hawtdispatch._
+import collection.mutable.HashMap
+
+/**
+ * <p>
+ * Fans the messages sent to a topic out to its consumers from a fixed
+ * number of partitions.  Producers only open a session to each partition
+ * and each consumer only gets a session from the partition it's assigned
+ * to, so the number of sessions no longer grows with the number of
+ * producers times the number of consumers.  The partitions have their own
+ * dispatch queues so the fan out to large numbers of consumers gets spread
+ * over multiple threads instead of running on the producer's thread.
+ * </p>
+ *
+ * <p>
+ * Only consumers which do not persist messages are fanned out, persistent
+ * consumers like durable subscriptions stay bound to the producers so that
+ * messages keep getting stored in the producer's unit of work.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class TopicFanout(val topic:Topic, count:Int) {
+
+  val partitions = (0 until count).map(new TopicFanoutPartition(topic, _)).toList
+
+  // Only accessed from the topic's dispatch queue.
+  val assignments = HashMap[DeliveryConsumer, TopicFanoutPartition]()
+
+  def accepts(consumer:DeliveryConsumer) = !consumer.is_persistent
+
+  def is_bound(consumer:DeliveryConsumer) = assignments.contains(consumer)
+
+  def bind(consumer:DeliveryConsumer) = {
+    val partition = partitions.minBy(_.consumer_count)
+    partition.consumer_count += 1
+    assignments.put(consumer, partition)
+    partition.route.bind(consumer::Nil)
+  }
+
+  /**
+   * @return false if the consumer was not bound to one of the partitions.
+   */
+  def unbind(consumer:DeliveryConsumer, targets:List[DeliveryConsumer]) = {
+    assignments.remove(consumer) match {
+      case Some(partition) =>
+        partition.consumer_count -= 1
+        partition.route.unbind(targets)
+        true
+      case None =>
+        false
+    }
+  }
+
+}
+
+/**
+ * A partition of a topic fan out.  To the producers it looks like
+ * a consumer, it then routes the messages it receives to its share of
+ * the topic's consumers from its own dispatch queue.
+ */
+class TopicFanoutPartition(val topic:Topic, val id:Int) extends DeliveryConsumer {
+
+  val dispatch_queue = createQueue(topic.address + " fan out " + id)
+
+  // Only accessed from the topic's dispatch queue.
+  var consumer_count = 0
+
+  val route = new DeliveryProducerRoute(topic.router) {
+    def dispatch_queue = TopicFanoutPartition.this.dispatch_queue
+    override def toString = TopicFanoutPartition.this.toString
+  }
+
+  val session_manager = new SessionSinkMux[Delivery](route, dispatch_queue, Delivery)
+
+  override def toString = topic.address + " (fan out " + id + ")"
+
+  def retained() = 0
+  def retain() {}
+  def release() {}
+
+  // The consumers of the partition get matched when the
+  // partition routes the message.
+  def matches(message: Delivery) = true
+  def is_persistent = false
+
+  def connect(producer: DeliveryProducer) = new TopicFanoutSession(producer)
+
+  class TopicFanoutSession(val producer: DeliveryProducer) extends DeliverySession with SessionSinkFilter[Delivery] {
+
+    override def toString = TopicFanoutPartition.this.toString
+    override def consumer = TopicFanoutPartition.this
+
+    val downstream = session_manager.open(producer.dispatch_queue, producer.send_buffer_size)
+
+    def close = dispatch_queue {
+      session_manager.close(downstream, (delivery)=>{
+        if( delivery.ack!=null ) {
+          delivery.ack(Undelivered, delivery.uow)
+        }
+      })
+    }
+
+    def offer(delivery: Delivery) = {
+      if (downstream.full) {
+        false
+      } else {
+        // Hold on to the message until the partition has
+        // routed it to its consumers.
+        val copy = delivery.copy()
+        copy.message.retain
+        copy.ack = (result, uow) => copy.message.release
+        val rc = downstream.offer(copy)
+        assert(rc, "session should accept since it was not full")
+        true
+      }
+    }
+  }
+
+}
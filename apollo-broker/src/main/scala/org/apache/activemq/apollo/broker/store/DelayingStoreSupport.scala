@@ -23,7 +23,7 @@ import java.util.concurrent._
 import atomic.AtomicInteger
 import org.apache.activemq.apollo.util._
 import org.fusesource.hawtdispatch.{BaseRetained, ListEventAggregator}
-import org.apache.activemq.apollo.dto.{StoreStatusDTO, TimeMetricDTO, IntMetricDTO}
+import org.apache.activemq.apollo.dto.{StoreStatusDTO, TimeMetricDTO, IntMetricDTO, HistogramDTO}
 import org.fusesource.hawtbuf.Buffer
 import java.lang.ref.WeakReference
 
@@ -85,6 +85,12 @@ trait DelayingStoreSupport extends Store with BaseService {
 
   protected def flush_delay:Long
 
+  /**
+   * The maximum time in milliseconds a flush may wait for more UOWs to
+   * be grouped into it.  0 disables adaptive group commits.
+   */
+  protected def group_commit_latency:Long = 0
+
   protected def get_next_msg_key:Long
 
   protected def store(uows: Seq[DelayableUOW])(callback: =>Unit):Unit
@@ -302,6 +308,14 @@ trait DelayingStoreSupport extends Store with BaseService {
     rc
   }
 
+  implicit def toHistogramDTO( m: Histogram) = {
+    val rc = new HistogramDTO()
+    rc.count = m.count
+    val used = m.buckets.lastIndexWhere(_ != 0) + 1
+    m.buckets.take(used).foreach(rc.buckets.add(_))
+    rc
+  }
+
   def on_store_requested(mr:MessageRecord) = {}
 
   var metric_canceled_message_counter:Long = 0
@@ -476,6 +490,45 @@ trait DelayingStoreSupport extends Store with BaseService {
   val flush_latency_counter = new TimeCounter
   var flush_latency = flush_latency_counter(false)
 
+  // The number of UOWs in each flush.
+  val flush_batch_size_counter = new HistogramCounter
+  // The time in microseconds the UOWs of a flush waited for it to start.
+  val flush_wait_counter = new HistogramCounter
+
+  // The UOWs which will get stored by the next flush.
+  val flush_group = ListBuffer[DelayableUOW]()
+  var flush_group_start = 0L
+  var flush_group_scheduled = false
+  var flush_group_generation = 0L
+
+  // Moving averages of how long a flush takes and of the
+  // time between UOWs getting queued for a flush.
+  var avg_flush_time = 0L
+  var avg_flush_arrival = 0L
+  var last_flush_arrival = 0L
+
+  private def moving_average(avg:Long, sample:Long) = {
+    if( avg == 0 ) sample else avg + (sample - avg) / 8
+  }
+
+  /**
+   * Computes how much longer the flush group should wait for more UOWs.
+   * Waiting is only worth it while the group can still be flushed within
+   * the latency target and another UOW is expected before then.
+   */
+  def flush_group_wait(now:Long):Long = {
+    val target = TimeUnit.MILLISECONDS.toNanos(group_commit_latency)
+    if( target <= 0 || avg_flush_arrival <= 0 ) {
+      return 0
+    }
+    val remaining = target - avg_flush_time - (now - flush_group_start)
+    if( remaining < avg_flush_arrival ) {
+      0
+    } else {
+      remaining
+    }
+  }
+
   def drain_flushes:Unit = {
     dispatch_queue.assertExecuting()
 
@@ -501,9 +554,45 @@ trait DelayingStoreSupport extends Store with BaseService {
       }
     }
     if( !uows.isEmpty ) {
+      val now = System.nanoTime
+      if( last_flush_arrival != 0 ) {
+        avg_flush_arrival = moving_average(avg_flush_arrival, (now - last_flush_arrival) / uows.size)
+      }
+      last_flush_arrival = now
+      if( flush_group.isEmpty ) {
+        flush_group_start = now
+      }
+      flush_group ++= uows
+
+      val wait = flush_group_wait(now)
+      if( wait <= 0 ) {
+        flush_group_now
+      } else if( !flush_group_scheduled ) {
+        flush_group_scheduled = true
+        val generation = flush_group_generation
+        dispatch_queue.executeAfter(wait, TimeUnit.NANOSECONDS, ^{
+          if( generation == flush_group_generation && service_state.is_started ) {
+            flush_group_now
+          }
+        })
+      }
+    }
+  }
+
+  private def flush_group_now:Unit = {
+    val uows = flush_group.clone()
+    flush_group.clear()
+    flush_group_scheduled = false
+    flush_group_generation += 1
+
+    if( !uows.isEmpty ) {
+      val start = System.nanoTime
+      flush_batch_size_counter += uows.size
+      flush_wait_counter += TimeUnit.NANOSECONDS.toMicros(start - flush_group_start)
       flush_latency_counter.start { end=>
         flush_source.suspend
         store(uows) {
+          avg_flush_time = moving_average(avg_flush_time, System.nanoTime - start)
           store_completed(uows)
           flush_source.resume
           dispatch_queue.assertExecuting()
@@ -30,6 +30,7 @@ class MessageRecord {
   var protocol: AsciiBuffer = _
   var buffer: Buffer = _
   var compressed: Buffer = _
+  var compression = 0
   var direct_buffer: DirectBuffer = _
   var locator:AtomicReference[Object] = _
 
@@ -178,6 +178,15 @@ trait Store extends ServiceTrait {
    */
   def list_queue_entries(queueKey:Long, firstSeq:Long, lastSeq:Long)(callback:(Seq[QueueEntryRecord])=>Unit )
 
+  /**
+   * Removes the queue entry records between the first and last provided queue sequences
+   * (inclusive) which have expired by the given time without loading the rest of the
+   * entries into memory.  The callback is passed the records which were removed and
+   * a range summarizing the entries which remain.  The range has a count of zero if no
+   * entries remain.
+   */
+  def remove_expired_queue_entries(queueKey:Long, firstSeq:Long, lastSeq:Long, now:Long)(callback:(Seq[QueueEntryRecord], QueueEntryRange)=>Unit )
+
   /**
    * Removes a the delivery associated with the provided from any
    * internal buffers/caches.  The callback is executed once, the message is
@@ -199,4 +208,13 @@ trait Store extends ServiceTrait {
    * Imports a previous export from the input stream.
    */
   def import_data(is:InputStream, cb:(Option[String])=>Unit):Unit
+
+  /**
+   * Copies a consistent image of the store into the provided directory
+   * without stopping the store.  The directory can then be used as the
+   * data directory of a store with the same configuration.
+   */
+  def backup(directory:File, cb:(Option[String])=>Unit):Unit = {
+    cb(Some("The "+this+" does not support online backups."))
+  }
 }
\ No newline at end of file
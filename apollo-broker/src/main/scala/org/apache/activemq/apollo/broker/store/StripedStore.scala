@@ -0,0 +1,714 @@
+package org.apache.activemq.apollo.broker.store
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import org.fusesource.hawtdispatch._
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.{AtomicBoolean, AtomicInteger, AtomicLong, AtomicReference}
+import collection.mutable.{HashMap, ListBuffer}
+import org.apache.activemq.apollo.util._
+import org.apache.activemq.apollo.util.FileSupport._
+import org.apache.activemq.apollo.dto.{SimpleStoreStatusDTO, StoreStatusDTO, TimeMetricDTO}
+import org.apache.activemq.apollo.broker.Broker
+import org.fusesource.hawtbuf.Buffer
+import java.io._
+
+object StripedStore extends Log {
+  // The key of a message handed to the broker holds the stripe the message
+  // was loaded from in it's low bits.
+  final val STRIPE_BITS = 8
+  final val MAX_STRIPES = (1 << STRIPE_BITS) - 1
+  // The stripe bits of the keys of the messages stored through the striped store.
+  final val STORED_MESSAGE_TAG = MAX_STRIPES
+}
+
+/**
+ * The value a striped store keeps in the locator of the messages it
+ * hands to the broker.  It tracks the key and locator of the copy of the
+ * message stored in each stripe.
+ */
+class StripedLocator(stripes:Int) {
+  private val keys = Array.fill(stripes)(-1L)
+  private val locators = new Array[AtomicReference[Object]](stripes)
+
+  def get(stripe:Int):Option[(Long, AtomicReference[Object])] = this.synchronized {
+    if( keys(stripe) == -1 ) {
+      None
+    } else {
+      Some((keys(stripe), locators(stripe)))
+    }
+  }
+
+  def set(stripe:Int, key:Long, locator:AtomicReference[Object]) = this.synchronized {
+    keys(stripe) = key
+    locators(stripe) = locator
+  }
+
+  def any:Option[(Int, Long, AtomicReference[Object])] = this.synchronized {
+    keys.indexWhere(_ != -1) match {
+      case -1 => None
+      case stripe => Some((stripe, keys(stripe), locators(stripe)))
+    }
+  }
+}
+
+/**
+ * <p>
+ * A Store which spreads the queues over several stores so that the
+ * journal writes can use several disks and threads.  Queues stay in the
+ * stripe they were added to, new queues get assigned to a stripe by their
+ * key.  A message gets stored in every stripe holding a queue it gets
+ * enqueued to.  Map entries are kept in the first stripe.
+ * </p>
+ *
+ * <p>
+ * A UOW which touches several stripes is split into one UOW per stripe.
+ * Every stripe commits its part on it's own, so the UOW is only atomic
+ * within a stripe.  The parts which only dequeue are committed once all
+ * the other parts have completed, so a crash can leave a message which
+ * got moved between queues in different stripes in both of them, which
+ * leads to it being redelivered, but it can't lose it.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class StripedStore(val stripes:Array[Store]) extends Store with BaseService {
+
+  import StripedStore._
+
+  assert( stripes.length > 0 && stripes.length <= MAX_STRIPES )
+
+  val dispatch_queue:DispatchQueue = createQueue(toString)
+
+  override def toString = "striped store of: "+stripes.mkString(", ")
+
+  val next_msg_key = new AtomicLong(1)
+  val pending_stores = new ConcurrentHashMap[Long, StripedUOW]()
+  val queue_stripes = new ConcurrentHashMap[Long, java.lang.Integer]()
+
+  def stripe_of(queue_key:Long):Int = {
+    val rc = queue_stripes.get(queue_key)
+    if( rc != null ) {
+      rc.intValue
+    } else {
+      ((queue_key % stripes.length).toInt + stripes.length) % stripes.length
+    }
+  }
+
+  def to_global_key(stripe:Int, key:Long) = (key << STRIPE_BITS) | stripe
+
+  /////////////////////////////////////////////////////////////////////
+  //
+  // Implementation of the BaseService interface
+  //
+  /////////////////////////////////////////////////////////////////////
+
+  protected def _start(on_completed: Runnable) = {
+    val tracker = new LoggingTracker("striped store startup")
+    stripes.foreach(tracker.start(_))
+    tracker.callback(^{
+      // Remember where the existing queues are so that changing the
+      // number of stripes does not lose them.
+      gather[Seq[Long]]((stripe, cb) => stripe.list_queues(cb)) { queues =>
+        queues.zipWithIndex.foreach { case (keys, stripe) =>
+          keys.foreach(queue_stripes.put(_, stripe))
+        }
+        on_completed.run()
+      }
+    })
+  }
+
+  protected def _stop(on_completed: Runnable) = {
+    val tracker = new LoggingTracker("striped store shutdown")
+    stripes.foreach(tracker.stop(_))
+    tracker.callback(on_completed)
+  }
+
+  /**
+   * Calls the function on all the stripes and passes the results to the
+   * callback, in stripe order, once they have all been received.
+   */
+  private def gather[T](func:(Store, (T)=>Unit)=>Unit)(callback:(Seq[T])=>Unit) = {
+    val results = new Array[Any](stripes.length)
+    val remaining = new AtomicInteger(stripes.length)
+    stripes.zipWithIndex.foreach { case (stripe, i) =>
+      func(stripe, (result:T) => {
+        results(i) = result
+        if( remaining.decrementAndGet() == 0 ) {
+          callback(results.toSeq.asInstanceOf[Seq[T]])
+        }
+      })
+    }
+  }
+
+  private def to_broker(stripe:Int, record:QueueEntryRecord) = {
+    val locator = new StripedLocator(stripes.length)
+    locator.set(stripe, record.message_key, record.message_locator)
+    copy_entry(record, to_global_key(stripe, record.message_key), new AtomicReference[Object](locator))
+  }
+
+  private def copy_entry(record:QueueEntryRecord, message_key:Long, message_locator:AtomicReference[Object]) = {
+    val rc = new QueueEntryRecord
+    rc.queue_key = record.queue_key
+    rc.entry_seq = record.entry_seq
+    rc.message_key = message_key
+    rc.message_locator = message_locator
+    rc.attachment = record.attachment
+    rc.size = record.size
+    rc.expiration = record.expiration
+    rc.redeliveries = record.redeliveries
+    rc.sender = record.sender
+    rc
+  }
+
+  private def locator_of(entry:QueueEntryRecord) = Option(entry.message_locator).map(_.get) match {
+    case Some(locator:StripedLocator) => Some(locator)
+    case _ => None
+  }
+
+  /////////////////////////////////////////////////////////////////////
+  //
+  // Implementation of the Store interface
+  //
+  /////////////////////////////////////////////////////////////////////
+
+  def get_store_status(callback:(StoreStatusDTO)=>Unit) = {
+    gather[StoreStatusDTO]((stripe, cb) => stripe.get_store_status(cb)) { statuses =>
+      val rc = new SimpleStoreStatusDTO
+      rc.id = toString
+      rc.state = service_state.toString
+      rc.state_since = service_state.since
+      rc.message_load_latency = new TimeMetricDTO
+      rc.flush_latency = new TimeMetricDTO
+      statuses.foreach { status =>
+        rc.canceled_message_counter += status.canceled_message_counter
+        rc.flushed_message_counter += status.flushed_message_counter
+        rc.canceled_enqueue_counter += status.canceled_enqueue_counter
+        rc.flushed_enqueue_counter += status.flushed_enqueue_counter
+        rc.pending_stores += status.pending_stores
+        add(rc.message_load_latency, status.message_load_latency)
+        add(rc.flush_latency, status.flush_latency)
+      }
+      callback(rc)
+    }
+  }
+
+  private def add(target:TimeMetricDTO, value:TimeMetricDTO) = {
+    if( value != null && value.count > 0 ) {
+      target.min = if( target.count == 0 ) value.min else target.min.min(value.min)
+      target.max = target.max.max(value.max)
+      target.count += value.count
+      target.total += value.total
+    }
+  }
+
+  def create_uow() = new StripedUOW
+
+  def purge(callback: =>Unit) = {
+    gather[Unit]((stripe, cb) => stripe.purge(cb(()))) { _ =>
+      queue_stripes.clear()
+      callback
+    }
+  }
+
+  def get_last_queue_key(callback:(Option[Long])=>Unit) = {
+    gather[Option[Long]]((stripe, cb) => stripe.get_last_queue_key(cb)) { keys =>
+      val rc = keys.flatten
+      callback(if( rc.isEmpty ) None else Some(rc.max))
+    }
+  }
+
+  def add_queue(record:QueueRecord)(callback:(Boolean)=>Unit) = {
+    val stripe = stripe_of(record.key)
+    stripes(stripe).add_queue(record) { rc =>
+      if( rc ) {
+        queue_stripes.put(record.key, stripe)
+      }
+      callback(rc)
+    }
+  }
+
+  def remove_queue(queue_key:Long)(callback:(Boolean)=>Unit) = {
+    stripes(stripe_of(queue_key)).remove_queue(queue_key) { rc =>
+      if( rc ) {
+        queue_stripes.remove(queue_key)
+      }
+      callback(rc)
+    }
+  }
+
+  def get_map_entry(key:Buffer)(callback:(Option[Buffer])=>Unit) = {
+    stripes(0).get_map_entry(key)(callback)
+  }
+
+  def get_prefixed_map_entries(prefix:Buffer)(callback:Seq[(Buffer, Buffer)]=>Unit) = {
+    stripes(0).get_prefixed_map_entries(prefix)(callback)
+  }
+
+  def get_queue(queue_key:Long)(callback:(Option[QueueRecord])=>Unit) = {
+    stripes(stripe_of(queue_key)).get_queue(queue_key)(callback)
+  }
+
+  def list_queues(callback:(Seq[Long])=>Unit) = {
+    gather[Seq[Long]]((stripe, cb) => stripe.list_queues(cb)) { queues =>
+      callback(queues.flatten.sorted)
+    }
+  }
+
+  def list_queue_entry_ranges(queue_key:Long, limit:Int)(callback:(Seq[QueueEntryRange])=>Unit) = {
+    stripes(stripe_of(queue_key)).list_queue_entry_ranges(queue_key, limit)(callback)
+  }
+
+  def list_queue_entries(queue_key:Long, first_seq:Long, last_seq:Long)(callback:(Seq[QueueEntryRecord])=>Unit) = {
+    val stripe = stripe_of(queue_key)
+    stripes(stripe).list_queue_entries(queue_key, first_seq, last_seq) { records =>
+      callback(records.map(to_broker(stripe, _)))
+    }
+  }
+
+  def remove_expired_queue_entries(queue_key:Long, first_seq:Long, last_seq:Long, now:Long)(callback:(Seq[QueueEntryRecord], QueueEntryRange)=>Unit) = {
+    val stripe = stripe_of(queue_key)
+    stripes(stripe).remove_expired_queue_entries(queue_key, first_seq, last_seq, now) { (removed, remaining) =>
+      callback(removed.map(to_broker(stripe, _)), remaining)
+    }
+  }
+
+  def flush_message(message_key:Long)(callback: =>Unit) = {
+    pending_stores.get(message_key) match {
+      case null => callback
+      case uow =>
+        uow.on_flush(callback)
+        uow.complete_asap()
+    }
+  }
+
+  def load_message(message_key:Long, locator:AtomicReference[Object])(callback:(Option[MessageRecord])=>Unit) = {
+    Option(locator).map(_.get) match {
+      case Some(striped:StripedLocator) =>
+        striped.any match {
+          case Some((stripe, key, stripe_locator)) =>
+            stripes(stripe).load_message(key, stripe_locator) { record =>
+              record.foreach { record =>
+                record.key = message_key
+                record.locator = locator
+              }
+              callback(record)
+            }
+          case None => callback(None)
+        }
+      case _ => callback(None)
+    }
+  }
+
+  def export_data(os:OutputStream, cb:(Option[String])=>Unit) = Broker.BLOCKABLE_THREAD_POOL {
+    val files = stripes.map(_ => File.createTempFile("stripe-export", ".tgz"))
+    try {
+      cb(export_stripes(os, files))
+    } catch {
+      case e:Exception =>
+        debug(e, "Export failed")
+        cb(Some(e.getMessage))
+    } finally {
+      files.foreach(_.delete())
+    }
+  }
+
+  private def read_export(file:File)(func:(AnyRef)=>Unit):Any = {
+    using(new BufferedInputStream(new FileInputStream(file))) { is =>
+      val manager = ImportStreamManager(is)
+      var next = manager.getNext
+      while( next != null ) {
+        func(next)
+        next = manager.getNext
+      }
+      manager.version
+    }
+  }
+
+  private def export_stripes(os:OutputStream, files:Array[File]):Option[String] = {
+    stripes.zip(files).foreach { case (stripe, file) =>
+      val error = using(new BufferedOutputStream(new FileOutputStream(file))) { out =>
+        sync_cb[Option[String]](stripe.export_data(out, _))
+      }
+      if( error.isDefined ) {
+        return error
+      }
+    }
+
+    val version = read_export(files(0))(_ => ()) match {
+      case version:Int => version
+      case _ => return Some("Could not determine the export format version of the stripes")
+    }
+
+    // Merge the exports of the stripes so that the messages still come
+    // before the queue entries that reference them.
+    val manager = ExportStreamManager(os, version)
+    def merge(func:(Int, AnyRef)=>Unit) = files.zipWithIndex.foreach { case (file, stripe) =>
+      read_export(file)(func(stripe, _))
+    }
+    merge {
+      case (stripe, record:MessagePB.Buffer) =>
+        val copy = record.copy()
+        copy.setMessageKey(to_global_key(stripe, record.getMessageKey))
+        manager.store_message(copy)
+      case _ =>
+    }
+    merge {
+      case (stripe, record:QueueEntryPB.Buffer) =>
+        val copy = record.copy()
+        copy.setMessageKey(to_global_key(stripe, record.getMessageKey))
+        manager.store_queue_entry(copy)
+      case _ =>
+    }
+    merge {
+      case (_, record:QueuePB.Buffer) => manager.store_queue(record)
+      case _ =>
+    }
+    merge {
+      case (_, record:MapEntryPB.Buffer) => manager.store_map_entry(record)
+      case _ =>
+    }
+    manager.finish
+    None
+  }
+
+  def import_data(is:InputStream, cb:(Option[String])=>Unit) = Broker.BLOCKABLE_THREAD_POOL {
+    val spool = File.createTempFile("striped-import", ".tgz")
+    val files = stripes.map(_ => File.createTempFile("stripe-import", ".tgz"))
+    try {
+      cb(import_stripes(is, spool, files))
+    } catch {
+      case e:Exception =>
+        debug(e, "Import failed")
+        cb(Some(e.getMessage))
+    } finally {
+      spool.delete()
+      files.foreach(_.delete())
+    }
+  }
+
+  /**
+   * Backs up the stripes one after the other, each one into a
+   * stripe-<n> sub directory.  The stripes hold different queues,
+   * so each stripe's image only has to be consistent by itself.
+   */
+  override def backup(directory:File, cb:(Option[String])=>Unit) = Broker.BLOCKABLE_THREAD_POOL {
+    cb(stripes.zipWithIndex.view.flatMap { case (stripe, i) =>
+      sync_cb[Option[String]](stripe.backup(directory / ("stripe-"+i), _))
+    }.headOption)
+  }
+
+  private def import_stripes(is:InputStream, spool:File, files:Array[File]):Option[String] = {
+    // The import has to be read twice, first to find out which stripes
+    // the messages have to be stored in.
+    using(new BufferedOutputStream(new FileOutputStream(spool))) { out =>
+      copy(is, out)
+    }
+
+    queue_stripes.clear()
+    val targets = HashMap[Long, Set[Int]]()
+    val version = read_export(spool) {
+      case record:QueueEntryPB.Buffer =>
+        val key = record.getMessageKey
+        targets.put(key, targets.getOrElse(key, Set[Int]()) + stripe_of(record.getQueueKey))
+      case _ =>
+    } match {
+      case version:Int => version
+      case _ => return Some("Could not determine the export format version")
+    }
+
+    val managers = files.map(file => ExportStreamManager(new BufferedOutputStream(new FileOutputStream(file)), version))
+    try {
+      read_export(spool) {
+        case record:MessagePB.Buffer =>
+          targets.getOrElse(record.getMessageKey, Set[Int]()).foreach(managers(_).store_message(record))
+        case record:QueueEntryPB.Buffer =>
+          managers(stripe_of(record.getQueueKey)).store_queue_entry(record)
+        case record:QueuePB.Buffer =>
+          val stripe = stripe_of(record.getKey)
+          queue_stripes.put(record.getKey, stripe)
+          managers(stripe).store_queue(record)
+        case record:MapEntryPB.Buffer =>
+          managers(0).store_map_entry(record)
+        case _ =>
+      }
+    } finally {
+      managers.foreach(_.finish)
+    }
+
+    stripes.zip(files).foreach { case (stripe, file) =>
+      val error = using(new BufferedInputStream(new FileInputStream(file))) { in =>
+        sync_cb[Option[String]](stripe.import_data(in, _))
+      }
+      if( error.isDefined ) {
+        return error
+      }
+    }
+    None
+  }
+
+  /////////////////////////////////////////////////////////////////////
+  //
+  // Splitting up the units of work.
+  //
+  /////////////////////////////////////////////////////////////////////
+
+  // UOWs waiting to get split up while a previous one loads messages.
+  val blocked_uows = ListBuffer[StripedUOW]()
+  var loading_uow:StripedUOW = null
+
+  private def split(uow:StripedUOW):Unit = {
+    dispatch_queue.assertExecuting()
+    if( loading_uow != null ) {
+      // Keep them in order, a later UOW could dequeue what it enqueues.
+      blocked_uows += uow
+    } else {
+      uow.split
+    }
+  }
+
+  private def split_completed(uow:StripedUOW):Unit = {
+    dispatch_queue.assertExecuting()
+    if( loading_uow eq uow ) {
+      loading_uow = null
+      while( loading_uow == null && !blocked_uows.isEmpty ) {
+        blocked_uows.remove(0).split
+      }
+    }
+  }
+
+  class StripedUOW extends BaseRetained with StoreUOW {
+
+    private val records = HashMap[Long, MessageRecord]()
+    private val operations = ListBuffer[(QueueEntryRecord, Boolean)]()
+    private val map_actions = ListBuffer[(Buffer, Buffer)]()
+    private val flush_listeners = ListBuffer[(Boolean)=>Unit]()
+    private val complete_listeners = ListBuffer[(Boolean)=>Unit]()
+    private var asap = false
+    // The UOWs of the stripes, set once this UOW has been split up.
+    private var children:List[StoreUOW] = null
+
+    def store(record:MessageRecord):Long = {
+      record.key = to_global_key(STORED_MESSAGE_TAG, next_msg_key.getAndIncrement)
+      if( record.locator == null ) {
+        record.locator = new AtomicReference[Object]()
+      }
+      record.locator.set(new StripedLocator(stripes.length))
+      this.synchronized {
+        records.put(record.key, record)
+      }
+      pending_stores.put(record.key, this)
+      record.key
+    }
+
+    def enqueue(entry:QueueEntryRecord) = this.synchronized {
+      operations += ((entry, true))
+    }
+
+    def dequeue(entry:QueueEntryRecord) = this.synchronized {
+      operations += ((entry, false))
+    }
+
+    def put(key:Buffer, value:Buffer) = this.synchronized {
+      map_actions += ((key, value))
+    }
+
+    def complete_asap() = {
+      val uows = this.synchronized {
+        asap = true
+        children
+      }
+      if( uows != null ) {
+        uows.foreach(_.complete_asap())
+      }
+    }
+
+    def on_flush(callback:(Boolean)=>Unit) = {
+      val uows = this.synchronized {
+        if( children == null ) {
+          flush_listeners += callback
+        }
+        children
+      }
+      if( uows != null ) {
+        join(uows, (uow, cb) => uow.on_flush(cb), callback)
+      }
+    }
+
+    def on_complete(callback:(Boolean)=>Unit) = {
+      val uows = this.synchronized {
+        if( children == null ) {
+          complete_listeners += callback
+        }
+        children
+      }
+      if( uows != null ) {
+        join(uows, (uow, cb) => uow.on_complete(cb), callback)
+      }
+    }
+
+    /**
+     * Calls the callback once the callbacks registered on all the UOWs have
+     * been called.  It's only considered canceled if all of them were.
+     */
+    private def join(uows:List[StoreUOW], register:(StoreUOW, (Boolean)=>Unit)=>Unit, callback:(Boolean)=>Unit):Unit = {
+      if( uows.isEmpty ) {
+        callback(false)
+      } else {
+        val remaining = new AtomicInteger(uows.size)
+        val canceled = new AtomicBoolean(true)
+        uows.foreach { uow =>
+          register(uow, (uow_canceled:Boolean) => {
+            if( !uow_canceled ) {
+              canceled.set(false)
+            }
+            if( remaining.decrementAndGet() == 0 ) {
+              callback(canceled.get)
+            }
+          })
+        }
+      }
+    }
+
+    override def dispose = dispatch_queue {
+      StripedStore.this.split(this)
+    }
+
+    private[StripedStore] def split:Unit = {
+      val (enqueued, stored) = this.synchronized {
+        (operations.filter(_._2).map(_._1).toList, records.clone())
+      }
+
+      // Enqueues of messages which were not stored with this UOW need a
+      // copy of the message loaded from the stripe which has it.
+      val missing = enqueued.filterNot(x => stored.contains(x.message_key)).flatMap { entry =>
+        locator_of(entry).flatMap(_.any).map(x => (entry.message_key, x))
+      }.toMap
+
+      if( missing.isEmpty ) {
+        split_into_stripes(stored)
+      } else {
+        loading_uow = this
+        val remaining = new AtomicInteger(missing.size)
+        missing.foreach { case (message_key, (stripe, key, locator)) =>
+          stripes(stripe).load_message(key, locator) { record =>
+            dispatch_queue {
+              record.foreach(stored.put(message_key, _))
+              if( remaining.decrementAndGet() == 0 ) {
+                split_into_stripes(stored)
+                split_completed(this)
+              }
+            }
+          }
+        }
+      }
+    }
+
+    /**
+     * Replays the operations of this UOW on one UOW per stripe.  The
+     * stripe UOWs are committed independently of each other, see the
+     * class docs for the order they get committed in.
+     */
+    private def split_into_stripes(stored:HashMap[Long, MessageRecord]) = {
+      val uows = new Array[StoreUOW](stripes.length)
+      // The stripe UOWs which store a message, enqueue or put.
+      val writers = collection.mutable.HashSet[StoreUOW]()
+      def writer(stripe:Int) = {
+        val rc = uow(stripe)
+        writers += rc
+        rc
+      }
+      def uow(stripe:Int) = {
+        if( uows(stripe) == null ) {
+          uows(stripe) = stripes(stripe).create_uow()
+        }
+        uows(stripe)
+      }
+
+      // The copies of the messages stored in the stripes by this UOW.
+      val copies = HashMap[(Long, Int), (Long, AtomicReference[Object])]()
+      val (ops, puts) = this.synchronized {
+        (operations.toList, map_actions.toList)
+      }
+
+      ops.foreach { case (entry, is_enqueue) =>
+        val stripe = stripe_of(entry.queue_key)
+        if( is_enqueue ) {
+          val target = copies.get((entry.message_key, stripe)).orElse {
+            stored.get(entry.message_key).map { record =>
+              val copy = new MessageRecord
+              copy.protocol = record.protocol
+              copy.buffer = record.buffer
+              copy.direct_buffer = record.direct_buffer
+              copy.locator = new AtomicReference[Object]()
+              val key = writer(stripe).store(copy)
+              locator_of(entry).foreach(_.set(stripe, key, copy.locator))
+              copies.put((entry.message_key, stripe), (key, copy.locator))
+              (key, copy.locator)
+            }
+          }
+          target match {
+            case Some((key, locator)) =>
+              writer(stripe).enqueue(copy_entry(entry, key, locator))
+            case None =>
+              warn("Could not enqueue message %d to queue %d, the message could not be loaded", entry.message_key, entry.queue_key)
+          }
+        } else {
+          locator_of(entry).flatMap(_.get(stripe)) match {
+            case Some((key, locator)) =>
+              uow(stripe).dequeue(copy_entry(entry, key, locator))
+            case None =>
+              warn("Could not dequeue message %d from queue %d, it's not stored in the queue's stripe", entry.message_key, entry.queue_key)
+          }
+        }
+      }
+
+      puts.foreach { case (key, value) =>
+        writer(0).put(key, value)
+      }
+
+      val used = uows.filter(_ != null).toList
+      val (flushes, completes, flush_asap) = this.synchronized {
+        children = used
+        (flush_listeners.toList, complete_listeners.toList, asap)
+      }
+
+      join(used, (uow, cb) => uow.on_flush(cb), (canceled:Boolean) => {
+        stored.keys.foreach(pending_stores.remove(_, this))
+      })
+      flushes.foreach(join(used, (uow, cb) => uow.on_flush(cb), _))
+      completes.foreach(join(used, (uow, cb) => uow.on_complete(cb), _))
+      if( flush_asap ) {
+        used.foreach(_.complete_asap())
+      }
+
+      // The stripes which only dequeue are held back until the others have
+      // completed, so that a crash in between can only lead to a message
+      // being redelivered, never to it being lost.
+      val (writing, dequeuing) = used.partition(x => writers.contains(x))
+      writing.foreach(_.release())
+      if( writing.isEmpty || dequeuing.isEmpty ) {
+        dequeuing.foreach(_.release())
+      } else {
+        join(writing, (uow, cb) => uow.on_complete(cb), (canceled:Boolean) => {
+          dequeuing.foreach(_.release())
+        })
+      }
+    }
+  }
+
+}
@@ -219,6 +219,38 @@ abstract class StoreFunSuiteSupport extends FunSuiteSupport with BeforeAndAfterE
     }
   }
 
+  test("remove expired queue entries") {
+    val A = add_queue("A")
+    var batch = store.create_uow
+    List(1000L, 0L, 3000L, 2000L).zipWithIndex.foreach { case (expiration, i) =>
+      val record = entry(A, i+1, add_message(batch, "message "+(i+1)))
+      record.size = 10
+      record.expiration = expiration
+      batch.enqueue(record)
+    }
+    val tracker = new TaskTracker()
+    batch.on_complete(tracker.task("uow complete").run)
+    batch.release
+    tracker.await
+
+    val (removed, remaining) = sync_cb[(Seq[QueueEntryRecord], QueueEntryRange)] { cb =>
+      store.remove_expired_queue_entries(A, 0, Long.MaxValue, 2000) { (removed, remaining) =>
+        cb((removed, remaining))
+      }
+    }
+    expect(2)(removed.size)
+    expect(2)(remaining.count)
+    expect(20)(remaining.size)
+    expect(2)(remaining.first_entry_seq)
+    expect(3)(remaining.last_entry_seq)
+    expect(3000)(remaining.expiration)
+
+    val rc:Seq[QueueEntryRecord] = sync_cb( cb=> store.list_queue_entries(A,0, Long.MaxValue)(cb) )
+    expect(Seq(2L, 3L)) {
+      rc.map( _.entry_seq )
+    }
+  }
+
   test("batch completes after a delay") {x}
   def x = {
     val A = add_queue("A")
@@ -155,6 +155,26 @@ public class DestMetricsDTO {
     @XmlAttribute(name="nack_ts")
     public long nack_ts;
 
+    /**
+     * The number of messages that were dropped because a
+     * consumer could not keep up.
+     */
+    @XmlAttribute(name="drop_item_counter")
+    public long drop_item_counter;
+
+    /**
+     * The total size in bytes of messages that were dropped
+     * because a consumer could not keep up.
+     */
+    @XmlAttribute(name="drop_size_counter")
+    public long drop_size_counter;
+
+    /**
+     * The time stamp of when the last drop occurred.
+     */
+    @XmlAttribute(name="drop_ts")
+    public long drop_ts;
+
     /**
      * The total size in bytes of messages that are sitting in the queue.
      */
@@ -57,4 +57,18 @@ public class LinkDTO {
     @XmlAttribute(name="enqueue_tsr")
     public long enqueue_ts;
 
+    /**
+     * The number of messages that were dropped because the
+     * consumer could not keep up.
+     */
+    @XmlAttribute(name="drop_item_counter")
+    public long drop_item_counter;
+
+    /**
+     * The total size in bytes of the messages that were dropped
+     * because the consumer could not keep up.
+     */
+    @XmlAttribute(name="drop_size_counter")
+    public long drop_size_counter;
+
 }
\ No newline at end of file
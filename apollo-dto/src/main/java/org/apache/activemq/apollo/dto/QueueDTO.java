@@ -118,6 +118,38 @@ public class QueueDTO extends StringIdDTO {
     @XmlAttribute(name="max_enqueue_rate")
     public String max_enqueue_rate;
 
+    /**
+     * If set to true, then messages with a priority higher
+     * than the default priority of 4 are dispatched ahead of
+     * the messages that were enqueued before them.
+     */
+    @XmlAttribute(name="priority_dispatch")
+    public Boolean priority_dispatch;
+
+    /**
+     * If set to true, then messages which have the same
+     * JMSXGroupID property are all dispatched to the same
+     * consumer.
+     */
+    @XmlAttribute(name="message_groups")
+    public Boolean message_groups;
+
+    /**
+     * How many message groups are remembered once they don't have
+     * any messages delivered to their consumer.  The groups which
+     * were used the longest ago are released first.  Defaults to 1024.
+     */
+    @XmlAttribute(name="message_group_limit")
+    public Integer message_group_limit;
+
+    /**
+     * Picks which of the competing consumers gets a message.  Can be
+     * round_robin, least_outstanding, weighted or the class name of a
+     * custom dispatch policy.  Defaults to round_robin.
+     */
+    @XmlAttribute(name="dispatch_policy")
+    public String dispatch_policy;
+
     /**
      * To hold any other non-matching XML elements
      */
@@ -140,6 +172,14 @@ public class QueueDTO extends StringIdDTO {
             return false;
         if (max_enqueue_rate != null ? !max_enqueue_rate.equals(queueDTO.max_enqueue_rate) : queueDTO.max_enqueue_rate != null)
             return false;
+        if (priority_dispatch != null ? !priority_dispatch.equals(queueDTO.priority_dispatch) : queueDTO.priority_dispatch != null)
+            return false;
+        if (message_groups != null ? !message_groups.equals(queueDTO.message_groups) : queueDTO.message_groups != null)
+            return false;
+        if (message_group_limit != null ? !message_group_limit.equals(queueDTO.message_group_limit) : queueDTO.message_group_limit != null)
+            return false;
+        if (dispatch_policy != null ? !dispatch_policy.equals(queueDTO.dispatch_policy) : queueDTO.dispatch_policy != null)
+            return false;
         if (other != null ? !other.equals(queueDTO.other) : queueDTO.other != null) return false;
         if (persistent != null ? !persistent.equals(queueDTO.persistent) : queueDTO.persistent != null) return false;
         if (quota != null ? !quota.equals(queueDTO.quota) : queueDTO.quota != null) return false;
@@ -163,6 +203,10 @@ public class QueueDTO extends StringIdDTO {
         result = 31 * result + (fast_delivery_rate != null ? fast_delivery_rate.hashCode() : 0);
         result = 31 * result + (catchup_enqueue_rate != null ? catchup_enqueue_rate.hashCode() : 0);
         result = 31 * result + (max_enqueue_rate != null ? max_enqueue_rate.hashCode() : 0);
+        result = 31 * result + (priority_dispatch != null ? priority_dispatch.hashCode() : 0);
+        result = 31 * result + (message_groups != null ? message_groups.hashCode() : 0);
+        result = 31 * result + (message_group_limit != null ? message_group_limit.hashCode() : 0);
+        result = 31 * result + (dispatch_policy != null ? dispatch_policy.hashCode() : 0);
         result = 31 * result + (other != null ? other.hashCode() : 0);
         return result;
     }
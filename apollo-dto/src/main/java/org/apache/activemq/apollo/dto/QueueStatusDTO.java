@@ -42,6 +42,27 @@ public class QueueStatusDTO extends ServiceStatusDTO {
     @XmlElement
     public DestMetricsDTO metrics = new DestMetricsDTO();
 
+    /**
+     * The time spent in the swap/expiration maintenance runs of
+     * the queue over the last maintenance period.
+     */
+    @XmlElement(name="maintenance_latency")
+    public TimeMetricDTO maintenance_latency;
+
+    /**
+     * The number of queue entries visited by the swap/expiration
+     * maintenance runs of the queue over the last maintenance period.
+     */
+    @XmlElement(name="maintenance_visited")
+    public IntMetricDTO maintenance_visited;
+
+    /**
+     * The number of queue entries which are tracked in the
+     * expiration index.
+     */
+    @XmlElement(name="expiring_items")
+    public long expiring_items;
+
     /**
      * Status of the entries in the queue
      */
@@ -42,6 +42,16 @@ public abstract class StoreDTO {
     @XmlAttribute(name="flush_delay", required=false)
     public Long flush_delay;
 
+    /**
+     * The amount of time in milliseconds a unit of work which has to be
+     * persisted may wait for other units of work to get persisted with
+     * it.  The store measures how long persisting takes and how often
+     * units of work arrive and only waits when more are expected in time.
+     * 0 disables the adaptive group commits.
+     */
+    @XmlAttribute(name="group_commit_latency", required=false)
+    public Long group_commit_latency;
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -51,12 +61,16 @@ public abstract class StoreDTO {
 
         if (flush_delay != null ? !flush_delay.equals(storeDTO.flush_delay) : storeDTO.flush_delay != null)
             return false;
+        if (group_commit_latency != null ? !group_commit_latency.equals(storeDTO.group_commit_latency) : storeDTO.group_commit_latency != null)
+            return false;
 
         return true;
     }
 
     @Override
     public int hashCode() {
-        return flush_delay != null ? flush_delay.hashCode() : 0;
+        int result = flush_delay != null ? flush_delay.hashCode() : 0;
+        result = 31 * result + (group_commit_latency != null ? group_commit_latency.hashCode() : 0);
+        return result;
     }
 }
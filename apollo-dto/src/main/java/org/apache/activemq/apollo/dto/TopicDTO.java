@@ -46,6 +46,63 @@ public class TopicDTO extends StringIdDTO {
     @XmlAttribute(name="slow_consumer_policy")
     public String slow_consumer_policy;
 
+    /**
+     * The maximum size in bytes of the messages buffered for a
+     * slow consumer when using the drop_oldest, drop_newest, conflate
+     * or disconnect slow consumer policies.  If unset, it defaults
+     * to 1M.
+     */
+    @XmlAttribute(name="slow_consumer_max_size")
+    public String slow_consumer_max_size;
+
+    /**
+     * The maximum number of messages buffered for a slow consumer.
+     * If unset or set to zero, only the size is limited.
+     */
+    @XmlAttribute(name="slow_consumer_max_items")
+    public Integer slow_consumer_max_items;
+
+    /**
+     * The message header used by the conflate slow consumer policy
+     * to find the buffered messages that a new message replaces.
+     */
+    @XmlAttribute(name="conflation_key")
+    public String conflation_key;
+
+    /**
+     * If set, a consumer which has not accepted any messages for this
+     * many milliseconds while messages are buffered for it gets
+     * disconnected.
+     */
+    @XmlAttribute(name="slow_consumer_timeout")
+    public Long slow_consumer_timeout;
+
+    /**
+     * The message header that retained messages are keyed by.
+     * The topic remembers the last retained message of every
+     * value of the header.  If unset, the topic only remembers
+     * the last retained message.
+     */
+    @XmlAttribute(name="retain_key")
+    public String retain_key;
+
+    /**
+     * The maximum size in bytes of the retained messages kept in
+     * memory, the rest are only kept in the store.  If unset,
+     * it defaults to 1M.
+     */
+    @XmlAttribute(name="retain_max_size")
+    public String retain_max_size;
+
+    /**
+     * The number of dispatch queues the topic fans its messages
+     * out to consumers from.  If set to zero, then the producers
+     * dispatch to every consumer directly.  If unset, it defaults
+     * to zero.
+     */
+    @XmlAttribute(name="fan_out")
+    public Integer fan_out;
+
     /**
      * To hold any other non-matching XML elements
      */
@@ -65,6 +122,20 @@ public class TopicDTO extends StringIdDTO {
         if (other != null ? !other.equals(topicDTO.other) : topicDTO.other != null) return false;
         if (slow_consumer_policy != null ? !slow_consumer_policy.equals(topicDTO.slow_consumer_policy) : topicDTO.slow_consumer_policy != null)
             return false;
+        if (fan_out != null ? !fan_out.equals(topicDTO.fan_out) : topicDTO.fan_out != null)
+            return false;
+        if (slow_consumer_max_size != null ? !slow_consumer_max_size.equals(topicDTO.slow_consumer_max_size) : topicDTO.slow_consumer_max_size != null)
+            return false;
+        if (slow_consumer_max_items != null ? !slow_consumer_max_items.equals(topicDTO.slow_consumer_max_items) : topicDTO.slow_consumer_max_items != null)
+            return false;
+        if (conflation_key != null ? !conflation_key.equals(topicDTO.conflation_key) : topicDTO.conflation_key != null)
+            return false;
+        if (slow_consumer_timeout != null ? !slow_consumer_timeout.equals(topicDTO.slow_consumer_timeout) : topicDTO.slow_consumer_timeout != null)
+            return false;
+        if (retain_key != null ? !retain_key.equals(topicDTO.retain_key) : topicDTO.retain_key != null)
+            return false;
+        if (retain_max_size != null ? !retain_max_size.equals(topicDTO.retain_max_size) : topicDTO.retain_max_size != null)
+            return false;
 
         return true;
     }
@@ -74,6 +145,13 @@ public class TopicDTO extends StringIdDTO {
         int result = super.hashCode();
         result = 31 * result + (auto_delete_after != null ? auto_delete_after.hashCode() : 0);
         result = 31 * result + (slow_consumer_policy != null ? slow_consumer_policy.hashCode() : 0);
+        result = 31 * result + (fan_out != null ? fan_out.hashCode() : 0);
+        result = 31 * result + (slow_consumer_max_size != null ? slow_consumer_max_size.hashCode() : 0);
+        result = 31 * result + (slow_consumer_max_items != null ? slow_consumer_max_items.hashCode() : 0);
+        result = 31 * result + (conflation_key != null ? conflation_key.hashCode() : 0);
+        result = 31 * result + (slow_consumer_timeout != null ? slow_consumer_timeout.hashCode() : 0);
+        result = 31 * result + (retain_key != null ? retain_key.hashCode() : 0);
+        result = 31 * result + (retain_max_size != null ? retain_max_size.hashCode() : 0);
         result = 31 * result + (other != null ? other.hashCode() : 0);
         return result;
     }
@@ -49,6 +49,13 @@ public class VirtualHostDTO extends ServiceDTO {
     @XmlAttribute(name="auto_create_destinations")
     public Boolean auto_create_destinations;
 
+    /**
+     * How many of the destination paths looked up by clients are cached
+     * by each routing domain.  Defaults to 10000.
+     */
+    @XmlAttribute(name="path_cache_size")
+    public Integer path_cache_size;
+
     /**
      * Should queues be purged on startup?
      */
@@ -114,6 +121,8 @@ public class VirtualHostDTO extends ServiceDTO {
             return false;
         if (auto_create_destinations != null ? !auto_create_destinations.equals(that.auto_create_destinations) : that.auto_create_destinations != null)
             return false;
+        if (path_cache_size != null ? !path_cache_size.equals(that.path_cache_size) : that.path_cache_size != null)
+            return false;
         if (dsubs != null ? !dsubs.equals(that.dsubs) : that.dsubs != null) return false;
         if (heap_bypass != null ? !heap_bypass.equals(that.heap_bypass) : that.heap_bypass != null) return false;
         if (host_names != null ? !host_names.equals(that.host_names) : that.host_names != null) return false;
@@ -136,6 +145,7 @@ public class VirtualHostDTO extends ServiceDTO {
         result = 31 * result + (host_names != null ? host_names.hashCode() : 0);
         result = 31 * result + (store != null ? store.hashCode() : 0);
         result = 31 * result + (auto_create_destinations != null ? auto_create_destinations.hashCode() : 0);
+        result = 31 * result + (path_cache_size != null ? path_cache_size.hashCode() : 0);
         result = 31 * result + (purge_on_startup != null ? purge_on_startup.hashCode() : 0);
         result = 31 * result + (access_rules != null ? access_rules.hashCode() : 0);
         result = 31 * result + (topics != null ? topics.hashCode() : 0);
@@ -24,7 +24,7 @@ import org.fusesource.hawtbuf.proto.PBMessageFactory
 
 import org.apache.activemq.apollo.broker.store._
 import java.io._
-import java.util.concurrent.TimeUnit
+import java.util.concurrent.{Callable, ExecutionException, Executors, ThreadFactory, TimeUnit}
 import org.apache.activemq.apollo.util._
 import java.util.concurrent.locks.ReentrantReadWriteLock
 import org.fusesource.hawtdispatch._
@@ -36,9 +36,9 @@ import org.apache.activemq.apollo.util.ProcessSupport._
 import collection.mutable.{HashMap, ListBuffer}
 import org.apache.activemq.apollo.dto.JsonCodec
 import org.iq80.leveldb._
-import org.apache.activemq.apollo.broker.store.leveldb.RecordLog.LogInfo
+import org.apache.activemq.apollo.broker.store.leveldb.RecordLog.{LogInfo, LOG_HEADER_SIZE, LOG_HEADER_PREFIX}
 import org.apache.activemq.apollo.broker.store.PBSupport
-import java.util.concurrent.atomic.AtomicReference
+import java.util.concurrent.atomic.{AtomicLong, AtomicReference}
 import org.apache.activemq.apollo.broker.store.leveldb.HelperTrait.encode_key
 import org.fusesource.hawtbuf.{DataByteArrayInputStream, AsciiBuffer, Buffer, AbstractVarIntSupport}
 
@@ -54,10 +54,12 @@ object LevelDBClient extends Log {
   final val queue_entry_prefix = 'e'.toByte
   final val map_prefix = 'p'.toByte
   final val tmp_prefix = 't'.toByte
+  final val sender_prefix = 's'.toByte
 
   final val queue_prefix_array = Array(queue_prefix)
   final val map_prefix_array = Array(map_prefix)
   final val queue_entry_prefix_array = Array(queue_entry_prefix)
+  final val sender_prefix_array = Array(sender_prefix)
 
   final val dirty_index_key = bytes(":dirty")
   final val log_refs_index_key = bytes(":log-refs")
@@ -70,8 +72,22 @@ object LevelDBClient extends Log {
   final val LOG_ADD_QUEUE_ENTRY = 5.toByte
   final val LOG_REMOVE_QUEUE_ENTRY = 6.toByte
   final val LOG_MAP_ENTRY = 7.toByte
+  final val LOG_ADD_SENDER = 8.toByte
+  final val LOG_MOVE_QUEUE_ENTRY = 9.toByte
 
   final val LOG_SUFFIX = ".log"
+
+  // Records which are at most this many bytes apart get loaded with one read.
+  final val READ_GAP_LIMIT = 1024 * 4
+  // How much of the log gets read at once when replaying it.
+  final val REPLAY_CHUNK_SIZE = 1024 * 1024 * 4
+  // How much of the log the replay buffers in memory at most, not
+  // counting records which are larger than this by themselves.
+  final val REPLAY_BUFFER_LIMIT = REPLAY_CHUNK_SIZE * 8
+  // The largest read used to load several records at once.
+  final val READ_SPAN_LIMIT = 1024 * 1024
+  // How many read ahead spans are kept around.
+  final val READ_AHEAD_SPANS = 16
   final val INDEX_SUFFIX = ".index"
 
   def bytes(value: String) = value.getBytes("UTF-8")
@@ -190,7 +206,7 @@ class LevelDBClient(store: LevelDBStore) {
 
   def config = store.config
 
-  def directory = config.directory
+  def directory = store.directory
 
   /////////////////////////////////////////////////////////////////////
   //
@@ -203,7 +219,8 @@ class LevelDBClient(store: LevelDBStore) {
 
   var log: RecordLog = _
 
-  var snappy_compress_logs = false
+  var log_compressor: LogCompressor = _
+  var log_codecs = Map[Int, LogCodecStats]()
   var index: RichDB = _
   var index_options: Options = _
 
@@ -228,6 +245,30 @@ class LevelDBClient(store: LevelDBStore) {
     Option(config.log_size).map(MemoryPropertyEditor.parse(_)).getOrElse(1024 * 1024 * 100L)
   }
 
+  def index_snapshot_threshold = {
+    Option(config.index_snapshot_threshold).map(MemoryPropertyEditor.parse(_)).getOrElse(log_size / 4)
+  }
+
+  def log_compaction_threshold = {
+    Option(config.log_compaction_threshold).map(_.intValue).getOrElse(0)
+  }
+
+  def log_compaction_limit = {
+    Option(config.log_compaction_limit).map(MemoryPropertyEditor.parse(_)).getOrElse(1024 * 1024 * 10L)
+  }
+
+  def log_read_ahead = {
+    Option(config.log_read_ahead).map(MemoryPropertyEditor.parse(_).toInt).getOrElse(0)
+  }
+
+  def log_compression_threshold = {
+    Option(config.log_compression_threshold).map(MemoryPropertyEditor.parse(_).toInt).getOrElse(256)
+  }
+
+  def log_mmap_limit = {
+    Option(config.log_mmap_limit).map(MemoryPropertyEditor.parse(_)).getOrElse(0L)
+  }
+
   def start() = {
     import OptionSupport._
     directory.mkdirs()
@@ -265,9 +306,14 @@ class LevelDBClient(store: LevelDBStore) {
       case _ => CompressionType.SNAPPY
     }))
 
-    if (Option(config.log_compression).map(_.toLowerCase).getOrElse("snappy") == "snappy" && Snappy != null) {
-      snappy_compress_logs = true
-    }
+    tracking_locators = log_compaction_threshold > 0
+
+    log_codecs = Map(LogCodec.builtin.map(x => x.id -> new LogCodecStats(x)): _*)
+    log_compressor = LogCodec.create(Option(config.log_compression).getOrElse("snappy")).map { codec =>
+      val rc = new LogCompressor(codec, log_compression_threshold)
+      log_codecs += codec.id -> rc.stats
+      rc
+    }.getOrElse(null)
 
     index_options.cacheSize(Option(config.index_cache_size).map(MemoryPropertyEditor.parse(_).toLong).getOrElse(1024 * 1024 * 256L))
     index_options.logger(new Logger() {
@@ -278,6 +324,7 @@ class LevelDBClient(store: LevelDBStore) {
     log.sync = sync
     log.logSize = log_size
     log.verify_checksums = verify_checksums
+    log.mmap_limit = log_mmap_limit
     log.on_log_rotate = () => {
       // lets queue a request to checkpoint when
       // the logs rotate.. queue it on the GC thread since GC's lock
@@ -332,6 +379,7 @@ class LevelDBClient(store: LevelDBStore) {
     // Only keep the last snapshot..
     snapshots.filterNot(_._1 == last_index_snapshot_pos).foreach(_._2.recursive_delete)
     temp_index_file.recursive_delete // usually does not exist.
+    directory.list_files.filter(_.getName.startsWith("backup-")).foreach(_.recursive_delete)
 
     retry {
 
@@ -365,11 +413,12 @@ class LevelDBClient(store: LevelDBStore) {
         }
 
         // Update the index /w what was stored on the logs..
-        var pos = last_index_snapshot_pos;
+        val replay_start = last_index_snapshot_pos
+        val replay_end = log.appender_limit
 
         var last_reported_at = System.currentTimeMillis();
         var showing_progress = false
-        var last_reported_pos = 0L
+        var last_reported_pos = replay_start
 
         def remaining(eta: Double) = {
           if (eta > 60 * 60) {
@@ -381,93 +430,38 @@ class LevelDBClient(store: LevelDBStore) {
           }
         }
 
+        def show_progress(pos: Long) = {
+          val now = System.currentTimeMillis();
+          if (now > last_reported_at + 1000) {
+            val at = pos - replay_start
+            val total = replay_end - replay_start
+            val rate = (pos - last_reported_pos) * 1000.0 / (now - last_reported_at)
+            val eta = (total - at) / rate
+
+            System.out.print("Replaying recovery log: %f%% done (%,d/%,d bytes) @ %,.2f kb/s, %s remaining.     \r".format(
+              at * 100.0 / total, at, total, rate / 1024, remaining(eta)))
+            showing_progress = true;
+            last_reported_at = now
+            last_reported_pos = pos
+          }
+        }
+
         var replay_operations = 0
         val log_replay_duration = time {
-          while (pos < log.appender_limit) {
-
-            val now = System.currentTimeMillis();
-            if (now > last_reported_at + 1000) {
-              val at = pos - last_index_snapshot_pos
-              val total = log.appender_limit - last_index_snapshot_pos
-              val rate = (pos - last_reported_pos) * 1000.0 / (now - last_reported_at)
-              val eta = (total - at) / rate
-
-              System.out.print("Replaying recovery log: %f%% done (%,d/%,d bytes) @ %,.2f kb/s, %s remaining.     \r".format(
-                at * 100.0 / total, at, total, rate / 1024, remaining(eta)))
-              showing_progress = true;
-              last_reported_at = now
-              last_reported_pos = pos
-            }
-
-            log.read(pos).map {
-              case (kind, data, next_pos) =>
-                kind match {
-                  case LOG_ADD_QUEUE_ENTRY =>
-                    replay_operations += 1
-                    val record = QueueEntryPB.FACTORY.parseUnframed(data)
-
-                    val index_record = record.copy()
-                    index_record.clearQueueKey()
-                    index_record.clearQueueSeq()
-                    index.put(encode_key(queue_entry_prefix, record.getQueueKey, record.getQueueSeq), index_record.freeze().toUnframedBuffer)
-
-                    log_ref_increment(decode_vlong(record.getMessageLocator))
-
-                  case LOG_REMOVE_QUEUE_ENTRY =>
-                    replay_operations += 1
-                    index.get(data, new ReadOptions).foreach {
-                      value =>
-                        val record = QueueEntryPB.FACTORY.parseUnframed(value)
-                        val pos = decode_vlong(record.getMessageLocator)
-                        pos.foreach(log_ref_decrement(_))
-                        index.delete(data)
-                    }
-
-                  case LOG_ADD_QUEUE =>
-                    replay_operations += 1
-                    val record = QueuePB.FACTORY.parseUnframed(data)
-                    index.put(encode_key(queue_prefix, record.getKey), data)
-
-                  case LOG_REMOVE_QUEUE =>
-                    replay_operations += 1
-                    val ro = new ReadOptions
-                    ro.fillCache(false)
-                    ro.verifyChecksums(verify_checksums)
-                    val queue_key = decode_vlong(data)
-                    index.delete(encode_key(queue_prefix, queue_key))
-                    index.cursor_prefixed(encode_key(queue_entry_prefix, queue_key), ro) {
-                      (key, value) =>
-                        index.delete(key)
-
-                        // Figure out what log file that message entry was in so we can,
-                        // decrement the log file reference.
-                        val record = QueueEntryPB.FACTORY.parseUnframed(value)
-                        val pos = decode_vlong(record.getMessageLocator)
-                        log_ref_decrement(pos)
-                        true
-                    }
-
-                  case LOG_MAP_ENTRY =>
-                    replay_operations += 1
-                    val entry = MapEntryPB.FACTORY.parseUnframed(data)
-                    if (entry.getValue == null) {
-                      index.delete(encode_key(map_prefix, entry.getKey))
-                    } else {
-                      index.put(encode_key(map_prefix, entry.getKey), entry.getValue.toByteArray)
-                    }
-                  case _ =>
-                  // Skip records which don't require index updates.
-                }
-                pos = next_pos
-            }
-          }
+          replay_operations = replay_log(replay_start, replay_end)(show_progress)
           if (replay_operations > 0) {
             snapshot_index
           }
         }
 
-        if (showing_progress) {
-          System.out.println("Replaying recovery log: done. %d operations recovered in %s".format(replay_operations, log_replay_duration.toDouble / TimeUnit.SECONDS.toNanos(1)));
+        if (replay_end > replay_start) {
+          val seconds = log_replay_duration.toDouble / TimeUnit.SECONDS.toNanos(1)
+          val summary = "%d operations recovered from %,d bytes of log in %.2f secs @ %,.2f kb/s".format(
+            replay_operations, replay_end - replay_start, seconds, (replay_end - replay_start) / 1024 / seconds)
+          if (showing_progress) {
+            System.out.println("Replaying recovery log: done. " + summary);
+          }
+          info("Replayed the recovery log: " + summary)
         }
 
       } catch {
@@ -477,6 +471,221 @@ class LevelDBClient(store: LevelDBStore) {
           throw e;
       }
     }
+    load_senders
+    queue_summaries.clear()
+  }
+
+  /**
+   * Replays the log records between the start and end positions into
+   * the index.  The log is read in large chunks and the records of each
+   * chunk get their checksums verified and get parsed by a pool of threads
+   * while the index updates are applied in log order on the calling thread.
+   *
+   * @return the number of replayed operations.
+   */
+  def replay_log(start: Long, end: Long)(progress: (Long) => Unit): Int = {
+    if (start >= end) {
+      return 0
+    }
+    val threads = replay_threads
+    val executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      def newThread(r: Runnable) = {
+        val rc = new Thread(r, store.store_kind + " store log replay")
+        rc.setDaemon(true)
+        rc
+      }
+    })
+    val pending = new ju.LinkedList[(ju.concurrent.Future[(Seq[() => Unit], Long)], Long)]()
+    var buffered = 0L
+    var operations = 0
+
+    def apply_next = {
+      val (future, size) = pending.removeFirst()
+      val (updates, chunk_end) = try {
+        future.get()
+      } catch {
+        case e: ExecutionException => throw e.getCause
+      }
+      buffered -= size
+      updates.foreach(_())
+      operations += updates.size
+      progress(chunk_end)
+    }
+
+    try {
+      var pos = start
+      while (pos < end) {
+        val (records, next_pos) = read_replay_chunk(pos, end)
+        val size = next_pos - pos
+        pending.add((executor.submit(new Callable[(Seq[() => Unit], Long)] {
+          def call = {
+            val updates = records.flatMap {
+              case (kind, data, checksum) =>
+                checksum.foreach { expected =>
+                  if (verify_checksums && expected != log.checksum(data)) {
+                    throw new IOException("checksum does not match")
+                  }
+                }
+                Option(replay_record(kind, data))
+            }
+            (updates, next_pos)
+          }
+        }), size))
+        buffered += size
+        pos = next_pos
+        // Bound how much of the log gets buffered in memory.
+        while (buffered >= REPLAY_BUFFER_LIMIT) {
+          apply_next
+        }
+      }
+      while (!pending.isEmpty) {
+        apply_next
+      }
+    } finally {
+      executor.shutdownNow()
+    }
+    operations
+  }
+
+  // There is no point in having more threads than buffered chunks.
+  def replay_threads = Runtime.getRuntime.availableProcessors().min(REPLAY_BUFFER_LIMIT / REPLAY_CHUNK_SIZE).max(1)
+
+  /**
+   * Reads the records of the next replay chunk.  A chunk holds the whole
+   * records found in the next REPLAY_CHUNK_SIZE bytes of the log file
+   * holding the start position.  The records get paired with their
+   * expected checksum, unless the checksum has already been verified.
+   *
+   * @return the records and the position of the record which follows them.
+   */
+  def read_replay_chunk(start: Long, end: Long): (Seq[(Byte, Buffer, Option[Int])], Long) = {
+    val info = log.log_info(start).getOrElse(throw new IOException("No log file holds position: " + start))
+    val limit = log.log_limit(info).min(end)
+    val span = log.read_span(start, (limit - start).min(REPLAY_CHUNK_SIZE).toInt).getOrElse(
+      throw new IOException("Could not read the log at position: " + start))
+
+    val records = ListBuffer[(Byte, Buffer, Option[Int])]()
+    var offset = 0
+    var complete = true
+    while (complete && offset + LOG_HEADER_SIZE <= span.length) {
+      val is = new DataByteArrayInputStream(new Buffer(span.data, span.offset + offset, LOG_HEADER_SIZE))
+      if (is.readByte() != LOG_HEADER_PREFIX) {
+        throw new IOException("invalid record position: " + (start + offset))
+      }
+      val kind = is.readByte()
+      val checksum = is.readInt()
+      val length = is.readInt()
+      if (offset + LOG_HEADER_SIZE + length <= span.length) {
+        records += ((kind, new Buffer(span.data, span.offset + offset + LOG_HEADER_SIZE, length), Some(checksum)))
+        offset += LOG_HEADER_SIZE + length
+      } else {
+        complete = false
+      }
+    }
+
+    if (offset == 0) {
+      // The record is bigger than a chunk, read it by itself.
+      log.read(start) match {
+        case Some((kind, data, next_pos)) => (Seq((kind, data, None)), next_pos)
+        case None => throw new IOException("Could not read the log at position: " + start)
+      }
+    } else {
+      (records, start + offset)
+    }
+  }
+
+  /**
+   * Parses a log record for the replay.  This runs on the replay threads,
+   * so the returned function does the index updates which have to be
+   * applied in log order.  Returns null for records which don't require
+   * index updates.
+   */
+  def replay_record(kind: Byte, data: Buffer): () => Unit = kind match {
+    case LOG_ADD_QUEUE_ENTRY | LOG_MOVE_QUEUE_ENTRY =>
+      val record = QueueEntryPB.FACTORY.parseUnframed(data)
+      val key = encode_key(queue_entry_prefix, record.getQueueKey, record.getQueueSeq)
+      val index_record = record.copy()
+      index_record.clearQueueKey()
+      index_record.clearQueueSeq()
+      val value = index_record.freeze().toUnframedBuffer
+      val pos = decode_vlong(record.getMessageLocator)
+      val moved = kind == LOG_MOVE_QUEUE_ENTRY
+      () => {
+        if (moved) {
+          // Log compaction moved the entry's message, so the entry
+          // no longer references the previous position.
+          index.get(key, new ReadOptions).foreach { value =>
+            log_ref_decrement(decode_locator(QueueEntryPB.FACTORY.parseUnframed(value).getMessageLocator)._1)
+          }
+        }
+        index.put(key, value)
+        log_ref_increment(pos)
+      }
+
+    case LOG_REMOVE_QUEUE_ENTRY =>
+      val key = data.toByteArray
+      () => {
+        index.get(key, new ReadOptions).foreach {
+          value =>
+            val record = QueueEntryPB.FACTORY.parseUnframed(value)
+            val pos = decode_vlong(record.getMessageLocator)
+            pos.foreach(log_ref_decrement(_))
+            index.delete(key)
+        }
+      }
+
+    case LOG_ADD_QUEUE =>
+      val record = QueuePB.FACTORY.parseUnframed(data)
+      val key = encode_key(queue_prefix, record.getKey)
+      () => {
+        index.put(key, data)
+      }
+
+    case LOG_REMOVE_QUEUE =>
+      val queue_key = decode_vlong(data)
+      () => {
+        val ro = new ReadOptions
+        ro.fillCache(false)
+        ro.verifyChecksums(verify_checksums)
+        index.delete(encode_key(queue_prefix, queue_key))
+        index.cursor_prefixed(encode_key(queue_entry_prefix, queue_key), ro) {
+          (key, value) =>
+            index.delete(key)
+
+            // Figure out what log file that message entry was in so we can,
+            // decrement the log file reference.
+            val record = QueueEntryPB.FACTORY.parseUnframed(value)
+            val pos = decode_vlong(record.getMessageLocator)
+            log_ref_decrement(pos)
+            true
+        }
+      }
+
+    case LOG_MAP_ENTRY =>
+      val entry = MapEntryPB.FACTORY.parseUnframed(data)
+      val key = encode_key(map_prefix, entry.getKey)
+      if (entry.getValue == null) {
+        () => {
+          index.delete(key)
+        }
+      } else {
+        val value = entry.getValue.toByteArray
+        () => {
+          index.put(key, value)
+        }
+      }
+
+    case LOG_ADD_SENDER =>
+      val entry = MapEntryPB.FACTORY.parseUnframed(data)
+      val key = entry.getKey.toByteArray
+      val value = entry.getValue.toByteArray
+      () => {
+        index.put(key, value)
+      }
+
+    case _ =>
+      // Skip records which don't require index updates.
+      null
   }
 
   def check_index_integrity(index: RichDB) = {
@@ -700,6 +909,96 @@ class LevelDBClient(store: LevelDBStore) {
     }
   }
 
+  /////////////////////////////////////////////////////////////////////
+  //
+  // Online backups: the index snapshot and the sealed log files are
+  // hard linked while the write thread is held, everything else happens
+  // while the store keeps running.
+  //
+  /////////////////////////////////////////////////////////////////////
+
+  val backup_counter = new AtomicLong()
+
+  def backup_staging_dir(id: Long) = directory / ("backup-" + id)
+
+  /**
+   * Hard links a consistent image of the store into a new staging
+   * directory.  Must be called from the write thread.  The active log
+   * file is not linked since it keeps changing, the returned length is
+   * how much of it belongs in the image.
+   *
+   * @return the staging directory, the active log file and the length to copy from it.
+   */
+  def stage_backup(): (File, File, Long) = {
+    snapshot_index
+    val staging = backup_staging_dir(backup_counter.incrementAndGet())
+    staging.mkdirs()
+
+    val snapshot_dir = snapshot_index_file(last_index_snapshot_pos)
+    if (snapshot_dir.isDirectory) {
+      val target = staging / snapshot_dir.getName
+      target.mkdirs()
+      snapshot_dir.list_files.foreach { file =>
+        link(file, target / file.getName)
+      }
+    }
+
+    import collection.JavaConversions._
+    val active_start = log.appender_start
+    log.log_infos.values.filter(_.position < active_start).foreach { info =>
+      link(info.file, staging / info.file.getName)
+    }
+    (staging, log.current_appender.file, last_index_snapshot_pos - active_start)
+  }
+
+  /**
+   * Moves a staged backup into the target directory and copies the part
+   * of the active log file which belongs to the image.  The staged files
+   * are just renamed when the target is on the same file system, otherwise
+   * they get copied.
+   */
+  def finish_backup(target: File, staged: (File, File, Long)): Option[String] = {
+    val (staging, active_log, active_length) = staged
+    try {
+      if (target.exists() && !target.list_files.isEmpty) {
+        return Some("The backup directory is not empty: " + target)
+      }
+      target.mkdirs()
+
+      def transfer(source: File, dest: File): Unit = {
+        if (source.isDirectory) {
+          dest.mkdirs()
+          source.list_files.foreach(x => transfer(x, dest / x.getName))
+        } else if (!source.renameTo(dest)) {
+          source.copy_to(dest)
+        }
+      }
+      staging.list_files.foreach(x => transfer(x, target / x.getName))
+
+      using(new FileInputStream(active_log)) { is =>
+        using(new FileOutputStream(target / active_log.getName)) { os =>
+          var pos = 0L
+          while (pos < active_length) {
+            val count = is.getChannel.transferTo(pos, active_length - pos, os.getChannel)
+            if (count <= 0) {
+              throw new IOException("Could not copy the active log file: " + active_log)
+            }
+            pos += count
+          }
+        }
+      }
+
+      (target / "store-version.txt").write_text(STORE_SCHEMA_PREFIX + STORE_SCHEMA_VERSION)
+      None
+    } catch {
+      case e: Exception =>
+        debug(e, "Backup failed")
+        Some(e.getMessage)
+    } finally {
+      staging.recursive_delete
+    }
+  }
+
   def retry[T](func: => T): T = {
     var error: Throwable = null
     var rc: Option[T] = None
@@ -739,6 +1038,15 @@ class LevelDBClient(store: LevelDBStore) {
       log.close
       directory.list_files.foreach(_.recursive_delete)
       log_refs.clear()
+      live_locators.clear()
+      read_ahead_spans.synchronized {
+        read_ahead_spans.clear()
+      }
+      compacted_logs.clear()
+      senders.clear()
+      sender_ids.clear()
+      next_sender_id = 1
+      queue_summaries.clear()
     } finally {
       retry {
         log.open
@@ -803,6 +1111,9 @@ class LevelDBClient(store: LevelDBStore) {
               log_ref_decrement(pos)
               true
           }
+          queue_summaries.synchronized {
+            queue_summaries.remove(queue_key)
+          }
       }
     }
     callback.run
@@ -814,6 +1125,8 @@ class LevelDBClient(store: LevelDBStore) {
         appender =>
 
           var sync_needed = false
+          // The summaries are only updated once the batch is in the index.
+          val summary_updates = ListBuffer[() => Unit]()
           index.write() {
             batch =>
               uows.foreach {
@@ -845,7 +1158,7 @@ class LevelDBClient(store: LevelDBStore) {
                         pb.setProtocol(message_record.protocol)
 
                         val body = if(message_record.compressed!=null) {
-                          pb.setCompression(1)
+                          pb.setCompression(message_record.compression)
                           message_record.compressed
                         } else {
                           message_record.buffer
@@ -855,6 +1168,7 @@ class LevelDBClient(store: LevelDBStore) {
                         val (pos, log_info) = appender.append(LOG_ADD_MESSAGE, header, body)
                         locator = (pos, header.length + body.length)
                         message_record.locator.set(locator);
+                        track_locator(message_record.locator)
                       }
 
                       action.dequeues.foreach {
@@ -869,6 +1183,7 @@ class LevelDBClient(store: LevelDBStore) {
                           appender.append(LOG_REMOVE_QUEUE_ENTRY, key)
                           batch.delete(key)
                           log_ref_decrement(pos, log_info)
+                          summary_updates += (() => queue_summary_remove(entry.queue_key, entry.entry_seq))
                       }
 
                       var locator_buffer: Buffer = null
@@ -881,10 +1196,12 @@ class LevelDBClient(store: LevelDBStore) {
                           }
 
                           entry.message_locator.set(locator)
+                          track_locator(entry.message_locator)
 
                           val log_record = new QueueEntryPB.Bean
-                          // TODO: perhaps we should normalize the sender to make the index entries more compact.
-                          log_record.setSender(entry.sender)
+                          if (entry.sender != null) {
+                            log_record.setSenderId(sender_id(entry.sender, appender))
+                          }
                           log_record.setMessageLocator(locator_buffer)
                           log_record.setQueueKey(entry.queue_key)
                           log_record.setQueueSeq(entry.entry_seq)
@@ -902,6 +1219,7 @@ class LevelDBClient(store: LevelDBStore) {
                           index_record.clearQueueKey()
                           index_record.clearQueueSeq()
                           batch.put(encode_key(queue_entry_prefix, entry.queue_key, entry.entry_seq), index_record.freeze().toUnframedBuffer)
+                          summary_updates += (() => queue_summary_add(entry.queue_key, entry.entry_seq, entry.size, entry.expiration))
 
                           // Increment it.
                           log_ref_increment(pos, log_info)
@@ -913,6 +1231,9 @@ class LevelDBClient(store: LevelDBStore) {
                   }
               }
           }
+          queue_summaries.synchronized {
+            summary_updates.foreach(_())
+          }
           if (sync_needed && sync) {
             appender.flush
             appender.force
@@ -931,29 +1252,37 @@ class LevelDBClient(store: LevelDBStore) {
     ro.verifyChecksums(verify_checksums)
     ro.fillCache(true)
 
+    def load(requests: Seq[(Long, AtomicReference[Object], (Option[MessageRecord]) => Unit)]) = {
+      val locators = requests.map(_._2.get().asInstanceOf[(Long, Int)])
+      val records = read_records(locators)
+      requests.zip(records).map {
+        case (x, data) =>
+          val (_, locator, _) = x
+          val record = metric_load_from_index_counter.time {
+            data.map { data =>
+              val is = new DataByteArrayInputStream(data)
+              val pb = MessagePB.FACTORY.parseFramed(is)
+              val rc = PBSupport.from_pb(pb)
+              rc.buffer = is.readBuffer(is.available())
+              rc.locator = locator
+              if(pb.getCompression != 0) {
+                rc.buffer = uncompress(pb.getCompression, rc.buffer)
+              }
+              rc
+            }
+          }
+          (x, record)
+      }
+    }
+
     val missing = retry_using_index {
       index.snapshot {
         snapshot =>
           ro.snapshot(snapshot)
-          requests.flatMap {
-            x =>
-              val (_, locator, callback) = x
-              val record = metric_load_from_index_counter.time {
-                val (pos, len) = locator.get().asInstanceOf[(Long, Int)]
-                log.read(pos, len).map { data =>
-                  val is = new DataByteArrayInputStream(data)
-                  val pb = MessagePB.FACTORY.parseFramed(is)
-                  val rc = PBSupport.from_pb(pb)
-                  rc.buffer = is.readBuffer(is.available())
-                  rc.locator = locator
-                  if(pb.getCompression == 1) {
-                    rc.buffer = Snappy.uncompress(rc.buffer)
-                  }
-                  rc
-                }
-              }
+          load(requests).flatMap {
+            case (x, record) =>
               if (record.isDefined) {
-                callback(record)
+                x._3(record)
                 None
               } else {
                 Some(x)
@@ -971,27 +1300,126 @@ class LevelDBClient(store: LevelDBStore) {
       index.snapshot {
         snapshot =>
           ro.snapshot(snapshot)
-          missing.foreach {
-            x =>
-              val (_, locator, callback) = x
-              val record: Option[MessageRecord] = metric_load_from_index_counter.time {
-                val (pos, len) = locator.get().asInstanceOf[(Long, Int)]
-                log.read(pos, len).map { data=>
-                  val is = new DataByteArrayInputStream(data)
-                  val pb = MessagePB.FACTORY.parseFramed(is)
-                  val rc = PBSupport.from_pb(pb)
-                  rc.buffer = is.readBuffer(is.available())
-                  rc.locator = locator
-                  if(pb.getCompression == 1) {
-                    rc.buffer = Snappy.uncompress(rc.buffer)
+          load(missing).foreach {
+            case (x, record) =>
+              x._3(record)
+          }
+      }
+    }
+  }
+
+  // Spans of sealed log files which were read past the requested records.
+  val read_ahead_spans = new LRUCache[Long, Buffer](READ_AHEAD_SPANS)
+
+  private def cached_record(pos: Long, len: Int): Option[Buffer] = {
+    val end = pos + LOG_HEADER_SIZE + len
+    read_ahead_spans.synchronized {
+      import collection.JavaConversions._
+      read_ahead_spans.entrySet().find { entry =>
+        entry.getKey <= pos && end <= entry.getKey + entry.getValue.length
+      }.map(entry => (entry.getKey.longValue, entry.getValue))
+    }.flatMap {
+      case (start, span) => slice_record(span, start, pos, len)
+    }
+  }
+
+  private def slice_record(span: Buffer, span_position: Long, pos: Long, len: Int): Option[Buffer] = {
+    val offset = span.offset + (pos - span_position).toInt
+    if (verify_checksums) {
+      val header = new Buffer(span.data, offset, LOG_HEADER_SIZE).bigEndianEditor()
+      val prefix = header.readByte()
+      val kind = header.readByte()
+      val expectedChecksum = header.readInt()
+      val expectedLength = header.readInt()
+      val data = new Buffer(span.data, offset + LOG_HEADER_SIZE, len)
+      if (prefix != LOG_HEADER_PREFIX || (expectedLength == len && expectedChecksum != log.checksum(data))) {
+        // Let the regular read report the problem.
+        return log.read(pos, len)
+      }
+    }
+    // Copy it out so the loaded message does not hold on to the whole span.
+    Some(new Buffer(span.data, offset + LOG_HEADER_SIZE, len).deepCopy())
+  }
+
+  /**
+   * Reads the data of the records at the given locators.  The records get
+   * read in log order and records which are close to each other in the same
+   * log file are read with a single read.  If log_read_ahead is set, the
+   * reads of sealed log files continue past the last requested record since
+   * the records a queue loads next usually follow in the log.
+   */
+  def read_records(locators: Seq[(Long, Int)]): Seq[Option[Buffer]] = {
+    val rc = new Array[Option[Buffer]](locators.size)
+    val read_ahead = log_read_ahead
+    val pending = ListBuffer[((Long, Int), Int)]()
+    locators.zipWithIndex.foreach {
+      case (locator, i) =>
+        val cached = if (read_ahead > 0) cached_record(locator._1, locator._2) else None
+        if (cached.isDefined) {
+          rc(i) = cached
+        } else {
+          pending += ((locator, i))
+        }
+    }
+
+    val sorted = pending.sortBy(_._1._1).toArray
+    var i = 0
+    while (i < sorted.length) {
+      val ((start, start_len), start_index) = sorted(i)
+      var end = start + LOG_HEADER_SIZE + start_len
+      var j = i + 1
+      log.log_info(start) match {
+        case None =>
+          rc(start_index) = None
+        case Some(info) =>
+          val limit = log.log_limit(info)
+          var grouping = end <= limit
+          while (grouping && j < sorted.length) {
+            val ((pos, len), _) = sorted(j)
+            val record_end = pos + LOG_HEADER_SIZE + len
+            if (pos <= end + READ_GAP_LIMIT && record_end <= limit && record_end - start <= READ_SPAN_LIMIT) {
+              end = end.max(record_end)
+              j += 1
+            } else {
+              grouping = false
+            }
+          }
+
+          val is_sealed = info.position != log.appender_start
+          val span_end = if (read_ahead > 0 && is_sealed && end <= limit) {
+            (end + read_ahead).min(limit)
+          } else {
+            end
+          }
+
+          if (j == i + 1 && span_end == end) {
+            rc(start_index) = log.read(start, start_len)
+          } else {
+            log.read_span(start, (span_end - start).toInt) match {
+              case Some(span) =>
+                if (span_end > end) {
+                  read_ahead_spans.synchronized {
+                    read_ahead_spans.put(start, span)
                   }
-                  rc
                 }
-              }
-              callback(record)
+                var k = i
+                while (k < j) {
+                  val ((pos, len), index) = sorted(k)
+                  rc(index) = slice_record(span, start, pos, len)
+                  k += 1
+                }
+              case None =>
+                var k = i
+                while (k < j) {
+                  rc(sorted(k)._2) = None
+                  k += 1
+                }
+            }
           }
       }
+      i = j
     }
+    rc
   }
 
   def list_queues: Seq[Long] = {
@@ -1021,81 +1449,100 @@ class LevelDBClient(store: LevelDBStore) {
     }
   }
 
+  /**
+   * Served from the in memory queue summary so that restoring a queue
+   * again does not have to scan all of its entries in the index.
+   */
   def listQueueEntryGroups(queue_key: Long, limit: Int): Seq[QueueEntryRange] = {
-    var rc = ListBuffer[QueueEntryRange]()
+    queue_summary(queue_key).ranges(limit)
+  }
+
+  def getQueueEntries(queue_key: Long, firstSeq: Long, lastSeq: Long): Seq[QueueEntryRecord] = {
+    var rc = ListBuffer[QueueEntryRecord]()
     val ro = new ReadOptions
     ro.verifyChecksums(verify_checksums)
+    // Entries are only read once when the queue pages them in, caching
+    // them would just push more useful blocks out of the cache.
     ro.fillCache(false)
-    retry_using_index {
-      index.snapshot {
-        snapshot =>
-          ro.snapshot(snapshot)
-
-          var group: QueueEntryRange = null
-          index.cursor_prefixed(encode_key(queue_entry_prefix, queue_key), ro) {
-            (key, value) =>
-
-              val (_, _, current_key) = decode_long_long_key(key)
-              if (group == null) {
-                group = new QueueEntryRange
-                group.first_entry_seq = current_key
-              }
-
-              val entry = QueueEntryPB.FACTORY.parseUnframed(value)
-              val pos = decode_vlong(entry.getMessageLocator)
-
-              group.last_entry_seq = current_key
-              group.count += 1
-              group.size += entry.getSize
-
-              if (group.expiration == 0) {
-                group.expiration = entry.getExpiration
-              } else {
-                if (entry.getExpiration != 0) {
-                  group.expiration = entry.getExpiration.min(group.expiration)
-                }
-              }
-
-              if (group.count == limit) {
-                rc += group
-                group = null
-              }
-
-              true // to continue cursoring.
-          }
-          if (group != null) {
-            rc += group
-          }
+    // A compaction which completes while the entries are being read
+    // could have moved messages before their locators were tracked.
+    var epoch = 0L
+    do {
+      epoch = compaction_epoch.get
+      rc = ListBuffer[QueueEntryRecord]()
+      retry_using_index {
+        index.snapshot {
+          snapshot =>
+            ro.snapshot(snapshot)
+            val start = encode_key(queue_entry_prefix, queue_key, firstSeq)
+            val end = encode_key(queue_entry_prefix, queue_key, lastSeq + 1)
+            index.cursor_range(start, end, ro) {
+              (key, value) =>
+                val (_, _, queue_seq) = decode_long_long_key(key)
+                val record = QueueEntryPB.FACTORY.parseUnframed(value)
+                val entry = decode_queue_entry(record)
+                entry.queue_key = queue_key
+                entry.entry_seq = queue_seq
+                entry.message_locator = new AtomicReference[Object](decode_locator(record.getMessageLocator))
+                track_locator(entry.message_locator)
+                rc += entry
+                true
+            }
+        }
       }
-    }
+    } while (epoch != compaction_epoch.get)
     rc
   }
 
-  def getQueueEntries(queue_key: Long, firstSeq: Long, lastSeq: Long): Seq[QueueEntryRecord] = {
-    var rc = ListBuffer[QueueEntryRecord]()
-    val ro = new ReadOptions
-    ro.verifyChecksums(verify_checksums)
-    ro.fillCache(true)
+  def removeExpiredQueueEntries(queue_key: Long, firstSeq: Long, lastSeq: Long, now: Long): (Seq[QueueEntryRecord], QueueEntryRange) = {
     retry_using_index {
-      index.snapshot {
-        snapshot =>
-          ro.snapshot(snapshot)
-          val start = encode_key(queue_entry_prefix, queue_key, firstSeq)
-          val end = encode_key(queue_entry_prefix, queue_key, lastSeq + 1)
-          index.cursor_range(start, end, ro) {
-            (key, value) =>
-              val (_, _, queue_seq) = decode_long_long_key(key)
-              val record = QueueEntryPB.FACTORY.parseUnframed(value)
-              val entry = PBSupport.from_pb(record)
-              entry.queue_key = queue_key
-              entry.entry_seq = queue_seq
-              entry.message_locator = new AtomicReference[Object](decode_locator(record.getMessageLocator))
-              rc += entry
-              true
+      val removed = ListBuffer[QueueEntryRecord]()
+      val remaining = new QueueEntryRange
+      val ro = new ReadOptions
+      ro.verifyChecksums(verify_checksums)
+      ro.fillCache(false)
+      log.appender {
+        appender =>
+          index.write() {
+            batch =>
+              val start = encode_key(queue_entry_prefix, queue_key, firstSeq)
+              val end = encode_key(queue_entry_prefix, queue_key, lastSeq + 1)
+              index.cursor_range(start, end, ro) {
+                (key, value) =>
+                  val (_, _, queue_seq) = decode_long_long_key(key)
+                  val record = QueueEntryPB.FACTORY.parseUnframed(value)
+                  val expiration = record.getExpiration
+                  if (expiration != 0 && expiration <= now) {
+                    val entry = decode_queue_entry(record)
+                    entry.queue_key = queue_key
+                    entry.entry_seq = queue_seq
+                    removed += entry
+
+                    appender.append(LOG_REMOVE_QUEUE_ENTRY, key)
+                    batch.delete(key)
+                    log_ref_decrement(decode_locator(record.getMessageLocator)._1)
+                  } else {
+                    if (remaining.count == 0) {
+                      remaining.first_entry_seq = queue_seq
+                    }
+                    remaining.last_entry_seq = queue_seq
+                    remaining.count += 1
+                    remaining.size += record.getSize
+                    if (remaining.expiration == 0) {
+                      remaining.expiration = expiration
+                    } else if (expiration != 0) {
+                      remaining.expiration = expiration.min(remaining.expiration)
+                    }
+                  }
+                  true // to continue cursoring.
+              }
           }
       }
+      queue_summaries.synchronized {
+        removed.foreach(entry => queue_summary_remove(queue_key, entry.entry_seq))
+      }
+      (removed, remaining)
     }
-    rc
   }
 
   def getLastMessageKey: Long = 0
@@ -1111,7 +1558,8 @@ class LevelDBClient(store: LevelDBStore) {
     retry_using_index {
       index.cursor_prefixed(encode_key(map_prefix, prefix)) {
         (key, value) =>
-          rc += new Buffer(key) -> new Buffer(value)
+          // strip the map_prefix so the keys are the ones that were put.
+          rc += new Buffer(key, 1, key.length - 1) -> new Buffer(value)
           true
       }
     }
@@ -1126,24 +1574,419 @@ class LevelDBClient(store: LevelDBStore) {
 
   def gc: Unit = {
 
-    // TODO:
-    // Perhaps we should snapshot_index if the current snapshot is old.
-    //
+    // Keep the amount of log a recovery has to replay in check.
+    val threshold = index_snapshot_threshold
+    if (threshold > 0 && log.appender_limit - last_index_snapshot_pos >= threshold) {
+      snapshot_index
+    }
+
     import collection.JavaConversions._
-    last_index_snapshot_pos
     val empty_journals = log.log_infos.keySet.toSet -- log_refs.keySet
 
-    // We don't want to delete any journals that the index has not snapshot'ed or
-    // the the
-    val delete_limit = log.log_info(last_index_snapshot_pos).map(_.position).
-      getOrElse(last_index_snapshot_pos).min(log.appender_start)
-
     empty_journals.foreach {
       id =>
-        if (id < delete_limit) {
+        // Compacted journals have to wait for the index snapshot which no
+        // longer references them, otherwise a log replay could need them.
+        val compacted_at = compacted_logs.get(id)
+        if (id < delete_limit && compacted_at.map(_ <= last_index_snapshot_pos).getOrElse(true)) {
           log.delete(id)
+          compacted_logs.remove(id)
+        }
+    }
+  }
+
+  // We don't want to delete any journals that the index has not snapshot'ed or
+  // the the
+  def delete_limit = log.log_info(last_index_snapshot_pos).map(_.position).
+    getOrElse(last_index_snapshot_pos).min(log.appender_start)
+
+  /////////////////////////////////////////////////////////////////////
+  //
+  // Log compaction: moves the messages which are still referenced out of
+  // mostly unused journals so that the journals can be deleted.
+  //
+  /////////////////////////////////////////////////////////////////////
+
+  /**
+   * The locators handed to the broker while log compaction is enabled,
+   * keyed by the log position they point at.  The broker holds on to the
+   * locators of the messages it keeps in memory, so compaction points the
+   * ones of the messages it moves at their new position.  They are weakly
+   * held since the broker drops locators without telling the store.  The
+   * buckets are immutable lists swapped in with compare and set so that
+   * tracking does not need a lock.
+   */
+  val live_locators = new java.util.concurrent.ConcurrentHashMap[Long, List[LiveLocator]]()
+  val dead_locators = new java.lang.ref.ReferenceQueue[AtomicReference[Object]]()
+  var tracking_locators = false
+
+  class LiveLocator(val pos: Long, locator: AtomicReference[Object]) extends java.lang.ref.WeakReference[AtomicReference[Object]](locator, dead_locators)
+
+  /**
+   * Incremented every time compaction moves messages.  Readers which
+   * hand out locators from an index snapshot check it to find out if
+   * the locators could have been moved before they were tracked.
+   */
+  val compaction_epoch = new AtomicLong()
+
+  /**
+   * Maps the compacted journals to the log position at which they were
+   * compacted.
+   */
+  val compacted_logs = new java.util.concurrent.ConcurrentHashMap[Long, Long]()
+
+  def track_locator(locator: AtomicReference[Object]) = {
+    if (tracking_locators) {
+      expunge_locators
+      locator.get() match {
+        case (pos: Long, _) => add_live_locator(pos, locator)
+        case _ =>
+      }
+    }
+  }
+
+  private def add_live_locator(pos: Long, locator: AtomicReference[Object]): Unit = {
+    while (true) {
+      val bucket = live_locators.get(pos)
+      if (bucket == null) {
+        if (live_locators.putIfAbsent(pos, List(new LiveLocator(pos, locator))) == null) {
+          return
+        }
+      } else if (bucket.exists(_.get() eq locator)) {
+        return
+      } else if (live_locators.replace(pos, bucket, new LiveLocator(pos, locator) :: bucket)) {
+        return
+      }
+    }
+  }
+
+  private def remove_live_locator(ref: LiveLocator): Unit = {
+    while (true) {
+      val bucket = live_locators.get(ref.pos)
+      if (bucket == null || !bucket.exists(_ eq ref)) {
+        return
+      }
+      val remaining = bucket.filterNot(_ eq ref)
+      if (remaining.isEmpty) {
+        if (live_locators.remove(ref.pos, bucket)) {
+          return
+        }
+      } else if (live_locators.replace(ref.pos, bucket, remaining)) {
+        return
+      }
+    }
+  }
+
+  /**
+   * Drops the locators the broker no longer references.
+   */
+  def expunge_locators = {
+    var ref = dead_locators.poll()
+    while (ref != null) {
+      remove_live_locator(ref.asInstanceOf[LiveLocator])
+      ref = dead_locators.poll()
+    }
+  }
+
+  /**
+   * Points the live locators of the moved messages at their new position.
+   * Only the buckets of the moved positions are visited.
+   */
+  def relocate_locators(moved: collection.Map[Long, (Long, Int)]) = {
+    moved.foreach {
+      case (pos, target) =>
+        val bucket = live_locators.remove(pos)
+        if (bucket != null) {
+          bucket.foreach {
+            ref =>
+              val locator = ref.get()
+              if (locator != null) {
+                locator.get() match {
+                  case (at: Long, _) if at == pos =>
+                    locator.set(target)
+                    add_live_locator(target._1, locator)
+                  case _ =>
+                }
+              }
+          }
+        }
+    }
+  }
+
+  /////////////////////////////////////////////////////////////////////
+  //
+  // Sender dictionary: queue entries store a small id instead of the
+  // sender address to keep the index records compact.
+  //
+  /////////////////////////////////////////////////////////////////////
+
+  val senders = new java.util.concurrent.ConcurrentHashMap[Int, Buffer]()
+  val sender_ids = new java.util.concurrent.ConcurrentHashMap[Buffer, java.lang.Integer]()
+
+  // Only updated by the write thread.
+  var next_sender_id = 1
+
+  def load_senders = {
+    senders.clear()
+    sender_ids.clear()
+    next_sender_id = 1
+    index.cursor_prefixed(sender_prefix_array) {
+      (key, value) =>
+        val (_, id) = decode_long_key(key)
+        val sender = new Buffer(value)
+        senders.put(id.toInt, sender)
+        sender_ids.put(sender, id.toInt)
+        next_sender_id = next_sender_id.max(id.toInt + 1)
+        true
+    }
+  }
+
+  /**
+   * Gets the dictionary id of the sender.  A sender which is not in
+   * the dictionary yet gets added to the log and to the index.  It's
+   * not part of the caller's write batch so that the dictionary entry
+   * is in the index even if that batch has to be retried.
+   */
+  def sender_id(sender: Buffer, appender: RecordLog#LogAppender): Int = {
+    // Senders usually come in as UTF8Buffers, but Buffer.equals only
+    // matches buffers of the same class, so the dictionary is keyed by
+    // plain Buffers.
+    val key = new Buffer(sender)
+    val existing = sender_ids.get(key)
+    if (existing != null) {
+      return existing.intValue
+    }
+    val id = next_sender_id
+    next_sender_id += 1
+    val copy = key.deepCopy()
+    val entry = new MapEntryPB.Bean
+    entry.setKey(new Buffer(encode_key(sender_prefix, id)))
+    entry.setValue(copy)
+    appender.append(LOG_ADD_SENDER, entry.freeze().toUnframedBuffer)
+    index.put(encode_key(sender_prefix, id), copy.toByteArray)
+    senders.put(id, copy)
+    sender_ids.put(copy, id)
+    id
+  }
+
+  /////////////////////////////////////////////////////////////////////
+  //
+  // Queue summaries: which entries each queue has and their sizes, kept
+  // in memory so the entry ranges of a queue can be listed without
+  // scanning the index.
+  //
+  /////////////////////////////////////////////////////////////////////
+
+  // Only holds the summaries of the queues which had their entry ranges
+  // listed.  Updates to the other queues are skipped since their summary
+  // gets built from the index when it's first needed.  Updates and loads
+  // happen while synchronized on the map so that an update is either
+  // seen by the index scan of a load or applied to the loaded summary.
+  val queue_summaries = new java.util.concurrent.ConcurrentHashMap[Long, QueueSummary]()
+
+  def queue_summary(queue_key: Long): QueueSummary = {
+    val rc = queue_summaries.get(queue_key)
+    if (rc != null) {
+      return rc
+    }
+    // The index lock is taken first, like the store does.
+    retry_using_index {
+      queue_summaries.synchronized {
+        var rc = queue_summaries.get(queue_key)
+        if (rc == null) {
+          rc = load_queue_summary(queue_key)
+          queue_summaries.put(queue_key, rc)
         }
+        rc
+      }
+    }
+  }
+
+  def queue_summary_add(queue_key: Long, seq: Long, size: Int, expiration: Long) = {
+    val summary = queue_summaries.get(queue_key)
+    if (summary != null) {
+      summary.add(seq, size, expiration)
+    }
+  }
+
+  def queue_summary_remove(queue_key: Long, seq: Long) = {
+    val summary = queue_summaries.get(queue_key)
+    if (summary != null) {
+      summary.remove(seq)
+    }
+  }
+
+  def load_queue_summary(queue_key: Long) = {
+    val rc = new QueueSummary
+    val ro = new ReadOptions
+    ro.verifyChecksums(verify_checksums)
+    ro.fillCache(false)
+    index.cursor_prefixed(encode_key(queue_entry_prefix, queue_key), ro) {
+      (key, value) =>
+        val (_, _, queue_seq) = decode_long_long_key(key)
+        val record = QueueEntryPB.FACTORY.parseUnframed(value)
+        rc.add(queue_seq, record.getSize, record.getExpiration)
+        true
+    }
+    rc
+  }
+
+  def decode_queue_entry(record: QueueEntryPB.Getter) = {
+    val rc = PBSupport.from_pb(record)
+    if (record.hasSenderId) {
+      rc.sender = senders.get(record.getSenderId)
+    }
+    rc
+  }
+
+  /**
+   * Uncompresses a message body with the codec which compressed it.
+   */
+  def uncompress(codec: Int, buffer: Buffer) = log_codecs.get(codec) match {
+    case Some(stats) => stats.uncompress(buffer)
+    case None => throw new IOException("The log compression codec with id %d is not available".format(codec))
+  }
+
+  /**
+   * Finds the journals which have less than threshold percent of their
+   * size still referenced by queue entries, and returns the index entries
+   * which reference them.  At most limit bytes of messages are selected,
+   * unless the first selected journal holds more than that.  Only reads a
+   * snapshot of the index so it can run concurrently with writes.
+   */
+  def plan_log_compaction(threshold: Int, limit: Long): Seq[(Array[Byte], Array[Byte])] = {
+    import collection.JavaConversions._
+    val referenced = this.synchronized {
+      log_refs.keySet.toSet
+    }
+    val compact_limit = delete_limit
+    val candidates = log.log_mutex.synchronized {
+      log.log_infos.values.toList
+    }.filter(info => info.position < compact_limit && referenced.contains(info.position) && !compacted_logs.containsKey(info.position))
+    if (candidates.isEmpty) {
+      return Nil
+    }
+
+    def candidate_of(pos: Long) = log.log_info(pos).filter(info => pos < info.limit && referenced.contains(info.position))
+
+    val ro = new ReadOptions
+    ro.fillCache(false)
+    ro.verifyChecksums(verify_checksums)
+    retry_using_index {
+      index.snapshot {
+        snapshot =>
+          ro.snapshot(snapshot)
+
+          // Find out how much of the journals is still in use.
+          val used = HashMap[Long, Long]()
+          index.cursor_prefixed(queue_entry_prefix_array, ro) {
+            (_, value) =>
+              val (pos, len) = decode_locator(QueueEntryPB.FACTORY.parseUnframed(value).getMessageLocator)
+              candidate_of(pos).foreach {
+                info =>
+                  used.put(info.position, used.getOrElse(info.position, 0L) + len)
+              }
+              true
+          }
+
+          var remaining = limit
+          val selected = candidates.filter {
+            info =>
+              val size = used.getOrElse(info.position, 0L)
+              if (size * 100 < info.length * threshold && (size <= remaining || remaining == limit)) {
+                remaining -= size
+                true
+              } else {
+                false
+              }
+          }.map(_.position).toSet
+
+          val rc = ListBuffer[(Array[Byte], Array[Byte])]()
+          if (!selected.isEmpty) {
+            index.cursor_prefixed(queue_entry_prefix_array, ro) {
+              (key, value) =>
+                val pos = decode_locator(QueueEntryPB.FACTORY.parseUnframed(value).getMessageLocator)._1
+                if (candidate_of(pos).map(info => selected.contains(info.position)).getOrElse(false)) {
+                  rc += ((key, value))
+                }
+                true
+            }
+          }
+          rc
+      }
+    }
+  }
+
+  /**
+   * Copies the messages referenced by the planned index entries to the end
+   * of the log and points the entries at the copies.  Entries which changed
+   * since the compaction was planned are skipped.
+   *
+   * @return the number of entries which were moved.
+   */
+  def compact_log(entries: Seq[(Array[Byte], Array[Byte])]): Int = {
+    if (entries.isEmpty) {
+      return 0
+    }
+    val moved = HashMap[Long, (Long, Int)]()
+    val compacted = HashMap[Long, Long]()
+    var count = 0
+    retry_using_index {
+      moved.clear()
+      compacted.clear()
+      count = 0
+      log.appender {
+        appender =>
+          index.write() {
+            batch =>
+              entries.foreach {
+                case (key, value) =>
+                  index.get(key).filter(ju.Arrays.equals(_, value)).foreach {
+                    _ =>
+                      val record = QueueEntryPB.FACTORY.parseUnframed(value)
+                      val (pos, len) = decode_locator(record.getMessageLocator)
+                      val target = moved.get(pos).orElse {
+                        log.read(pos, len).map {
+                          data =>
+                            val (new_pos, _) = appender.append(LOG_ADD_MESSAGE, data)
+                            moved.put(pos, (new_pos, len))
+                            (new_pos, len)
+                        }
+                      }
+                      target.foreach {
+                        case (new_pos, new_len) =>
+                          val (_, queue_key, queue_seq) = decode_long_long_key(key)
+                          val log_record = record.copy()
+                          log_record.setQueueKey(queue_key)
+                          log_record.setQueueSeq(queue_seq)
+                          log_record.setMessageLocator(encode_locator(new_pos, new_len))
+                          appender.append(LOG_MOVE_QUEUE_ENTRY, log_record.freeze().toUnframedBuffer)
+
+                          val index_record = log_record.copy()
+                          index_record.clearQueueKey()
+                          index_record.clearQueueSeq()
+                          batch.put(key, index_record.freeze().toUnframedBuffer)
+
+                          log_ref_increment(new_pos)
+                          log.log_info(pos).foreach(info => compacted.put(info.position, 0L))
+                          log_ref_decrement(pos)
+                          count += 1
+                      }
+                  }
+              }
+          }
+          compacted.keys.foreach(compacted.put(_, appender.append_position))
+      }
+    }
+    compacted.foreach { case (id, at) => compacted_logs.put(id, at) }
+    if (!moved.isEmpty) {
+      compaction_epoch.incrementAndGet()
+      relocate_locators(moved)
+    }
+    if (count > 0) {
+      snapshot_index
     }
+    count
   }
 
   case class UsageCounter(info: LogInfo) {
@@ -1261,8 +2104,8 @@ class LevelDBClient(store: LevelDBStore) {
                   val is = new DataByteArrayInputStream(data)
                   val record = MessagePB.FACTORY.parseFramed(is).copy()
                   var buffer = is.readBuffer(is.available())
-                  if(record.getCompression == 1) {
-                    buffer = Snappy.uncompress(buffer)
+                  if(record.getCompression != 0) {
+                    buffer = uncompress(record.getCompression, buffer)
                   }
                   record.setMessageKey(pos)
                   record.setValue(buffer)
@@ -1277,6 +2120,10 @@ class LevelDBClient(store: LevelDBStore) {
                 val (_, queue_key, queue_seq) = decode_long_long_key(key)
                 val record = QueueEntryPB.FACTORY.parseUnframed(value).copy()
                 val (pos, len) = decode_locator(record.getMessageLocator)
+                if (record.hasSenderId) {
+                  record.setSender(senders.get(record.getSenderId))
+                  record.clearSenderId()
+                }
                 record.setQueueKey(queue_key)
                 record.setQueueSeq(queue_seq)
                 record.setMessageKey(pos)
@@ -1340,14 +2187,14 @@ class LevelDBClient(store: LevelDBStore) {
               case record: MessagePB.Buffer =>
                 val pb = new MessagePB.Bean
                 pb.setProtocol(record.getProtocol)
-                val body = if(snappy_compress_logs) {
-                  val compressed = Snappy.compress(record.getValue)
-                  if (compressed.length < record.getValue.length) {
-                    pb.setCompression(1)
-                    compressed
-                  } else {
-                    record.getValue
-                  }
+                val compressed = if(log_compressor!=null) {
+                  log_compressor.compress(record.getValue)
+                } else {
+                  null
+                }
+                val body = if(compressed!=null) {
+                  pb.setCompression(log_compressor.codec.id)
+                  compressed
                 } else {
                   record.getValue
                 }
@@ -1363,6 +2210,10 @@ class LevelDBClient(store: LevelDBStore) {
                   case Some(locator) =>
                     val (pos, len) = decode_locator(locator)
                     copy.setMessageLocator(locator)
+                    if (copy.hasSender) {
+                      copy.setSenderId(sender_id(copy.getSender, appender))
+                      copy.clearSender()
+                    }
                     index.put(encode_key(queue_entry_prefix, record.getQueueKey, record.getQueueSeq), copy.freeze().toUnframedBuffer)
                     log.log_info(pos).foreach {
                       log_info =>
@@ -1391,6 +2242,7 @@ class LevelDBClient(store: LevelDBStore) {
       }
 
       store_log_refs
+      queue_summaries.clear()
       // Delete all the tmp keys..
       index.cursor_keys_prefixed(Array(tmp_prefix)) {
         key =>
@@ -23,6 +23,7 @@ import org.fusesource.hawtdispatch._
 import java.util.concurrent._
 import atomic.{AtomicReference, AtomicLong}
 import org.apache.activemq.apollo.broker.store._
+import org.apache.activemq.apollo.broker.Broker
 import org.apache.activemq.apollo.util._
 import org.fusesource.hawtdispatch.ListEventAggregator
 import org.apache.activemq.apollo.dto.StoreStatusDTO
@@ -41,7 +42,9 @@ object LevelDBStore extends Log {
 /**
  * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
  */
-class LevelDBStore(val config: LevelDBStoreDTO) extends DelayingStoreSupport {
+class LevelDBStore(val config: LevelDBStoreDTO, val directory: File) extends DelayingStoreSupport {
+
+  def this(config: LevelDBStoreDTO) = this(config, config.directory)
 
   var next_queue_key = new AtomicLong(1)
   var next_msg_key = new AtomicLong(1)
@@ -56,20 +59,24 @@ class LevelDBStore(val config: LevelDBStoreDTO) extends DelayingStoreSupport {
 
   def store_kind = "leveldb"
 
-  override def toString = store_kind + " store at " + config.directory
+  override def toString = store_kind + " store at " + directory
 
   override protected def locator_based = true
 
   def flush_delay = config.flush_delay.getOrElse(500)
 
+  override def group_commit_latency = config.group_commit_latency.getOrElse(0L)
+
   protected def get_next_msg_key = next_msg_key.getAndIncrement
 
 
   override def on_store_requested(mr: MessageRecord) = {
-    if( client.snappy_compress_logs && mr.compressed==null ) {
-      val compressed = Snappy.compress(mr.buffer)
-      if (compressed.length < mr.buffer.length) {
+    val compressor = client.log_compressor
+    if( compressor!=null && mr.compressed==null ) {
+      val compressed = compressor.compress(mr.buffer)
+      if (compressed != null) {
         mr.compressed = compressed
+        mr.compression = compressor.codec.id
       }
     }
   }
@@ -153,7 +160,19 @@ class LevelDBStore(val config: LevelDBStoreDTO) extends DelayingStoreSupport {
 
   def gc(onComplete: => Unit) = write_executor {
     client.gc
-    onComplete
+    if (client.log_compaction_threshold > 0) {
+      // Plan the compaction off the write thread since it has to scan
+      // the index, then move the planned entries on the write thread.
+      read_executor {
+        val entries = client.plan_log_compaction(client.log_compaction_threshold, client.log_compaction_limit)
+        write_executor {
+          client.compact_log(entries)
+          onComplete
+        }
+      }
+    } else {
+      onComplete
+    }
   }
 
   /////////////////////////////////////////////////////////////////////
@@ -262,6 +281,13 @@ class LevelDBStore(val config: LevelDBStoreDTO) extends DelayingStoreSupport {
     }
   }
 
+  def remove_expired_queue_entries(queueKey: Long, firstSeq: Long, lastSeq: Long, now: Long)(callback: (Seq[QueueEntryRecord], QueueEntryRange) => Unit) = {
+    write_executor ^ {
+      val (removed, remaining) = client.removeExpiredQueueEntries(queueKey, firstSeq, lastSeq, now)
+      callback(removed, remaining)
+    }
+  }
+
   def poll_stats: Unit = {
     def displayStats = {
       if (service_state.is_started) {
@@ -286,6 +312,11 @@ class LevelDBStore(val config: LevelDBStoreDTO) extends DelayingStoreSupport {
     val rc = new LevelDBStoreStatusDTO
     fill_store_status(rc)
     rc.message_load_batch_size = message_load_batch_size
+    rc.flush_batch_size = flush_batch_size_counter(false)
+    rc.flush_wait = flush_wait_counter(false)
+    client.log_codecs.values.toSeq.sortBy(_.codec.id).foreach { stats =>
+      rc.log_codecs.add(stats.to_dto)
+    }
     write_executor {
       client.using_index {
         rc.index_stats = client.index.getProperty("leveldb.stats")
@@ -334,4 +365,22 @@ class LevelDBStore(val config: LevelDBStoreDTO) extends DelayingStoreSupport {
     cb(client.import_data(is))
   }
 
+  /**
+   * Only holds up the write thread while the index snapshot and sealed
+   * log files get hard linked, the rest of the backup is done on a
+   * blocking thread.
+   */
+  override def backup(directory: File, cb: (Option[String]) => Unit) = write_executor {
+    try {
+      val staged = client.stage_backup()
+      Broker.BLOCKABLE_THREAD_POOL {
+        cb(client.finish_backup(directory, staged))
+      }
+    } catch {
+      case e: Throwable =>
+        LevelDBStore.debug(e, "Backup failed")
+        cb(Some(e.getMessage))
+    }
+  }
+
 }
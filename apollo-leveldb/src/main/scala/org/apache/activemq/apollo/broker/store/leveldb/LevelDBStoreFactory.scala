@@ -18,7 +18,7 @@ package org.apache.activemq.apollo.broker.store.leveldb
  */
 
 import dto.LevelDBStoreDTO
-import org.apache.activemq.apollo.broker.store.StoreFactory
+import org.apache.activemq.apollo.broker.store.{Store, StoreFactory, StripedStore}
 import org.apache.activemq.apollo.dto.StoreDTO
 import org.apache.activemq.apollo.util._
 
@@ -38,7 +38,13 @@ class LevelDBStoreFactory extends StoreFactory {
   def create(config: StoreDTO) = config match {
     case config: LevelDBStoreDTO =>
       if (config.getClass == classOf[LevelDBStoreDTO]) {
-        new LevelDBStore(config)
+        import collection.JavaConversions._
+        if (config.stripe_directories.isEmpty) {
+          new LevelDBStore(config)
+        } else {
+          val directories = config.directory :: config.stripe_directories.toList
+          new StripedStore(directories.map(new LevelDBStore(config, _): Store).toArray)
+        }
       } else {
         null
       }
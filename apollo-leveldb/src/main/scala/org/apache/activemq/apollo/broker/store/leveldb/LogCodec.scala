@@ -0,0 +1,330 @@
+package org.apache.activemq.apollo.broker.store.leveldb
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.io.IOException
+import java.util.zip.{Inflater, Deflater}
+import java.util.concurrent.atomic.{AtomicInteger, AtomicLong}
+import org.fusesource.hawtbuf.{DataByteArrayOutputStream, DataByteArrayInputStream, Buffer}
+import org.apache.activemq.apollo.broker.Broker
+import org.apache.activemq.apollo.broker.store.leveldb.dto.LogCodecStatusDTO
+import org.apache.activemq.apollo.util.Log
+
+/**
+ * <p>
+ * A codec used to compress the message bodies stored in the log.  The
+ * id of the codec is stored with every compressed message so it must
+ * be unique and must never change.  Custom codecs can be used by
+ * configuring the store's `log_compression` attribute with the name of
+ * a class which implements this interface.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+trait LogCodec {
+  def id: Int
+  def name: String
+  def compress(input: Buffer): Buffer
+  def uncompress(input: Buffer): Buffer
+}
+
+/**
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+object LogCodec extends Log {
+
+  final val SNAPPY = 1
+  final val DEFLATE = 2
+  final val LZ4 = 3
+
+  /**
+   * The ids of the builtin codecs.  Custom codecs can't use them
+   * since the builtin codecs are used to decode those records.
+   */
+  final val BUILTIN_IDS = Set(SNAPPY, DEFLATE, LZ4)
+
+  /**
+   * A message is considered incompressible if compressing it
+   * does not save at least this fraction of its size.
+   */
+  final val INCOMPRESSIBLE_RATIO = 0.9
+
+  /**
+   * After this many incompressible messages in a row, the
+   * compressor stops trying for INCOMPRESSIBLE_SKIP messages.
+   */
+  final val INCOMPRESSIBLE_STREAK = 16
+  final val INCOMPRESSIBLE_SKIP = 1024
+
+  /**
+   * The codecs which are always available to decode messages
+   * stored in the log.
+   */
+  def builtin: Seq[LogCodec] = {
+    Option(Snappy).map(new SnappyCodec(_)).toSeq ++
+      Seq(new DeflateCodec(Deflater.DEFAULT_COMPRESSION)) ++
+      LZ4Codec.load.toSeq
+  }
+
+  /**
+   * Creates the codec for a `log_compression` setting.  The setting
+   * can be `none`, `snappy`, `lz4`, `deflate` optionally followed by
+   * a `:level` suffix, or the name of a LogCodec class.
+   */
+  def create(spec: String): Option[LogCodec] = {
+    val (name, arg) = spec.trim.split(":", 2) match {
+      case Array(name) => (name.trim, None)
+      case Array(name, arg) => (name.trim, Some(arg.trim))
+    }
+    name.toLowerCase match {
+      case "none" => None
+      case "snappy" =>
+        if (Snappy == null) {
+          warn("Snappy is not available, log records will not be compressed.")
+        }
+        Option(Snappy).map(new SnappyCodec(_))
+      case "deflate" =>
+        Some(new DeflateCodec(arg.map(_.toInt).getOrElse(Deflater.DEFAULT_COMPRESSION)))
+      case "lz4" =>
+        val rc = LZ4Codec.load
+        if (rc.isEmpty) {
+          warn("LZ4 is not available, log records will not be compressed.  Add the lz4 jar to the ${APOLLO_HOME}/lib directory to enable it.")
+        }
+        rc
+      case _ =>
+        try {
+          val rc = Broker.class_loader.loadClass(name).newInstance().asInstanceOf[LogCodec]
+          if (BUILTIN_IDS.contains(rc.id)) {
+            warn("The log codec %s uses the id %d which is reserved for the builtin codecs, log records will not be compressed.", name, rc.id)
+            None
+          } else {
+            Some(rc)
+          }
+        } catch {
+          case e: Throwable =>
+            warn(e, "Could not load the log codec %s, log records will not be compressed.", name)
+            None
+        }
+    }
+  }
+
+  def write_length(data: Array[Byte], offset: Int, length: Int) = {
+    data(offset) = (length >>> 24).toByte
+    data(offset + 1) = (length >>> 16).toByte
+    data(offset + 2) = (length >>> 8).toByte
+    data(offset + 3) = length.toByte
+  }
+
+  def read_length(input: Buffer) = new DataByteArrayInputStream(input).readInt()
+}
+
+/**
+ * Adapts the SnappyTrait implementation which was picked at startup.
+ */
+class SnappyCodec(snappy: SnappyTrait) extends LogCodec {
+  def id = LogCodec.SNAPPY
+  def name = "snappy"
+  def compress(input: Buffer) = snappy.compress(input)
+  def uncompress(input: Buffer) = snappy.uncompress(input)
+}
+
+/**
+ * Deflate compression from the JDK.  The level only affects compression,
+ * so all the levels share the same codec id.  The compressed data is
+ * prefixed with the uncompressed length.
+ */
+class DeflateCodec(level: Int) extends LogCodec {
+  def id = LogCodec.DEFLATE
+  def name = "deflate"
+
+  def compress(input: Buffer) = {
+    val deflater = new Deflater(level, true)
+    try {
+      deflater.setInput(input.data, input.offset, input.length)
+      deflater.finish()
+      val out = new DataByteArrayOutputStream((input.length / 2) + 16)
+      out.writeInt(input.length)
+      val chunk = new Array[Byte](1024 * 4)
+      while (!deflater.finished()) {
+        val count = deflater.deflate(chunk)
+        out.write(chunk, 0, count)
+      }
+      out.toBuffer
+    } finally {
+      deflater.end()
+    }
+  }
+
+  def uncompress(input: Buffer) = {
+    val length = LogCodec.read_length(input)
+    val inflater = new Inflater(true)
+    try {
+      inflater.setInput(input.data, input.offset + 4, input.length - 4)
+      val rc = new Buffer(length)
+      var pos = 0
+      while (pos < length) {
+        val count = inflater.inflate(rc.data, pos, length - pos)
+        if (count == 0 && (inflater.finished() || inflater.needsInput())) {
+          throw new IOException("Truncated deflate log record")
+        }
+        pos += count
+      }
+      rc
+    } finally {
+      inflater.end()
+    }
+  }
+}
+
+/**
+ * LZ4 is an optional dependency, so it is accessed via reflection
+ * and only enabled if the lz4 jar is on the class path.
+ */
+object LZ4Codec {
+  def load: Option[LogCodec] = try {
+    val factory_class = Broker.class_loader.loadClass("net.jpountz.lz4.LZ4Factory")
+    val factory = factory_class.getMethod("fastestInstance").invoke(null)
+    val rc = new LZ4Codec(
+      factory_class.getMethod("fastCompressor").invoke(factory),
+      factory_class.getMethod("fastDecompressor").invoke(factory)
+    )
+    rc.uncompress(rc.compress(new Buffer("test".getBytes("UTF-8"))))
+    Some(rc)
+  } catch {
+    case e: Throwable => None
+  }
+}
+
+class LZ4Codec(compressor: AnyRef, decompressor: AnyRef) extends LogCodec {
+  import java.lang.{Integer => JInt}
+
+  def id = LogCodec.LZ4
+  def name = "lz4"
+
+  private val compressor_class = Broker.class_loader.loadClass("net.jpountz.lz4.LZ4Compressor")
+  private val decompressor_class = Broker.class_loader.loadClass("net.jpountz.lz4.LZ4FastDecompressor")
+  private val bytes = classOf[Array[Byte]]
+  private val int_type = JInt.TYPE
+
+  private val max_compressed_length_method = compressor_class.getMethod("maxCompressedLength", int_type)
+  private val compress_method = compressor_class.getMethod("compress", bytes, int_type, int_type, bytes, int_type, int_type)
+  private val decompress_method = decompressor_class.getMethod("decompress", bytes, int_type, bytes, int_type, int_type)
+
+  def compress(input: Buffer) = {
+    val max = max_compressed_length_method.invoke(compressor, JInt.valueOf(input.length)).asInstanceOf[JInt].intValue
+    val rc = new Buffer(max + 4)
+    LogCodec.write_length(rc.data, rc.offset, input.length)
+    val count = compress_method.invoke(compressor,
+      input.data, JInt.valueOf(input.offset), JInt.valueOf(input.length),
+      rc.data, JInt.valueOf(4), JInt.valueOf(max)).asInstanceOf[JInt].intValue
+    rc.length = count + 4
+    rc
+  }
+
+  def uncompress(input: Buffer) = {
+    val length = LogCodec.read_length(input)
+    val rc = new Buffer(length)
+    decompress_method.invoke(decompressor,
+      input.data, JInt.valueOf(input.offset + 4),
+      rc.data, JInt.valueOf(0), JInt.valueOf(length))
+    rc
+  }
+}
+
+/**
+ * Compresses log records with a codec, keeping track of how well
+ * and how fast it compresses.  Messages smaller than the threshold
+ * are not compressed and when the codec keeps failing to shrink the
+ * messages, the compressor backs off for a while.
+ */
+class LogCompressor(val codec: LogCodec, threshold: Int) {
+
+  val stats = new LogCodecStats(codec)
+
+  private val incompressible_streak = new AtomicInteger()
+  private val skip_remaining = new AtomicInteger()
+
+  /**
+   * @return the compressed buffer or null if it's not worth storing
+   *         the buffer compressed.
+   */
+  def compress(buffer: Buffer): Buffer = {
+    if (buffer.length < threshold) {
+      stats.skipped.incrementAndGet()
+      return null
+    }
+    if (skip_remaining.get > 0 && skip_remaining.decrementAndGet() >= 0) {
+      stats.skipped.incrementAndGet()
+      return null
+    }
+    val start = System.nanoTime()
+    val compressed = codec.compress(buffer)
+    stats.compress_time.addAndGet(System.nanoTime() - start)
+    stats.compressed.incrementAndGet()
+    stats.bytes_in.addAndGet(buffer.length)
+
+    if (compressed.length >= buffer.length * LogCodec.INCOMPRESSIBLE_RATIO) {
+      if (incompressible_streak.incrementAndGet() >= LogCodec.INCOMPRESSIBLE_STREAK) {
+        incompressible_streak.set(0)
+        skip_remaining.set(LogCodec.INCOMPRESSIBLE_SKIP)
+      }
+    } else {
+      incompressible_streak.set(0)
+    }
+
+    if (compressed.length < buffer.length) {
+      stats.bytes_out.addAndGet(compressed.length)
+      compressed
+    } else {
+      stats.bytes_out.addAndGet(buffer.length)
+      null
+    }
+  }
+}
+
+class LogCodecStats(val codec: LogCodec) {
+  val compressed = new AtomicLong()
+  val skipped = new AtomicLong()
+  val bytes_in = new AtomicLong()
+  val bytes_out = new AtomicLong()
+  val compress_time = new AtomicLong()
+  val uncompressed = new AtomicLong()
+  val uncompress_time = new AtomicLong()
+
+  def uncompress(input: Buffer) = {
+    val start = System.nanoTime()
+    val rc = codec.uncompress(input)
+    uncompress_time.addAndGet(System.nanoTime() - start)
+    uncompressed.incrementAndGet()
+    rc
+  }
+
+  def to_dto = {
+    val rc = new LogCodecStatusDTO
+    rc.id = codec.id
+    rc.name = codec.name
+    rc.compressed = compressed.get
+    rc.skipped = skipped.get
+    rc.bytes_in = bytes_in.get
+    rc.bytes_out = bytes_out.get
+    rc.compress_time = compress_time.get / 1000
+    rc.uncompressed = uncompressed.get
+    rc.uncompress_time = uncompress_time.get / 1000
+    rc
+  }
+
+}
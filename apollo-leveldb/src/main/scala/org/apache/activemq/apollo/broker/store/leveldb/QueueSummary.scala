@@ -0,0 +1,156 @@
+package org.apache.activemq.apollo.broker.store.leveldb
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import org.apache.activemq.apollo.broker.store.QueueEntryRange
+import collection.mutable.ListBuffer
+
+object QueueSummary {
+  final val BLOCK_BITS = 6
+  final val BLOCK_SIZE = 1 << BLOCK_BITS
+  final val BLOCK_MASK = BLOCK_SIZE - 1
+
+  class Block {
+    // bit i is set when the entry with sequence (block id << BLOCK_BITS) + i exists.
+    var present = 0L
+    // The sizes of the present entries in sequence order.  It's sized by
+    // the number of present entries so that sparse blocks stay small.
+    var sizes = new Array[Int](0)
+    // The lowest expiration any entry added to the block had, it is not
+    // raised when entries get removed.
+    var expiration = 0L
+
+    def count = java.lang.Long.bitCount(present)
+
+    // The index in sizes of the entry for the bit.
+    private def index_of(bit: Int) = java.lang.Long.bitCount(present & ((1L << bit) - 1))
+
+    def set(bit: Int, size: Int) = {
+      val index = index_of(bit)
+      if ((present & (1L << bit)) != 0) {
+        sizes(index) = size
+      } else {
+        val count = this.count
+        if (count == sizes.length) {
+          sizes = java.util.Arrays.copyOf(sizes, (count * 2).max(2).min(BLOCK_SIZE))
+        }
+        System.arraycopy(sizes, index, sizes, index + 1, count - index)
+        sizes(index) = size
+        present |= 1L << bit
+      }
+    }
+
+    def clear(bit: Int) = {
+      if ((present & (1L << bit)) != 0) {
+        val index = index_of(bit)
+        val count = this.count
+        System.arraycopy(sizes, index + 1, sizes, index, count - index - 1)
+        present &= ~(1L << bit)
+        if (count - 1 <= sizes.length / 4) {
+          sizes = java.util.Arrays.copyOf(sizes, sizes.length / 2)
+        }
+      }
+    }
+  }
+}
+
+/**
+ * <p>
+ * A compact in memory summary of the entries a queue has in the index, so
+ * that the entry ranges of a queue can be listed without scanning the index.
+ * The entries are tracked in blocks of BLOCK_SIZE consecutive sequences which
+ * record which of the sequences exist and the sizes of their entries.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class QueueSummary {
+  import QueueSummary._
+
+  private val blocks = new java.util.TreeMap[Long, Block]()
+
+  def add(seq: Long, size: Int, expiration: Long) = this.synchronized {
+    val id = seq >>> BLOCK_BITS
+    var block = blocks.get(id)
+    if (block == null) {
+      block = new Block
+      blocks.put(id, block)
+    }
+    block.set((seq & BLOCK_MASK).toInt, size)
+    if (expiration != 0 && (block.expiration == 0 || expiration < block.expiration)) {
+      block.expiration = expiration
+    }
+  }
+
+  def remove(seq: Long) = this.synchronized {
+    val id = seq >>> BLOCK_BITS
+    val block = blocks.get(id)
+    if (block != null) {
+      block.clear((seq & BLOCK_MASK).toInt)
+      if (block.present == 0) {
+        blocks.remove(id)
+      }
+    }
+  }
+
+  def is_empty = this.synchronized {
+    blocks.isEmpty
+  }
+
+  /**
+   * Groups the entries into ranges holding up to limit entries.  The
+   * expirations of the ranges are conservative, they can be earlier
+   * than the expirations of all the entries they hold.
+   */
+  def ranges(limit: Int): Seq[QueueEntryRange] = this.synchronized {
+    import collection.JavaConversions._
+    val rc = ListBuffer[QueueEntryRange]()
+    var group: QueueEntryRange = null
+    blocks.entrySet().foreach { entry =>
+      val base = entry.getKey << BLOCK_BITS
+      val block = entry.getValue
+      var bits = block.present
+      var index = 0
+      while (bits != 0) {
+        val bit = java.lang.Long.numberOfTrailingZeros(bits)
+        bits &= bits - 1
+        val seq = base + bit
+
+        if (group == null) {
+          group = new QueueEntryRange
+          group.first_entry_seq = seq
+        }
+        group.last_entry_seq = seq
+        group.count += 1
+        group.size += block.sizes(index)
+        index += 1
+        if (block.expiration != 0 && (group.expiration == 0 || block.expiration < group.expiration)) {
+          group.expiration = block.expiration
+        }
+
+        if (group.count == limit) {
+          rc += group
+          group = null
+        }
+      }
+    }
+    if (group != null) {
+      rc += group
+    }
+    rc
+  }
+}
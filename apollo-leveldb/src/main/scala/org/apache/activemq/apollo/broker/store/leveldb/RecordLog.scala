@@ -29,6 +29,8 @@ import org.apache.activemq.apollo.util.{Log, LRUCache}
 import org.fusesource.hawtdispatch.BaseRetained
 import org.fusesource.hawtbuf.{DataByteArrayInputStream, DataByteArrayOutputStream, Buffer}
 import java.util.TreeMap
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
 
 object RecordLog extends Log {
 
@@ -64,6 +66,26 @@ object RecordLog extends Log {
     in.readLong()
   }
 
+  /**
+   * Releases the memory mapping of the buffer right away instead of
+   * waiting for it to get garbage collected.  The JDK has no public
+   * API for it, so if the the internal one is not available we just
+   * leave it to the GC.
+   */
+  def unmap(buffer: MappedByteBuffer): Unit = {
+    try {
+      val cleaner_method = buffer.getClass.getMethod("cleaner")
+      cleaner_method.setAccessible(true)
+      val cleaner = cleaner_method.invoke(buffer)
+      if (cleaner != null) {
+        cleaner.getClass.getMethod("clean").invoke(cleaner)
+      }
+    } catch {
+      case e: Throwable =>
+        debug("Could not unmap a log file: " + e)
+    }
+  }
+
 }
 
 case class RecordLog(directory: File, logSuffix: String) {
@@ -77,6 +99,11 @@ case class RecordLog(directory: File, logSuffix: String) {
   var verify_checksums = false
   var sync = false
 
+  // The maximum number of bytes of log files which get memory mapped
+  // for reads.  0 disables memory mapping.
+  var mmap_limit = 0L
+  val mapped_bytes = new AtomicLong(0)
+
 
   val log_infos = new TreeMap[Long, LogInfo]()
 
@@ -88,6 +115,11 @@ case class RecordLog(directory: File, logSuffix: String) {
       if (current_appender.position != id) {
         Option(log_infos.get(id)).foreach {
           info =>
+            // Drop the cached reader so it gets closed and unmapped once
+            // the reads in progress release it.
+            reader_cache.synchronized {
+              Option(reader_cache.remove(info.file)).foreach(_.release())
+            }
             onDelete(info.file)
             log_infos.remove(id)
         }
@@ -113,6 +145,9 @@ case class RecordLog(directory: File, logSuffix: String) {
 
     override def open = new RandomAccessFile(file, "rw")
 
+    // The file is still being appended to.
+    override def mmap_candidate = false
+
     override def dispose() = {
       force
       super.dispose()
@@ -225,18 +260,75 @@ case class RecordLog(directory: File, logSuffix: String) {
     val fd = open
     val channel = fd.getChannel
 
+    def mmap_candidate = true
+
+    @volatile
+    private var map_checked = false
+    @volatile
+    private var mapping: MappedByteBuffer = null
+
+    /**
+     * @return the memory mapping of the file or null if the file should
+     *         be read using the channel.
+     */
+    def mapped = {
+      if (!map_checked) {
+        this.synchronized {
+          if (!map_checked) {
+            mapping = map_file
+            map_checked = true
+          }
+        }
+      }
+      mapping
+    }
+
+    private def map_file: MappedByteBuffer = {
+      if (mmap_limit <= 0 || !mmap_candidate) {
+        return null
+      }
+      val size = channel.size
+      if (size > Int.MaxValue || mapped_bytes.addAndGet(size) > mmap_limit) {
+        if (size <= Int.MaxValue) {
+          mapped_bytes.addAndGet(-size)
+        }
+        return null
+      }
+      try {
+        channel.map(FileChannel.MapMode.READ_ONLY, 0, size)
+      } catch {
+        case e: IOException =>
+          mapped_bytes.addAndGet(-size)
+          debug("Could not memory map log file: " + file + ", " + e)
+          null
+      }
+    }
+
     override def dispose() {
+      this.synchronized {
+        map_checked = true
+        if (mapping != null) {
+          mapped_bytes.addAndGet(-mapping.capacity())
+          unmap(mapping)
+          mapping = null
+        }
+      }
       fd.close()
     }
 
     def check_read_flush(end_offset: Long) = {}
 
-    def read(record_position: Long, length: Int) = {
+    def read(record_position: Long, length: Int): Buffer = {
       val offset = record_position - position
       assert(offset >= 0)
 
       check_read_flush(offset + LOG_HEADER_SIZE + length)
 
+      val map = mapped
+      if (map != null) {
+        return read_mapped(map, record_position, offset, length)
+      }
+
       if (verify_checksums) {
 
         val record = new Buffer(LOG_HEADER_SIZE + length)
@@ -250,9 +342,7 @@ case class RecordLog(directory: File, logSuffix: String) {
               val channel = fd.getChannel
               val new_record = new Buffer(LOG_HEADER_SIZE + length)
               channel.read(new_record.toByteBuffer, offset)
-              var same = record == new_record
-              println(same)
-              same
+              record == new_record
           }
         }
 
@@ -287,6 +377,62 @@ case class RecordLog(directory: File, logSuffix: String) {
       }
     }
 
+    /**
+     * Copies the record data straight out of the mapped file, which avoids
+     * the read system call and only reads the header when verifying.
+     */
+    private def read_mapped(map: MappedByteBuffer, record_position: Long, offset: Long, length: Int) = {
+      if (offset + LOG_HEADER_SIZE + length > map.capacity()) {
+        throw new IOException("short record at position: " + record_position + " in file: " + file + ", offset: " + offset)
+      }
+      val view = map.duplicate()
+      val data = new Buffer(length)
+      if (verify_checksums) {
+        view.position(offset.toInt)
+        val prefix = view.get()
+        if (prefix != LOG_HEADER_PREFIX) {
+          throw new IOException("invalid record at position: " + record_position + " in file: " + file + ", offset: " + offset)
+        }
+        val kind = view.get()
+        val expectedChecksum = view.getInt()
+        val expectedLength = view.getInt()
+        view.get(data.data, data.offset, length)
+        // If your reading the whole record we can verify the data checksum
+        if (expectedLength == length && expectedChecksum != checksum(data)) {
+          throw new IOException("checksum does not match at position: " + record_position + " in file: " + file + ", offset: " + offset)
+        }
+      } else {
+        view.position((offset + LOG_HEADER_SIZE).toInt)
+        view.get(data.data, data.offset, length)
+      }
+      data
+    }
+
+    /**
+     * Reads length bytes of the file starting at the given log position
+     * without interpreting them, so that several records can be read at once.
+     */
+    def read_span(span_position: Long, length: Int) = {
+      val offset = span_position - position
+      assert(offset >= 0)
+      check_read_flush(offset + length)
+      val rc = new Buffer(length)
+      val map = mapped
+      if (map != null) {
+        if (offset + length > map.capacity()) {
+          throw new IOException("short read at position: " + span_position + " in file: " + file + ", offset: " + offset)
+        }
+        val view = map.duplicate()
+        view.position(offset.toInt)
+        view.get(rc.data, rc.offset, length)
+      } else {
+        if (channel.read(rc.toByteBuffer, offset) != length) {
+          throw new IOException("short read at position: " + span_position + " in file: " + file + ", offset: " + offset)
+        }
+      }
+      rc
+    }
+
     def read(record_position: Long) = {
       val offset = record_position - position
       val header = new Buffer(LOG_HEADER_SIZE)
@@ -520,4 +666,20 @@ case class RecordLog(directory: File, logSuffix: String) {
     get_reader(pos)(_.read(pos, length))
   }
 
+  def read_span(pos: Long, length: Int) = {
+    get_reader(pos)(_.read_span(pos, length))
+  }
+
+  /**
+   * @return the log position up to which the log file holding the
+   *         given log info has been written.
+   */
+  def log_limit(info: LogInfo) = log_mutex.synchronized {
+    if (info.position == current_appender.position) {
+      current_appender.append_position
+    } else {
+      info.limit
+    }
+  }
+
 }
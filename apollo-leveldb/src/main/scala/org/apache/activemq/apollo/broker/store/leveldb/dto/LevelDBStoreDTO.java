@@ -22,8 +22,10 @@ import org.codehaus.jackson.annotate.JsonIgnoreProperties;
 import javax.xml.bind.annotation.XmlAccessType;
 import javax.xml.bind.annotation.XmlAccessorType;
 import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlRootElement;
 import java.io.File;
+import java.util.ArrayList;
 
 /**
  * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
@@ -36,6 +38,15 @@ public class LevelDBStoreDTO extends StoreDTO {
     @XmlAttribute
     public File directory;
 
+    /**
+     * Additional directories to spread the queues over.  Each directory
+     * gets it's own journal, index and write thread.  Units of work
+     * are only atomic within a single directory, a crash can lead to
+     * messages moved between directories getting redelivered.
+     */
+    @XmlElement(name="stripe_directory")
+    public ArrayList<File> stripe_directories = new ArrayList<File>();
+
     @XmlAttribute(name="read_threads")
     public Integer read_threads;
 
@@ -75,9 +86,27 @@ public class LevelDBStoreDTO extends StoreDTO {
     @XmlAttribute(name="log_compression")
     public String log_compression;
 
+    @XmlAttribute(name="log_compression_threshold")
+    public String log_compression_threshold;
+
     @XmlAttribute(name="index_factory")
     public String index_factory;
 
+    @XmlAttribute(name="index_snapshot_threshold")
+    public String index_snapshot_threshold;
+
+    @XmlAttribute(name="log_compaction_threshold")
+    public Integer log_compaction_threshold;
+
+    @XmlAttribute(name="log_compaction_limit")
+    public String log_compaction_limit;
+
+    @XmlAttribute(name="log_mmap_limit")
+    public String log_mmap_limit;
+
+    @XmlAttribute(name="log_read_ahead")
+    public String log_read_ahead;
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -87,6 +116,8 @@ public class LevelDBStoreDTO extends StoreDTO {
         LevelDBStoreDTO that = (LevelDBStoreDTO) o;
 
         if (directory != null ? !directory.equals(that.directory) : that.directory != null) return false;
+        if (stripe_directories != null ? !stripe_directories.equals(that.stripe_directories) : that.stripe_directories != null)
+            return false;
         if (index_block_restart_interval != null ? !index_block_restart_interval.equals(that.index_block_restart_interval) : that.index_block_restart_interval != null)
             return false;
         if (index_block_size != null ? !index_block_size.equals(that.index_block_size) : that.index_block_size != null)
@@ -100,7 +131,19 @@ public class LevelDBStoreDTO extends StoreDTO {
         if (index_write_buffer_size != null ? !index_write_buffer_size.equals(that.index_write_buffer_size) : that.index_write_buffer_size != null)
             return false;
         if (index_factory != null ? !index_factory.equals(that.index_factory) : that.index_factory != null) return false;
+        if (index_snapshot_threshold != null ? !index_snapshot_threshold.equals(that.index_snapshot_threshold) : that.index_snapshot_threshold != null)
+            return false;
         if (log_size != null ? !log_size.equals(that.log_size) : that.log_size != null) return false;
+        if (log_compaction_threshold != null ? !log_compaction_threshold.equals(that.log_compaction_threshold) : that.log_compaction_threshold != null)
+            return false;
+        if (log_compaction_limit != null ? !log_compaction_limit.equals(that.log_compaction_limit) : that.log_compaction_limit != null)
+            return false;
+        if (log_compression_threshold != null ? !log_compression_threshold.equals(that.log_compression_threshold) : that.log_compression_threshold != null)
+            return false;
+        if (log_mmap_limit != null ? !log_mmap_limit.equals(that.log_mmap_limit) : that.log_mmap_limit != null)
+            return false;
+        if (log_read_ahead != null ? !log_read_ahead.equals(that.log_read_ahead) : that.log_read_ahead != null)
+            return false;
         if (paranoid_checks != null ? !paranoid_checks.equals(that.paranoid_checks) : that.paranoid_checks != null)
             return false;
         if (read_threads != null ? !read_threads.equals(that.read_threads) : that.read_threads != null) return false;
@@ -117,6 +160,7 @@ public class LevelDBStoreDTO extends StoreDTO {
         result = 31 * result + (directory != null ? directory.hashCode() : 0);
         result = 31 * result + (read_threads != null ? read_threads.hashCode() : 0);
         result = 31 * result + (index_factory != null ? index_factory.hashCode() : 0);
+        result = 31 * result + (index_snapshot_threshold != null ? index_snapshot_threshold.hashCode() : 0);
         result = 31 * result + (sync != null ? sync.hashCode() : 0);
         result = 31 * result + (paranoid_checks != null ? paranoid_checks.hashCode() : 0);
         result = 31 * result + (verify_checksums != null ? verify_checksums.hashCode() : 0);
@@ -127,6 +171,12 @@ public class LevelDBStoreDTO extends StoreDTO {
         result = 31 * result + (index_block_size != null ? index_block_size.hashCode() : 0);
         result = 31 * result + (index_cache_size != null ? index_cache_size.hashCode() : 0);
         result = 31 * result + (index_compression != null ? index_compression.hashCode() : 0);
+        result = 31 * result + (log_compaction_threshold != null ? log_compaction_threshold.hashCode() : 0);
+        result = 31 * result + (log_compaction_limit != null ? log_compaction_limit.hashCode() : 0);
+        result = 31 * result + (log_compression_threshold != null ? log_compression_threshold.hashCode() : 0);
+        result = 31 * result + (log_mmap_limit != null ? log_mmap_limit.hashCode() : 0);
+        result = 31 * result + (log_read_ahead != null ? log_read_ahead.hashCode() : 0);
+        result = 31 * result + (stripe_directories != null ? stripe_directories.hashCode() : 0);
         return result;
     }
 }
@@ -16,6 +16,7 @@
  */
 package org.apache.activemq.apollo.broker.store.leveldb.dto;
 
+import org.apache.activemq.apollo.dto.HistogramDTO;
 import org.apache.activemq.apollo.dto.IntMetricDTO;
 import org.apache.activemq.apollo.dto.StoreStatusDTO;
 import org.apache.activemq.apollo.dto.TimeMetricDTO;
@@ -26,6 +27,8 @@ import javax.xml.bind.annotation.XmlAccessType;
 import javax.xml.bind.annotation.XmlAccessorType;
 import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlRootElement;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
@@ -44,6 +47,15 @@ public class LevelDBStoreStatusDTO extends StoreStatusDTO {
     @XmlElement(name="message_load_batch_size")
     public IntMetricDTO message_load_batch_size;
 
+    @XmlElement(name="flush_batch_size")
+    public HistogramDTO flush_batch_size;
+
+    @XmlElement(name="flush_wait")
+    public HistogramDTO flush_wait;
+
+    @XmlElement(name="log_codec")
+    public List<LogCodecStatusDTO> log_codecs = new ArrayList<LogCodecStatusDTO>();
+
     @XmlElement(name="leveldb_stats")
     public String index_stats;
 
@@ -0,0 +1,90 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker.store.leveldb.dto;
+
+import org.codehaus.jackson.annotate.JsonIgnoreProperties;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * Compression statistics of a log codec.
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+@XmlRootElement(name="log_codec_status")
+@XmlAccessorType(XmlAccessType.FIELD)
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class LogCodecStatusDTO {
+
+    /**
+     * The id of the codec stored with the compressed messages.
+     */
+    @XmlAttribute
+    public int id;
+
+    @XmlAttribute
+    public String name;
+
+    /**
+     * The number of messages the codec compressed.
+     */
+    @XmlAttribute
+    public long compressed;
+
+    /**
+     * The number of messages which were stored without trying
+     * to compress them because they were too small or recent
+     * messages did not compress.
+     */
+    @XmlAttribute
+    public long skipped;
+
+    /**
+     * The size of the messages the codec compressed.
+     */
+    @XmlAttribute
+    public long bytes_in;
+
+    /**
+     * The size the compressed messages were stored with.  Messages
+     * which did not get smaller are counted with their original size.
+     */
+    @XmlAttribute
+    public long bytes_out;
+
+    /**
+     * The time spent compressing in microseconds.
+     */
+    @XmlAttribute
+    public long compress_time;
+
+    /**
+     * The number of messages the codec uncompressed.
+     */
+    @XmlAttribute
+    public long uncompressed;
+
+    /**
+     * The time spent uncompressing in microseconds.
+     */
+    @XmlAttribute
+    public long uncompress_time;
+
+}
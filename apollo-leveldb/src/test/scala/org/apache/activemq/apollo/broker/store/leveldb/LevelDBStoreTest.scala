@@ -18,7 +18,14 @@ package org.apache.activemq.apollo.broker.store.leveldb
  */
 
 import dto.LevelDBStoreDTO
-import org.apache.activemq.apollo.broker.store.{Store, StoreFunSuiteSupport}
+import org.apache.activemq.apollo.broker.store.{MessageRecord, QueueEntryRange, QueueEntryRecord, Store, StoreFunSuiteSupport}
+import org.apache.activemq.apollo.util.{Histogram, LoggingTracker, TaskTracker, sync_cb}
+import org.apache.activemq.apollo.util.FileSupport._
+import org.fusesource.hawtbuf.AsciiBuffer._
+import org.fusesource.hawtbuf.UTF8Buffer
+import java.io._
+import java.util.concurrent.{CountDownLatch, TimeUnit}
+import org.fusesource.hawtdispatch._
 
 /**
  * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
@@ -34,4 +41,379 @@ class LevelDBStoreTest extends StoreFunSuiteSupport {
     })
   }
 
+  test("online backup") {
+    val A = add_queue("A")
+    val msg_keys = populate(A, "message 1"::"message 2"::"message 3"::Nil)
+
+    val backup_dir = test_data_dir / "backup"
+    backup_dir.recursive_delete
+    expect(None) {
+      sync_cb[Option[String]](store.backup(backup_dir, _))
+    }
+
+    // The backup directory should work as the directory of another store.
+    val copy = new LevelDBStore({
+      val rc = new LevelDBStoreDTO
+      rc.directory = backup_dir
+      rc
+    })
+    var tracker = new LoggingTracker("backup store startup")
+    tracker.start(copy)
+    tracker.await
+    try {
+      expect(Seq(A)) {
+        sync_cb[Seq[Long]](copy.list_queues(_))
+      }
+      expect(3) {
+        sync_cb[Seq[QueueEntryRecord]](cb => copy.list_queue_entries(A, 0, Long.MaxValue)(cb)).size
+      }
+      val rc:Option[MessageRecord] = sync_cb(cb => copy.load_message(msg_keys.head._1, msg_keys.head._2)(cb))
+      expect(ascii("message 1").buffer) {
+        rc.get.buffer
+      }
+    } finally {
+      tracker = new LoggingTracker("backup store stop")
+      tracker.stop(copy)
+      tracker.await
+    }
+  }
+
+  test("queue entry ranges are kept in memory") {
+    val A = add_queue("A")
+    val msg_keys = populate(A, "message 1"::"message 2"::"message 3"::"message 4"::Nil) ++
+      populate(A, "message 100"::"message 101"::Nil, 100)
+
+    var batch = store.create_uow
+    val (key, locator, seq) = msg_keys(1)
+    batch.dequeue(entry(A, seq, (key, locator)))
+    val tracker = new TaskTracker()
+    batch.on_complete(tracker.task("uow complete").run)
+    batch.release
+    tracker.await
+
+    def check = {
+      val rc = sync_cb[Seq[QueueEntryRange]](cb => store.list_queue_entry_ranges(A, 2)(cb))
+      expect(Seq((1L, 3L, 2), (4L, 100L, 2), (101L, 101L, 1))) {
+        rc.map(x => (x.first_entry_seq, x.last_entry_seq, x.count))
+      }
+    }
+    check
+
+    // The summaries get rebuilt from the index when the queue is first listed.
+    restart_store
+    expect(false)(client.queue_summaries.containsKey(A))
+    check
+    expect(true)(client.queue_summaries.containsKey(A))
+
+    // Updates are applied to the loaded summary.
+    batch = store.create_uow
+    val (key2, locator2, seq2) = msg_keys(2)
+    batch.dequeue(entry(A, seq2, (key2, locator2)))
+    val tracker2 = new TaskTracker()
+    batch.on_complete(tracker2.task("uow complete").run)
+    batch.release
+    tracker2.await
+    expect(Seq((1L, 4L, 2), (100L, 101L, 2))) {
+      sync_cb[Seq[QueueEntryRange]](cb => store.list_queue_entry_ranges(A, 2)(cb)).map(x => (x.first_entry_seq, x.last_entry_seq, x.count))
+    }
+  }
+
+  test("queue entry senders are stored once") {
+    val A = add_queue("A")
+    var batch = store.create_uow
+    val msg_keys = (1 to 3).map { i =>
+      val msg_key = add_message(batch, "message " + i)
+      val record = entry(A, i, msg_key)
+      // The queues hand the store UTF8Buffer senders.
+      record.sender = new UTF8Buffer("queue:orders")
+      batch.enqueue(record)
+      msg_key
+    }
+    val tracker = new TaskTracker()
+    batch.on_complete(tracker.task("uow complete").run)
+    batch.release
+    msg_keys.foreach(x => store.flush_message(x._1) {})
+    tracker.await
+
+    def check = {
+      expect(1)(client.senders.size)
+      expect(Seq("queue:orders", "queue:orders", "queue:orders")) {
+        sync_cb[Seq[QueueEntryRecord]](cb => store.list_queue_entries(A, 0, Long.MaxValue)(cb)).map(_.sender.utf8().toString)
+      }
+    }
+    check
+
+    restart_store
+    check
+
+    val file = test_data_dir / "senders-export.tgz"
+    file.getParentFile.mkdirs()
+    using(new BufferedOutputStream(new FileOutputStream(file))) { os =>
+      expect(None) {
+        sync_cb[Option[String]](store.export_data(os, _))
+      }
+    }
+    purge
+    expect(0)(client.senders.size)
+    using(new BufferedInputStream(new FileInputStream(file))) { is =>
+      expect(None) {
+        sync_cb[Option[String]](store.import_data(is, _))
+      }
+    }
+    check
+  }
+
+  test("log compaction moves the live messages") {
+    val directory = test_data_dir / "compaction"
+    directory.recursive_delete
+    def create = new LevelDBStore({
+      val rc = new LevelDBStoreDTO
+      rc.directory = directory
+      rc.log_size = "16k"
+      rc.log_compression = "none"
+      rc.log_compaction_threshold = 50
+      rc
+    })
+
+    with_store(create) {
+      val A = add_queue("A")
+      val padding = "x" * 1024
+      val msg_keys = populate(A, (1 to 64).map("message " + _ + padding).toList)
+
+      // Only keep the first and the last message so that the
+      // first journal is mostly unused.
+      val kept = msg_keys.head :: msg_keys.last :: Nil
+      var batch = store.create_uow
+      msg_keys.filterNot(kept.contains(_)).foreach { case (key, locator, seq) =>
+        batch.dequeue(entry(A, seq, (key, locator)))
+      }
+      val tracker = new TaskTracker()
+      batch.on_complete(tracker.task("uow complete").run)
+      batch.release
+      tracker.await
+
+      val locators = kept.map(_._2.get().asInstanceOf[(Long, Int)])
+      val journal = client.log.log_info(locators.head._1).get.position
+
+      def gc = sync_cb[Unit](cb => store.asInstanceOf[LevelDBStore].gc(cb(())))
+      def check_loads = {
+        expect(Seq("message 1" + padding, "message 64" + padding)) {
+          kept.map { case (key, locator, _) =>
+            val rc: Option[MessageRecord] = sync_cb(cb => store.load_message(key, locator)(cb))
+            rc.get.buffer.ascii.toString
+          }
+        }
+      }
+
+      // The first gc compacts the journal and points the
+      // broker's locators at the moved messages.
+      gc
+      expect(false) {
+        kept.map(_._2.get()) == locators
+      }
+      expect(1)(client.compaction_epoch.get)
+      // The locators are now tracked under their new positions.
+      kept.foreach { case (_, locator, _) =>
+        val (pos, _) = locator.get().asInstanceOf[(Long, Int)]
+        expect(true)(client.live_locators.containsKey(pos))
+      }
+      locators.foreach { case (pos, _) =>
+        expect(false)(client.live_locators.containsKey(pos))
+      }
+      check_loads
+
+      // The next gc can delete the compacted journal.
+      gc
+      expect(false) {
+        client.log.log_infos.containsKey(journal)
+      }
+      check_loads
+
+      restart_store(create)
+      val entries = sync_cb[Seq[QueueEntryRecord]](cb => store.list_queue_entries(A, 0, Long.MaxValue)(cb))
+      expect(Seq("message 1" + padding, "message 64" + padding)) {
+        entries.map { entry =>
+          val rc: Option[MessageRecord] = sync_cb(cb => store.load_message(entry.message_key, entry.message_locator)(cb))
+          rc.get.buffer.ascii.toString
+        }
+      }
+    }
+  }
+
+  test("the index is rebuilt by replaying the log") {
+    val directory = test_data_dir / "replay"
+    directory.recursive_delete
+    def create = new LevelDBStore({
+      val rc = new LevelDBStoreDTO
+      rc.directory = directory
+      // Keeps the large message larger than a replay chunk in the log.
+      rc.log_compression = "none"
+      rc
+    })
+
+    with_store(create) {
+      val A = add_queue("A")
+      val B = add_queue("B")
+      val large = "x" * (LevelDBClient.REPLAY_CHUNK_SIZE + 1024)
+
+      var batch = store.create_uow
+      val msg_keys = ("message 1" :: large :: "message 3" :: Nil).map(add_message(batch, _))
+      msg_keys.zipWithIndex.foreach { case (msg_key, i) =>
+        val record = entry(A, i + 1, msg_key)
+        record.sender = new UTF8Buffer("queue:replay")
+        batch.enqueue(record)
+      }
+      batch.enqueue(entry(B, 1, msg_keys.last))
+      var tracker = new TaskTracker()
+      batch.on_complete(tracker.task("uow complete").run)
+      batch.release
+      msg_keys.foreach(x => store.flush_message(x._1) {})
+      tracker.await
+
+      batch = store.create_uow
+      batch.dequeue(entry(A, 1, msg_keys.head))
+      tracker = new TaskTracker()
+      batch.on_complete(tracker.task("uow complete").run)
+      batch.release
+      tracker.await
+
+      def log_refs = client.log_refs.map { case (k, v) => (k, v.get) }.filter(_._2 != 0).toMap
+      def check = {
+        expect(Seq(A, B)) {
+          sync_cb[Seq[Long]](store.list_queues(_)).sorted
+        }
+        val entries = sync_cb[Seq[QueueEntryRecord]](cb => store.list_queue_entries(A, 0, Long.MaxValue)(cb))
+        expect(Seq(2L, 3L))(entries.map(_.entry_seq))
+        expect(Seq("queue:replay", "queue:replay"))(entries.map(_.sender.utf8().toString))
+        expect(1)(client.senders.size)
+        expect(Seq(large, "message 3")) {
+          entries.map { entry =>
+            val rc: Option[MessageRecord] = sync_cb(cb => store.load_message(entry.message_key, entry.message_locator)(cb))
+            rc.get.buffer.ascii.toString
+          }
+        }
+        expect(Seq(1L)) {
+          sync_cb[Seq[QueueEntryRecord]](cb => store.list_queue_entries(B, 0, Long.MaxValue)(cb)).map(_.entry_seq)
+        }
+      }
+      check
+      val expected_log_refs = log_refs
+
+      // Without an index snapshot, the whole log gets replayed.
+      var service_tracker = new LoggingTracker("store stop")
+      service_tracker.stop(store)
+      service_tracker.await
+      directory.list_files.filter(_.getName.endsWith(LevelDBClient.INDEX_SUFFIX)).foreach(_.recursive_delete)
+      store = create
+      service_tracker = new LoggingTracker("store start")
+      service_tracker.start(store)
+      service_tracker.await
+
+      check
+      expect(expected_log_refs)(log_refs)
+    }
+  }
+
+  test("group commits wait for more UOWs within the latency target") {
+    val directory = test_data_dir / "group-commit"
+    directory.recursive_delete
+    def create = new LevelDBStore({
+      val rc = new LevelDBStoreDTO
+      rc.directory = directory
+      rc.flush_delay = 0L
+      rc.group_commit_latency = 2000L
+      rc
+    })
+
+    with_store(create) {
+      val leveldb = store.asInstanceOf[LevelDBStore]
+      def on_store[T](func: => T) = leveldb.dispatch_queue.future(func).await()
+      val A = add_queue("A")
+
+      // Pins the averages the group commit window is computed from.
+      def expect_arrivals_every(millis: Long) = on_store {
+        leveldb.avg_flush_time = 0
+        leveldb.last_flush_arrival = 0
+        leveldb.avg_flush_arrival = TimeUnit.MILLISECONDS.toNanos(millis)
+      }
+
+      def release_uow(seq: Long) = {
+        val batch = store.create_uow
+        batch.enqueue(entry(A, seq, add_message(batch, "message " + seq)))
+        val done = new CountDownLatch(1)
+        batch.on_complete(done.countDown())
+        batch.release
+        done
+      }
+
+      def group_size = on_store(leveldb.flush_group.size)
+
+      // The first UOWs wait for more UOWs to show up.
+      expect_arrivals_every(1)
+      val start = System.currentTimeMillis()
+      val first = release_uow(1)
+      within(1, TimeUnit.SECONDS) {
+        expect(1)(group_size)
+      }
+      expect_arrivals_every(1)
+      val second = release_uow(2)
+      within(1, TimeUnit.SECONDS) {
+        expect(2)(group_size)
+      }
+      expect(1)(first.getCount)
+
+      // No other UOW is expected within the window, so the group gets flushed.
+      expect_arrivals_every(10 * 1000)
+      val third = release_uow(3)
+      expect(true)(first.await(1, TimeUnit.SECONDS))
+      expect(true)(second.await(1, TimeUnit.SECONDS))
+      expect(true)(third.await(1, TimeUnit.SECONDS))
+      expect(1) {
+        leveldb.flush_batch_size_counter(false).buckets(Histogram.bucket(3))
+      }
+
+      // The timer of the first group must not flush the next group early.
+      Thread.sleep((start + 1000 - System.currentTimeMillis()).max(0))
+      expect_arrivals_every(1)
+      val fourth = release_uow(4)
+      Thread.sleep((start + 2500 - System.currentTimeMillis()).max(0))
+      expect(1)(fourth.getCount)
+      expect(true)(fourth.await(5, TimeUnit.SECONDS))
+    }
+  }
+
+  def client = store.asInstanceOf[LevelDBStore].client
+
+  /**
+   * Runs the function against another store, which
+   * gets started before and stopped after it.
+   */
+  def with_store(create: => Store)(func: => Unit) = {
+    val original = store
+    store = create
+    var tracker = new LoggingTracker("store startup")
+    tracker.start(store)
+    tracker.await
+    try {
+      func
+    } finally {
+      tracker = new LoggingTracker("store stop")
+      tracker.stop(store)
+      tracker.await
+      store = original
+    }
+  }
+
+  def restart_store: Unit = restart_store(create_store(5*1000))
+
+  def restart_store(create: => Store): Unit = {
+    var tracker = new LoggingTracker("store restart")
+    tracker.stop(store)
+    tracker.await
+    store = create
+    tracker = new LoggingTracker("store restart")
+    tracker.start(store)
+    tracker.await
+  }
+
 }
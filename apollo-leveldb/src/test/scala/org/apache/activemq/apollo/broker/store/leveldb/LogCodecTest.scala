@@ -0,0 +1,132 @@
+package org.apache.activemq.apollo.broker.store.leveldb
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.activemq.apollo.util.FunSuiteSupport
+import org.fusesource.hawtbuf.Buffer
+import java.util.Random
+import java.util.zip.Deflater
+
+class ReservedIdCodec extends LogCodec {
+  def id = LogCodec.DEFLATE
+  def name = "reserved"
+  def compress(input: Buffer) = input
+  def uncompress(input: Buffer) = input
+}
+
+class CustomIdCodec extends ReservedIdCodec {
+  override def id = 100
+  override def name = "custom"
+}
+
+/**
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class LogCodecTest extends FunSuiteSupport {
+
+  def compressible(size: Int) = new Buffer(("hello world " * (size / 12 + 1)).substring(0, size).getBytes("UTF-8"))
+
+  def incompressible(size: Int) = {
+    val rc = new Array[Byte](size)
+    new Random(size).nextBytes(rc)
+    new Buffer(rc)
+  }
+
+  // Copies the buffer to a non zero offset of a larger array.
+  def shifted(buffer: Buffer) = {
+    val rc = new Array[Byte](buffer.length + 7)
+    System.arraycopy(buffer.data, buffer.offset, rc, 3, buffer.length)
+    new Buffer(rc, 3, buffer.length)
+  }
+
+  test("builtin codecs round trip") {
+    LogCodec.builtin.foreach { codec =>
+      val input = compressible(10 * 1024)
+      val compressed = codec.compress(input)
+      expect(true, codec.name) { compressed.length < input.length }
+      expect(input, codec.name) { codec.uncompress(compressed) }
+      expect(input, codec.name) { codec.uncompress(shifted(compressed)) }
+    }
+  }
+
+  test("deflate records are prefixed with their length") {
+    val codec = new DeflateCodec(Deflater.BEST_SPEED)
+    val input = compressible(10 * 1024)
+    val compressed = codec.compress(input)
+    expect(input.length) { LogCodec.read_length(compressed) }
+    expect(input.length) { LogCodec.read_length(shifted(compressed)) }
+    expect(input) { codec.uncompress(compressed) }
+
+    // The level does not change the format.
+    expect(input) { new DeflateCodec(Deflater.BEST_COMPRESSION).uncompress(compressed) }
+
+    intercept[java.io.IOException] {
+      codec.uncompress(new Buffer(compressed.data, compressed.offset, compressed.length / 2))
+    }
+  }
+
+  test("records below the threshold are not compressed") {
+    val compressor = new LogCompressor(new DeflateCodec(Deflater.DEFAULT_COMPRESSION), 100)
+    expect(null) { compressor.compress(compressible(99)) }
+    expect(1) { compressor.stats.skipped.get }
+    expect(0) { compressor.stats.compressed.get }
+
+    val input = compressible(100)
+    val compressed = compressor.compress(input)
+    expect(true) { compressed != null }
+    expect(input) { compressor.codec.uncompress(compressed) }
+    expect(1) { compressor.stats.compressed.get }
+  }
+
+  test("incompressible streaks make the compressor back off") {
+    val compressor = new LogCompressor(new DeflateCodec(Deflater.DEFAULT_COMPRESSION), 0)
+    for (i <- 0 until LogCodec.INCOMPRESSIBLE_STREAK) {
+      expect(null) { compressor.compress(incompressible(1024)) }
+    }
+    expect(LogCodec.INCOMPRESSIBLE_STREAK) { compressor.stats.compressed.get }
+
+    // Even compressible records get skipped for a while.
+    for (i <- 0 until LogCodec.INCOMPRESSIBLE_SKIP) {
+      expect(null) { compressor.compress(compressible(1024)) }
+    }
+    expect(LogCodec.INCOMPRESSIBLE_SKIP) { compressor.stats.skipped.get }
+
+    expect(true) { compressor.compress(compressible(1024)) != null }
+    expect(LogCodec.INCOMPRESSIBLE_STREAK + 1) { compressor.stats.compressed.get }
+  }
+
+  test("compressible records reset the incompressible streak") {
+    val compressor = new LogCompressor(new DeflateCodec(Deflater.DEFAULT_COMPRESSION), 0)
+    for (i <- 0 until LogCodec.INCOMPRESSIBLE_STREAK - 1) {
+      compressor.compress(incompressible(1024))
+    }
+    compressor.compress(compressible(1024))
+    compressor.compress(incompressible(1024))
+    expect(true) { compressor.compress(compressible(1024)) != null }
+    expect(0) { compressor.stats.skipped.get }
+  }
+
+  test("custom codecs") {
+    expect(None) { LogCodec.create("org.example.MissingCodec") }
+    expect(None) { LogCodec.create(classOf[ReservedIdCodec].getName) }
+    expect(Some(100)) { LogCodec.create(classOf[CustomIdCodec].getName).map(_.id) }
+    expect(None) { LogCodec.create("none") }
+    expect(Some(LogCodec.DEFLATE)) { LogCodec.create("deflate:9").map(_.id) }
+  }
+
+}
@@ -0,0 +1,84 @@
+package org.apache.activemq.apollo.broker.store.leveldb
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import dto.LevelDBStoreDTO
+import org.apache.activemq.apollo.broker.store.{MessageRecord, QueueEntryRecord, Store, StoreFunSuiteSupport}
+import org.apache.activemq.apollo.util.{LoggingTracker, TaskTracker, sync_cb}
+import org.apache.activemq.apollo.util.FileSupport._
+import org.fusesource.hawtbuf.AsciiBuffer._
+
+/**
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class StripedLevelDBStoreTest extends StoreFunSuiteSupport {
+
+  def create_store(flushDelay: Long): Store = {
+    new LevelDBStoreFactory().create({
+      val rc = new LevelDBStoreDTO
+      rc.directory = data_directory / "stripe-0"
+      rc.stripe_directories.add(data_directory / "stripe-1")
+      rc.stripe_directories.add(data_directory / "stripe-2")
+      rc.flush_delay = flushDelay
+      rc
+    })
+  }
+
+  test("moving a message between stripes survives a restart") {
+    val A = add_queue("A")
+    val B = add_queue("B")
+    val (key, locator, seq) = populate(A, "message 1"::Nil).head
+
+    // A and B are in different stripes.
+    val batch = store.create_uow
+    batch.dequeue(entry(A, seq, (key, locator)))
+    batch.enqueue(entry(B, 1, (key, locator)))
+    val tracker = new TaskTracker()
+    batch.on_complete(tracker.task("uow complete").run)
+    batch.complete_asap()
+    batch.release
+    tracker.await
+
+    def check = {
+      expect(Seq[Long]()) {
+        sync_cb[Seq[QueueEntryRecord]](cb => store.list_queue_entries(A, 0, Long.MaxValue)(cb)).map(_.entry_seq)
+      }
+      val entries = sync_cb[Seq[QueueEntryRecord]](cb => store.list_queue_entries(B, 0, Long.MaxValue)(cb))
+      expect(Seq(1L))(entries.map(_.entry_seq))
+      val rc = sync_cb[Option[MessageRecord]](cb => store.load_message(entries.head.message_key, entries.head.message_locator)(cb))
+      expect(ascii("message 1").buffer) {
+        rc.get.buffer
+      }
+    }
+    check
+
+    restart_store
+    check
+  }
+
+  def restart_store = {
+    var tracker = new LoggingTracker("store restart")
+    tracker.stop(store)
+    tracker.await
+    store = create_store(5*1000)
+    tracker = new LoggingTracker("store restart")
+    tracker.start(store)
+    tracker.await
+  }
+
+}
@@ -25,7 +25,7 @@ import collection.mutable.{ListBuffer, HashMap}
 
 import java.io.IOException
 import org.apache.activemq.apollo.selector.SelectorParser
-import org.apache.activemq.apollo.filter.{BooleanExpression, FilterException}
+import org.apache.activemq.apollo.filter.{BooleanExpression, FilterException, SelectorCompiler}
 import org.apache.activemq.apollo.broker.store._
 import org.apache.activemq.apollo.util._
 import java.util.concurrent.TimeUnit
@@ -813,6 +813,7 @@ class OpenwireProtocolHandler extends ProtocolHandler {
     override def toString = "openwire consumer id:"+info.getConsumerId+", remote address: "+security_context.remote_address
 
     var selector_expression:BooleanExpression = _
+    var compiled_selector:BooleanExpression = _
     var addresses:Array[_ <: BindAddress] = _
 
     val consumer_sink = sink_manager.open()
@@ -876,6 +877,9 @@ class OpenwireProtocolHandler extends ProtocolHandler {
               fail("Invalid selector expression: "+e.getMessage)
           }
       }
+      if( selector_expression!=null ) {
+        compiled_selector = SelectorCompiler.compile(selector_expression)
+      }
 
       if( is_durable_sub ) {
 
@@ -925,10 +929,12 @@ class OpenwireProtocolHandler extends ProtocolHandler {
     def is_persistent = false
     override def receive_buffer_size = buffer_size
 
+    override def message_selector = selector_expression
+
     def matches(delivery:Delivery) = {
       if( delivery.message.protocol eq OpenwireProtocol ) {
-        if( selector_expression!=null ) {
-          selector_expression.matches(delivery.message)
+        if( compiled_selector!=null ) {
+          compiled_selector.matches(delivery.message)
         } else {
           true
         }
@@ -1121,11 +1127,7 @@ class OpenwireProtocolHandler extends ProtocolHandler {
             trace("%s: ACK failed, invalid message id: %s, dest: %s".format(security_context.remote_address, msgid, addresses.mkString(",")))
           } else {
             consumer_acks = not_acked
-            acked.foreach{case (id, delivery)=>
-              if( delivery.ack!=null ) {
-                delivery.ack(consumed, uow)
-              }
-            }
+            BatchAck.ack(acked.map(_._2.ack), consumed, uow)
           }
         }
 
@@ -0,0 +1,40 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.filter;
+
+import org.fusesource.hawtbuf.AsciiBuffer;
+
+/**
+ * A Filterable which can look up its properties using pre-encoded
+ * property names.  Filters which evaluate the same property against
+ * many messages encode the name once and avoid having the message
+ * encode it again on every lookup.
+ *
+ * @version $Revision: 1.1 $
+ */
+public interface AsciiFilterable extends Filterable {
+
+    /**
+     * Extracts the named message property.  Must return the same
+     * value as {@link #getProperty(String)} for the decoded name.
+     *
+     * @param name
+     * @return
+     */
+    Object getProperty(AsciiBuffer name);
+
+}
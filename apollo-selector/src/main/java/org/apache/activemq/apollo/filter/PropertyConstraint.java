@@ -0,0 +1,126 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.filter;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Describes the set of values a message property must be set to
+ * for a selector expression to match.  It is extracted from
+ * the equality and <code>IN</code> predicates of the expression so that
+ * selectors can be indexed by property value.  A message whose property
+ * value is not in the set will never match the expression, but a message
+ * whose property value is in the set still needs to be evaluated against
+ * the full expression.
+ *
+ * Only string constants are indexed since the comparison of other types
+ * of values can involve type conversions.
+ */
+public class PropertyConstraint {
+
+    private final String property;
+    private final Set<Object> values;
+
+    public PropertyConstraint(String property, Set<Object> values) {
+        this.property = property;
+        this.values = values;
+    }
+
+    public String getProperty() {
+        return property;
+    }
+
+    public Set<Object> getValues() {
+        return values;
+    }
+
+    /**
+     * @return the constraint implied by the expression or null if
+     *         the expression can not be indexed.
+     */
+    public static PropertyConstraint extract(BooleanExpression expression) {
+        if (expression instanceof LogicExpression) {
+            LogicExpression logic = (LogicExpression) expression;
+            PropertyConstraint left = extract((BooleanExpression) logic.getLeft());
+            PropertyConstraint right = extract((BooleanExpression) logic.getRight());
+            if ("AND".equals(logic.getExpressionSymbol())) {
+                // Both sides must match, so either side's constraint applies.
+                if (left == null) {
+                    return right;
+                }
+                if (right == null) {
+                    return left;
+                }
+                return left.values.size() <= right.values.size() ? left : right;
+            } else if ("OR".equals(logic.getExpressionSymbol())) {
+                // Either side may match, so it's only indexable if both sides
+                // constrain the same property.
+                if (left != null && right != null && left.property.equals(right.property)) {
+                    HashSet<Object> values = new HashSet<Object>(left.values);
+                    values.addAll(right.values);
+                    return new PropertyConstraint(left.property, values);
+                }
+            }
+            return null;
+        }
+
+        if (expression instanceof ComparisonExpression) {
+            ComparisonExpression comparison = (ComparisonExpression) expression;
+            if ("=".equals(comparison.getExpressionSymbol())) {
+                PropertyConstraint rc = create(comparison.getLeft(), comparison.getRight());
+                if (rc == null) {
+                    rc = create(comparison.getRight(), comparison.getLeft());
+                }
+                return rc;
+            }
+            return null;
+        }
+
+        if (expression instanceof UnaryExpression.InExpression) {
+            UnaryExpression.InExpression in = (UnaryExpression.InExpression) expression;
+            if (!in.not && in.right instanceof PropertyExpression) {
+                HashSet<Object> values = new HashSet<Object>();
+                if (in.inList != null) {
+                    for (Object value : in.inList) {
+                        if (!(value instanceof String)) {
+                            return null;
+                        }
+                        values.add(value);
+                    }
+                }
+                return new PropertyConstraint(((PropertyExpression) in.right).getName(), values);
+            }
+        }
+        return null;
+    }
+
+    private static PropertyConstraint create(Expression property, Expression constant) {
+        if (property instanceof PropertyExpression && constant instanceof ConstantExpression) {
+            Object value = ((ConstantExpression) constant).getValue();
+            if (value instanceof String) {
+                return new PropertyConstraint(((PropertyExpression) property).getName(), Collections.singleton(value));
+            }
+        }
+        return null;
+    }
+
+    public String toString() {
+        return property + " IN " + values;
+    }
+}
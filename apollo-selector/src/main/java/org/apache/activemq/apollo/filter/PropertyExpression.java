@@ -17,6 +17,7 @@
 
 package org.apache.activemq.apollo.filter;
 
+import org.fusesource.hawtbuf.AsciiBuffer;
 
 /**
  * Represents a property expression
@@ -26,12 +27,19 @@ package org.apache.activemq.apollo.filter;
 public class PropertyExpression implements Expression {
 
     private final String name;
+    private final AsciiBuffer asciiName;
 
     public PropertyExpression(String name) {
         this.name = name;
+        this.asciiName = new AsciiBuffer(name);
+        // computes and caches the hash code up front.
+        this.asciiName.hashCode();
     }
 
     public Object evaluate(Filterable message) throws FilterException {
+        if (message instanceof AsciiFilterable) {
+            return ((AsciiFilterable)message).getProperty(asciiName);
+        }
         return message.getProperty(name);
     }
 
@@ -39,6 +47,10 @@ public class PropertyExpression implements Expression {
         return name;
     }
 
+    public AsciiBuffer getAsciiName() {
+        return asciiName;
+    }
+
     /**
      * @see java.lang.Object#toString()
      */
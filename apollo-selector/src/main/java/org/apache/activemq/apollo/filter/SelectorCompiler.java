@@ -0,0 +1,416 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.filter;
+
+import java.util.ArrayList;
+
+/**
+ * Compiles a parsed selector expression into an equivalent expression
+ * which is cheaper to evaluate.  It:
+ * <ul>
+ * <li>folds the sub expressions which do not depend on the message into constants</li>
+ * <li>flattens chains of <code>AND</code> and <code>OR</code> expressions into
+ *     a single short circuiting loop</li>
+ * <li>compares properties against string and integer constants without
+ *     going through the generic type conversions of {@link ComparisonExpression}</li>
+ * </ul>
+ * The compiled expression returns the same results as the original expression.
+ * The original expression is never modified since parsed expressions are cached
+ * and shared.
+ *
+ * @version $Revision: 1.1 $
+ */
+public class SelectorCompiler {
+
+    public static BooleanExpression compile(BooleanExpression expression) {
+        return (BooleanExpression) compileExpression(expression);
+    }
+
+    static Expression compileExpression(Expression expression) {
+        if (!(expression instanceof ConstantExpression) && isConstant(expression)) {
+            Expression folded = fold(expression);
+            if (folded != null) {
+                return folded;
+            }
+        }
+        if (expression instanceof LogicExpression) {
+            return compileLogic((LogicExpression) expression);
+        }
+        if (expression instanceof ComparisonExpression) {
+            return compileComparison((ComparisonExpression) expression);
+        }
+        if (expression instanceof UnaryExpression.BooleanUnaryExpression && "NOT".equals(((UnaryExpression) expression).getExpressionSymbol())) {
+            Expression operand = ((UnaryExpression) expression).getRight();
+            if (operand instanceof BooleanExpression) {
+                return new NotExpression((BooleanExpression) compileExpression(operand));
+            }
+        }
+        return expression;
+    }
+
+    /**
+     * @return true if the value of the expression does not depend on the message.
+     */
+    static boolean isConstant(Expression expression) {
+        if (expression instanceof ConstantExpression) {
+            return true;
+        }
+        if (expression instanceof BinaryExpression) {
+            BinaryExpression binary = (BinaryExpression) expression;
+            return isConstant(binary.getLeft()) && isConstant(binary.getRight());
+        }
+        if (expression instanceof UnaryExpression) {
+            return isConstant(((UnaryExpression) expression).getRight());
+        }
+        return false;
+    }
+
+    static Expression fold(Expression expression) {
+        Object value;
+        try {
+            value = expression.evaluate(null);
+        } catch (Throwable e) {
+            // leave it to the message evaluation to report the problem.
+            return null;
+        }
+        if (expression instanceof BooleanExpression) {
+            if (value == null) {
+                return ConstantExpression.NULL;
+            } else if (value == Boolean.TRUE) {
+                return ConstantExpression.TRUE;
+            } else if (value == Boolean.FALSE) {
+                return ConstantExpression.FALSE;
+            } else {
+                return null;
+            }
+        }
+        return new ConstantExpression(value);
+    }
+
+    static Expression compileLogic(LogicExpression expression) {
+        String symbol = expression.getExpressionSymbol();
+        boolean and = "AND".equals(symbol);
+        if (!and && !"OR".equals(symbol)) {
+            return expression;
+        }
+        ArrayList<BooleanExpression> terms = new ArrayList<BooleanExpression>();
+        flatten(expression, symbol, terms);
+
+        // Constant terms which do not change the result can be dropped.
+        // The last OR term is kept since it provides the result when
+        // none of the other terms are true.
+        ArrayList<BooleanExpression> rc = new ArrayList<BooleanExpression>(terms.size());
+        for (int i = 0; i < terms.size(); i++) {
+            BooleanExpression term = terms.get(i);
+            if (and && term == ConstantExpression.TRUE) {
+                continue;
+            }
+            if (!and && term == ConstantExpression.FALSE && i < terms.size() - 1) {
+                continue;
+            }
+            rc.add(term);
+            if (and && term == ConstantExpression.FALSE) {
+                // nothing after it will get evaluated.
+                break;
+            }
+        }
+        if (rc.isEmpty()) {
+            return ConstantExpression.TRUE;
+        }
+        if (rc.size() == 1) {
+            return rc.get(0);
+        }
+        BooleanExpression[] array = rc.toArray(new BooleanExpression[rc.size()]);
+        return and ? new AndExpression(array) : new OrExpression(array);
+    }
+
+    private static void flatten(Expression expression, String symbol, ArrayList<BooleanExpression> terms) {
+        if (expression instanceof LogicExpression && symbol.equals(((LogicExpression) expression).getExpressionSymbol())) {
+            LogicExpression logic = (LogicExpression) expression;
+            flatten(logic.getLeft(), symbol, terms);
+            flatten(logic.getRight(), symbol, terms);
+        } else {
+            terms.add((BooleanExpression) compileExpression(expression));
+        }
+    }
+
+    static Expression compileComparison(ComparisonExpression expression) {
+        String symbol = expression.getExpressionSymbol();
+        int op = operator(symbol);
+        if (op == 0) {
+            return expression;
+        }
+        Expression left = compileExpression(expression.getLeft());
+        Expression right = compileExpression(expression.getRight());
+
+        if (left instanceof PropertyExpression && right instanceof ConstantExpression) {
+            Expression rc = specialize(expression, (PropertyExpression) left, ((ConstantExpression) right).getValue(), op);
+            if (rc != null) {
+                return rc;
+            }
+        } else if (right instanceof PropertyExpression && left instanceof ConstantExpression) {
+            Expression rc = specialize(expression, (PropertyExpression) right, ((ConstantExpression) left).getValue(), -op);
+            if (rc != null) {
+                return rc;
+            }
+        }
+
+        if (left == expression.getLeft() && right == expression.getRight()) {
+            return expression;
+        }
+        try {
+            switch (op) {
+                case EQ:
+                    return ComparisonExpression.createEqual(left, right);
+                case GT:
+                    return ComparisonExpression.createGreaterThan(left, right);
+                case GTE:
+                    return ComparisonExpression.createGreaterThanEqual(left, right);
+                case LT:
+                    return ComparisonExpression.createLessThan(left, right);
+                default:
+                    return ComparisonExpression.createLessThanEqual(left, right);
+            }
+        } catch (RuntimeException e) {
+            return expression;
+        }
+    }
+
+    // Operators are encoded so that negating one gives you the
+    // operator to use when the operands are swapped.
+    static final int EQ = 3;
+    static final int GT = 1;
+    static final int GTE = 2;
+    static final int LT = -1;
+    static final int LTE = -2;
+
+    private static int operator(String symbol) {
+        if ("=".equals(symbol)) {
+            return EQ;
+        } else if (">".equals(symbol)) {
+            return GT;
+        } else if (">=".equals(symbol)) {
+            return GTE;
+        } else if ("<".equals(symbol)) {
+            return LT;
+        } else if ("<=".equals(symbol)) {
+            return LTE;
+        }
+        return 0;
+    }
+
+    private static Expression specialize(ComparisonExpression original, PropertyExpression property, Object value, int op) {
+        if (op == -EQ) {
+            op = EQ;
+        }
+        if (op == EQ && value instanceof String) {
+            return new StringEqualsExpression(original, property, (String) value);
+        }
+        if (value instanceof Integer || value instanceof Long) {
+            return new IntegerComparisonExpression(original, property, ((Number) value).longValue(), value instanceof Long, op);
+        }
+        return null;
+    }
+
+    static abstract class CompiledExpression implements BooleanExpression {
+        public boolean matches(Filterable message) throws FilterException {
+            Object object = evaluate(message);
+            return object != null && object == Boolean.TRUE;
+        }
+    }
+
+    /**
+     * Evaluates the terms in order until one of them is false or null.
+     */
+    static class AndExpression extends CompiledExpression {
+        private final BooleanExpression[] terms;
+
+        AndExpression(BooleanExpression[] terms) {
+            this.terms = terms;
+        }
+
+        public Object evaluate(Filterable message) throws FilterException {
+            int last = terms.length - 1;
+            for (int i = 0; i < last; i++) {
+                Boolean value = (Boolean) terms[i].evaluate(message);
+                if (value == null) {
+                    return null;
+                }
+                if (!value.booleanValue()) {
+                    return Boolean.FALSE;
+                }
+            }
+            return terms[last].evaluate(message);
+        }
+
+        public String toString() {
+            return join(terms, " AND ");
+        }
+    }
+
+    /**
+     * Evaluates the terms in order until one of them is true.
+     */
+    static class OrExpression extends CompiledExpression {
+        private final BooleanExpression[] terms;
+
+        OrExpression(BooleanExpression[] terms) {
+            this.terms = terms;
+        }
+
+        public Object evaluate(Filterable message) throws FilterException {
+            int last = terms.length - 1;
+            for (int i = 0; i < last; i++) {
+                Boolean value = (Boolean) terms[i].evaluate(message);
+                if (value != null && value.booleanValue()) {
+                    return Boolean.TRUE;
+                }
+            }
+            return terms[last].evaluate(message);
+        }
+
+        public String toString() {
+            return join(terms, " OR ");
+        }
+    }
+
+    static class NotExpression extends CompiledExpression {
+        private final BooleanExpression operand;
+
+        NotExpression(BooleanExpression operand) {
+            this.operand = operand;
+        }
+
+        public Object evaluate(Filterable message) throws FilterException {
+            Boolean value = (Boolean) operand.evaluate(message);
+            if (value == null) {
+                return null;
+            }
+            return value.booleanValue() ? Boolean.FALSE : Boolean.TRUE;
+        }
+
+        public String toString() {
+            return "(NOT " + operand + ")";
+        }
+    }
+
+    /**
+     * Compares a string property against a string constant.  Values which are not
+     * strings are left to the original expression to compare.
+     */
+    static class StringEqualsExpression extends CompiledExpression {
+        private final ComparisonExpression original;
+        private final PropertyExpression property;
+        private final String value;
+
+        StringEqualsExpression(ComparisonExpression original, PropertyExpression property, String value) {
+            this.original = original;
+            this.property = property;
+            this.value = value;
+        }
+
+        public Object evaluate(Filterable message) throws FilterException {
+            Object actual = property.evaluate(message);
+            if (actual == null) {
+                return Boolean.FALSE;
+            }
+            if (actual instanceof String) {
+                return value.equals(actual) ? Boolean.TRUE : Boolean.FALSE;
+            }
+            return original.evaluate(message);
+        }
+
+        public String toString() {
+            return original.toString();
+        }
+    }
+
+    /**
+     * Compares an integer property against an integer constant using primitive
+     * arithmetic.  String values, like the headers of text based protocols, are
+     * parsed into primitives instead of boxed numbers.  Values which are not integers
+     * are left to the original expression to compare.
+     */
+    static class IntegerComparisonExpression extends CompiledExpression {
+        private final ComparisonExpression original;
+        private final PropertyExpression property;
+        private final long value;
+        private final boolean longConstant;
+        private final int op;
+
+        IntegerComparisonExpression(ComparisonExpression original, PropertyExpression property, long value, boolean longConstant, int op) {
+            this.original = original;
+            this.property = property;
+            this.value = value;
+            this.longConstant = longConstant;
+            this.op = op;
+        }
+
+        public Object evaluate(Filterable message) throws FilterException {
+            Object actual = property.evaluate(message);
+            long l;
+            // Bytes and shorts are left to the original expression since it
+            // does not always promote them when they are the right operand.
+            if (actual instanceof Integer || actual instanceof Long) {
+                l = ((Number) actual).longValue();
+            } else if (actual instanceof String) {
+                // Strings get converted to the type of the constant.
+                try {
+                    l = longConstant ? Long.parseLong((String) actual) : Integer.parseInt((String) actual);
+                } catch (NumberFormatException e) {
+                    return Boolean.FALSE;
+                }
+            } else {
+                return original.evaluate(message);
+            }
+            boolean rc;
+            switch (op) {
+                case EQ:
+                    rc = l == value;
+                    break;
+                case GT:
+                    rc = l > value;
+                    break;
+                case GTE:
+                    rc = l >= value;
+                    break;
+                case LT:
+                    rc = l < value;
+                    break;
+                default:
+                    rc = l <= value;
+            }
+            return rc ? Boolean.TRUE : Boolean.FALSE;
+        }
+
+        public String toString() {
+            return original.toString();
+        }
+    }
+
+    private static String join(BooleanExpression[] terms, String separator) {
+        StringBuilder sb = new StringBuilder("(");
+        for (int i = 0; i < terms.length; i++) {
+            if (i != 0) {
+                sb.append(separator);
+            }
+            sb.append(terms[i]);
+        }
+        sb.append(")");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,64 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.selector;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import junit.framework.TestCase;
+
+import org.apache.activemq.apollo.filter.PropertyConstraint;
+
+/**
+ * @version $Revision: 1.1 $
+ */
+public class PropertyConstraintTest extends TestCase {
+
+    public void testEquality() throws Exception {
+        assertConstraint("color = 'red'", "color", "red");
+        assertConstraint("'red' = color", "color", "red");
+        assertConstraint("color = 'red' AND size > 10", "color", "red");
+        assertConstraint("size > 10 AND color = 'red'", "color", "red");
+    }
+
+    public void testIn() throws Exception {
+        assertConstraint("color IN ('red', 'blue')", "color", "red", "blue");
+        assertConstraint("color = 'red' OR color = 'blue'", "color", "red", "blue");
+        assertConstraint("color IN ('red', 'blue') OR color = 'green'", "color", "red", "blue", "green");
+    }
+
+    public void testNotIndexable() throws Exception {
+        assertNull(extract("size = 10"));
+        assertNull(extract("color <> 'red'"));
+        assertNull(extract("NOT color = 'red'"));
+        assertNull(extract("color NOT IN ('red', 'blue')"));
+        assertNull(extract("color = 'red' OR shape = 'square'"));
+        assertNull(extract("color = 'red' OR size > 10"));
+        assertNull(extract("color LIKE 'r%'"));
+    }
+
+    protected void assertConstraint(String selector, String property, Object... values) throws Exception {
+        PropertyConstraint constraint = extract(selector);
+        assertNotNull(selector, constraint);
+        assertEquals(selector, property, constraint.getProperty());
+        assertEquals(selector, new HashSet<Object>(Arrays.asList(values)), constraint.getValues());
+    }
+
+    protected PropertyConstraint extract(String selector) throws Exception {
+        return PropertyConstraint.extract(SelectorParser.parse(selector));
+    }
+}
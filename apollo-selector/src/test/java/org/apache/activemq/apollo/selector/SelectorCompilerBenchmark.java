@@ -0,0 +1,84 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.selector;
+
+import org.apache.activemq.apollo.filter.BooleanExpression;
+import org.apache.activemq.apollo.filter.Filterable;
+import org.apache.activemq.apollo.filter.SelectorCompiler;
+
+/**
+ * Compares the evaluation speed of parsed selectors against compiled
+ * selectors using the message the selector tests use.  Run it with:
+ *
+ * <pre>
+ * mvn test-compile exec:java -Dexec.mainClass=org.apache.activemq.apollo.selector.SelectorCompilerBenchmark -Dexec.classpathScope=test
+ * </pre>
+ *
+ * @version $Revision: 1.1 $
+ */
+public class SelectorCompilerBenchmark {
+
+    static final String[] SELECTORS = new String[]{
+        "name = 'James'",
+        "rank > 100",
+        "name = 'James' AND rank < 200",
+        "(name = 'Bob' OR name = 'James') AND location = 'London'",
+        "rank BETWEEN 100 AND 150 AND version = 2",
+        "intProp = 123 AND longProp = 123 AND 10 * 10 < rank",
+        "location IN ('London', 'Paris', 'Tokyo')",
+        "NOT (name = 'Bob') AND trueProp",
+        "quote LIKE '''In G_d We Trust'''",
+    };
+
+    static final int WARMUP = 200000;
+    static final int ITERATIONS = 2000000;
+
+    public static void main(String[] args) throws Exception {
+        Filterable message = new SelectorTest().createMessage();
+        System.out.println(String.format("%-70s %12s %12s", "selector", "parsed ns", "compiled ns"));
+        for (String selector : SELECTORS) {
+            BooleanExpression parsed = SelectorParser.parse(selector);
+            BooleanExpression compiled = SelectorCompiler.compile(parsed);
+            if (parsed.matches(message) != compiled.matches(message)) {
+                throw new AssertionError("Compiled selector does not match like the parsed one: " + selector);
+            }
+            run(parsed, message, WARMUP);
+            run(compiled, message, WARMUP);
+            double p = run(parsed, message, ITERATIONS);
+            double c = run(compiled, message, ITERATIONS);
+            System.out.println(String.format("%-70s %12.1f %12.1f", selector, p, c));
+        }
+    }
+
+    /**
+     * @return the average number of nanoseconds per evaluation.
+     */
+    static double run(BooleanExpression expression, Filterable message, int iterations) throws Exception {
+        int matches = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            if (expression.matches(message)) {
+                matches++;
+            }
+        }
+        long end = System.nanoTime();
+        if (matches == -1) {
+            System.out.println();
+        }
+        return (end - start) / (double) iterations;
+    }
+}
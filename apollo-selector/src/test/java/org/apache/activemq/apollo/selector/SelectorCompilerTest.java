@@ -0,0 +1,41 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.selector;
+
+import org.apache.activemq.apollo.filter.BooleanExpression;
+import org.apache.activemq.apollo.filter.FilterException;
+import org.apache.activemq.apollo.filter.SelectorCompiler;
+
+/**
+ * Runs all the selector tests against compiled selectors.
+ *
+ * @version $Revision: 1.1 $
+ */
+public class SelectorCompilerTest extends SelectorTest {
+
+    protected BooleanExpression parse(String text) throws FilterException {
+        return SelectorCompiler.compile(SelectorParser.parse(text));
+    }
+
+    public void testCompiledSelectorsDoNotChangeTheParsedSelector() throws Exception {
+        BooleanExpression parsed = SelectorParser.parse("name = 'James' AND rank > 100 AND 1 + 1 = 2");
+        String before = parsed.toString();
+        SelectorCompiler.compile(parsed);
+        assertEquals(before, parsed.toString());
+        assertSame(parsed, SelectorParser.parse("name = 'James' AND rank > 100 AND 1 + 1 = 2"));
+    }
+}
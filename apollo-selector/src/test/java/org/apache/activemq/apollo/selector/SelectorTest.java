@@ -468,8 +468,12 @@ public class SelectorTest extends TestCase {
         }
     }
     
+    protected BooleanExpression parse(String text) throws FilterException {
+        return SelectorParser.parse(text);
+    }
+
     protected void assertSelector(MockMessage message, String text, boolean expected) throws FilterException {
-        BooleanExpression selector = SelectorParser.parse(text);
+        BooleanExpression selector = parse(text);
         assertTrue("Created a valid selector", selector != null);
         boolean value = selector.matches(message);
         assertEquals("Selector for: " + text, expected, value);
@@ -23,6 +23,8 @@ import org.apache.activemq.apollo.broker._
 import java.io.OutputStream
 import org.apache.activemq.apollo.broker.store.DirectBuffer
 import org.apache.activemq.apollo.dto.DestinationDTO
+import org.apache.activemq.apollo.filter.AsciiFilterable
+import java.util.concurrent.ConcurrentHashMap
 
 /**
  *
@@ -32,10 +34,55 @@ import BufferConversions._
 import Buffer._
 import Stomp._
 
+object StompFrameMessage {
+
+  val JMS_MESSAGE_ID = ascii("JMSMessageID")
+  val JMS_TYPE = ascii("JMSType")
+
+  /**
+   * Selector property names get encoded once and shared so that
+   * looking up a property does not have to encode the name again.
+   */
+  private val property_names = new ConcurrentHashMap[String, AsciiBuffer]()
+  private val MAX_PROPERTY_NAMES = 1024
+
+  def property_name(name:String):AsciiBuffer = {
+    var rc = property_names.get(name)
+    if( rc == null ) {
+      rc = ascii(name)
+      if( property_names.size < MAX_PROPERTY_NAMES ) {
+        property_names.putIfAbsent(name, rc)
+      }
+    }
+    rc
+  }
+
+  /**
+   * A header value which is only decoded the first time a
+   * selector looks at it.
+   */
+  class HeaderValue(val raw:AsciiBuffer) {
+    // Strings are immutable so concurrent evaluations can
+    // safely race to decode the value.
+    private var decoded:String = null
+
+    def value = {
+      var rc = decoded
+      if( rc == null ) {
+        rc = raw.utf8.toString
+        decoded = rc
+      }
+      rc
+    }
+  }
+}
+
+import StompFrameMessage._
+
 /**
  * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
  */
-case class StompFrameMessage(frame:StompFrame) extends Message {
+case class StompFrameMessage(frame:StompFrame) extends Message with AsciiFilterable {
   
   def protocol = StompProtocol
 
@@ -112,30 +159,38 @@ case class StompFrameMessage(frame:StompFrame) extends Message {
   }
 
   /* avoid paying the price of creating the header index. lots of times we don't need it */
-  lazy val headerIndex: Map[AsciiBuffer, AsciiBuffer] =  {
-    var rc = Map[AsciiBuffer, AsciiBuffer]()
-    for( header <- (frame.updated_headers ::: frame.headers).reverse ) {
-      rc += (header._1 -> header._2)
+  lazy val headerIndex: java.util.HashMap[AsciiBuffer, HeaderValue] =  {
+    val rc = new java.util.HashMap[AsciiBuffer, HeaderValue]()
+    // updated headers take precedence over the original headers.
+    def index(headers:List[(AsciiBuffer, AsciiBuffer)]) = headers.foreach { header =>
+      if( !rc.containsKey(header._1) ) {
+        rc.put(header._1, new HeaderValue(header._2))
+      }
     }
+    index(frame.updated_headers)
+    index(frame.headers)
     rc
   }
 
-  def getProperty(name: String):AnyRef = {
-    (name match {
-      // TODO: handle more of the JMS Types that ActiveMQ 5 supports.
-      case "JMSMessageID" =>
-        Some(id)
-      case "JMSType" =>
-        headerIndex.get(ascii("type"))
-      case _=>
-        headerIndex.get(ascii(name))
-    }) match {
-      case Some(rc) => rc.utf8.toString
-      case None => null
+  def getProperty(name: String):AnyRef = getProperty(property_name(name))
+
+  def getProperty(name: AsciiBuffer):AnyRef = {
+    // TODO: handle more of the JMS Types that ActiveMQ 5 supports.
+    val header = if( name == JMS_MESSAGE_ID ) {
+      MESSAGE_ID
+    } else if( name == JMS_TYPE ) {
+      TYPE
+    } else {
+      name
+    }
+    val rc = headerIndex.get(header)
+    if( rc == null ) {
+      null
+    } else {
+      rc.value
     }
   }
 
-
   def setDisposer(disposer: Runnable) = throw new UnsupportedOperationException
   def retained = throw new UnsupportedOperationException
   def retain = frame.retain
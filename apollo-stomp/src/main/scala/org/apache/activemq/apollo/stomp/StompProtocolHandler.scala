@@ -27,7 +27,7 @@ import protocol.{ProtocolFilter, ProtocolHandler}
 import security.SecurityContext
 import Stomp._
 import org.apache.activemq.apollo.selector.SelectorParser
-import org.apache.activemq.apollo.filter.{BooleanExpression, FilterException}
+import org.apache.activemq.apollo.filter.{BooleanExpression, FilterException, SelectorCompiler}
 import org.apache.activemq.apollo.broker.store._
 import org.apache.activemq.apollo.util._
 import java.util.concurrent.TimeUnit
@@ -229,53 +229,85 @@ class StompProtocolHandler extends ProtocolHandler {
 
     class TrackedAck(var credit:Option[Int], val ack:(DeliveryResult, StoreUOW)=>Unit)
 
+    /**
+     * A tracked delivery which is linked to the deliveries which
+     * were delivered after it.
+     */
+    class SessionTrackedAck(val msgid:AsciiBuffer, val seq:Long, credit:Option[Int], ack:(DeliveryResult, StoreUOW)=>Unit) extends TrackedAck(credit, ack) {
+      var next:SessionTrackedAck = null
+    }
+
+    /**
+     * Session acks ack all the previously received messages, so the
+     * unacked deliveries are kept in delivery order and indexed by message
+     * id.  An ack unlinks the acked prefix of the list and the credit
+     * cursor remembers where the previous credit stopped so neither
+     * has to rescan the deliveries which are still outstanding.
+     */
     class SessionAckHandler extends AckHandler{
-      var consumer_acks = ListBuffer[(AsciiBuffer, TrackedAck)]()
+      var closed = false
+      var head:SessionTrackedAck = null
+      var tail:SessionTrackedAck = null
+      // the first delivery which has not been credited yet.
+      var uncredited:SessionTrackedAck = null
+      var next_seq = 0L
+      val index = new java.util.HashMap[AsciiBuffer, SessionTrackedAck]()
 
       def close = {
         queue.assertExecuting()
-        consumer_acks.foreach { case(_, tack) =>
+        var tack = head
+        while( tack!=null ) {
           if( tack.ack !=null ) {
             tack.ack(Delivered, null)
           }
+          tack = tack.next
         }
-        consumer_acks = null
+        head = null
+        tail = null
+        uncredited = null
+        index.clear
+        closed = true
       }
 
       def track(delivery:Delivery) = {
         queue.assertExecuting()
-        if( consumer_acks == null ) {
+        if( closed ) {
           // It can happen if we get closed.. but destination is still sending data..
           if( delivery.ack!=null ) {
             delivery.ack(Undelivered, null)
           }
         } else {
+          val msgid = id(delivery.message)
           if( protocol_version eq V1_0 ) {
             // register on the connection since 1.0 acks may not include the subscription id
-            connection_ack_handlers += ( id(delivery.message) -> this )
+            connection_ack_handlers += ( msgid -> this )
+          }
+          val tack = new SessionTrackedAck(msgid, next_seq, Some(delivery.size), delivery.ack)
+          next_seq += 1
+          if( tail == null ) {
+            head = tack
+          } else {
+            tail.next = tack
+          }
+          tail = tack
+          if( uncredited == null ) {
+            uncredited = tack
           }
-          consumer_acks += id(delivery.message) -> new TrackedAck(Some(delivery.size), delivery.ack )
+          index.put(msgid, tack)
         }
       }
 
       def credit(msgid: AsciiBuffer, credit_value: (Int, Int)):Unit = {
         queue.assertExecuting()
         if( initial_credit_window._3 ) {
-          var found = false
-          val (acked, not_acked) = consumer_acks.partition{ case (id, ack)=>
-            if( id == msgid ) {
-              found = true
-              true
-            } else {
-              !found
-            }
-          }
-
-          for( (id, delivery) <- acked ) {
-            for( credit <- delivery.credit ) {
+          // credit everything up to the message or everything if we don't know it.
+          val last = if( msgid == null ) null else index.get(msgid)
+          while( uncredited!=null && (last==null || uncredited.seq <= last.seq) ) {
+            for( credit <- uncredited.credit ) {
               credit_window_source.merge((credit, 1))
-              delivery.credit = None
+              uncredited.credit = None
             }
+            uncredited = uncredited.next
           }
         } else {
           if( credit_value!=null ) {
@@ -286,28 +318,33 @@ class StompProtocolHandler extends ProtocolHandler {
 
       def perform_ack(consumed:DeliveryResult, msgid: AsciiBuffer, uow:StoreUOW=null) = {
         queue.assertExecuting()
-        assert(consumer_acks !=null)
+        assert(!closed)
 
         // session acks ack all previously received messages..
-        var found = false
-        val (acked, not_acked) = consumer_acks.partition{ case (id, ack)=>
-          if( id == msgid ) {
-            found = true
-            true
-          } else {
-            !found
-          }
-        }
-
-        if( !found ) {
+        val last = index.get(msgid)
+        if( last == null ) {
           trace("%s: ACK failed, invalid message id: %s, dest: %s".format(security_context.remote_address, msgid, addresses.mkString(",")))
         } else {
-          consumer_acks = not_acked
-          acked.foreach{case (id, delivery)=>
-            if( delivery.ack!=null ) {
-              delivery.ack(consumed, uow)
+          val acks = ListBuffer[(DeliveryResult, StoreUOW)=>Unit]()
+          var done = false
+          while( !done ) {
+            val tack = head
+            head = tack.next
+            if( index.get(tack.msgid) eq tack ) {
+              index.remove(tack.msgid)
+            }
+            if( uncredited eq tack ) {
+              uncredited = head
             }
+            if( tack.ack!=null ) {
+              acks += tack.ack
+            }
+            done = tack eq last
+          }
+          if( head == null ) {
+            tail = null
           }
+          BatchAck.ack(acks, consumed, uow)
         }
 
         if( protocol_version eq V1_0 ) {
@@ -444,7 +481,10 @@ class StompProtocolHandler extends ProtocolHandler {
 
     def is_persistent = false
 
-    def match_selector(delivery:Delivery)= selector._2.matches(delivery.message)
+    override def message_selector = if( selector!=null ) selector._2 else null
+
+    val compiled_selector = if( selector!=null ) SelectorCompiler.compile(selector._2) else null
+    def match_selector(delivery:Delivery)= compiled_selector.matches(delivery.message)
     def match_from_seq(delivery:Delivery)= delivery.seq >= from_seq
     def match_from_tail(delivery:Delivery)= delivery.seq >= starting_seq
 
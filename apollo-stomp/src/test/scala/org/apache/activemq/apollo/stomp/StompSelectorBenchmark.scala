@@ -0,0 +1,111 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.stomp
+
+import org.fusesource.hawtbuf.AsciiBuffer._
+import org.apache.activemq.apollo.selector.SelectorParser
+import org.apache.activemq.apollo.filter.{Filterable, BooleanExpression, SelectorCompiler}
+import java.lang.management.ManagementFactory
+import Stomp._
+
+/**
+ * <p>
+ * Measures how long it takes and how many bytes get allocated to evaluate
+ * selectors against a STOMP message.  Each message is evaluated many times
+ * like it would be when it gets fanned out to many selector subscribers.
+ * Run it with:
+ * </p>
+ * <pre>
+ * mvn test-compile exec:java -Dexec.mainClass=org.apache.activemq.apollo.stomp.StompSelectorBenchmark -Dexec.classpathScope=test
+ * </pre>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+object StompSelectorBenchmark {
+
+  val SELECTORS = List(
+    "color = 'red'",
+    "color = 'red' AND shape <> 'circle'",
+    "age >= 21",
+    "JMSType = 'tagged' AND age < 21",
+    "color IN ('blue', 'green', 'red')"
+  )
+
+  val MESSAGES = 10000
+  val EVALUATIONS = 100
+
+  def main(args:Array[String]):Unit = {
+    println("%-50s %12s %12s %12s %12s".format("selector", "parsed ns", "parsed B", "compiled ns", "compiled B"))
+    for( selector <- SELECTORS ) {
+      val parsed = SelectorParser.parse(selector)
+      val compiled = SelectorCompiler.compile(parsed)
+      run(parsed)
+      run(compiled)
+      val (pns, pb) = run(parsed)
+      val (cns, cb) = run(compiled)
+      println("%-50s %12.1f %12.1f %12.1f %12.1f".format(selector, pns, pb, cns, cb))
+    }
+  }
+
+  def message(i:Int) = {
+    val frame = StompFrame(SEND, List(
+      (DESTINATION, ascii("/topic/selected")),
+      (MESSAGE_ID, ascii("ID:bench-"+i)),
+      (TYPE, ascii("tagged")),
+      (ascii("color"), ascii("red")),
+      (ascii("shape"), ascii("square")),
+      (ascii("age"), ascii((i % 40).toString))
+    ))
+    StompFrameMessage(frame)
+  }
+
+  /**
+   * @returns the average nanoseconds and bytes allocated per matches call.  The
+   * messages are created before measuring so only the evaluation is counted.
+   */
+  def run(expression:BooleanExpression):(Double, Double) = {
+    val messages = (0 until MESSAGES).map(message(_)).toArray[Filterable]
+    val before = allocated_bytes
+    val start = System.nanoTime
+    var matches = 0
+    var i = 0
+    while( i < messages.length ) {
+      var j = 0
+      while( j < EVALUATIONS ) {
+        if( expression.matches(messages(i)) ) {
+          matches += 1
+        }
+        j += 1
+      }
+      i += 1
+    }
+    val end = System.nanoTime
+    val calls = (MESSAGES * EVALUATIONS).toDouble
+    ((end - start) / calls, (allocated_bytes - before) / calls)
+  }
+
+  /**
+   * Uses the HotSpot extension of the thread bean to find out how many
+   * bytes the current thread has allocated, or -1 if not supported.
+   */
+  def allocated_bytes:Long = ManagementFactory.getThreadMXBean match {
+    case bean:com.sun.management.ThreadMXBean =>
+      bean.getThreadAllocatedBytes(Thread.currentThread.getId)
+    case _ => -1
+  }
+
+}
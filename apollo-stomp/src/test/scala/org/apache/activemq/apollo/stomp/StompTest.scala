@@ -36,7 +36,9 @@ class StompTestSupport extends FunSuiteSupport with ShouldMatchers with BeforeAn
 
   val broker_config_uri = "xml:classpath:apollo-stomp.xml"
 
-  override protected def beforeAll() = {
+  override protected def beforeAll() = start_broker
+
+  def start_broker = {
     try {
       info("Loading broker configuration from the classpath with URI: " + broker_config_uri)
       broker = BrokerFactory.createBroker(broker_config_uri)
@@ -48,6 +50,13 @@ class StompTestSupport extends FunSuiteSupport with ShouldMatchers with BeforeAn
     }
   }
 
+  def restart_broker = {
+    clients.foreach(_.close)
+    clients = Nil
+    ServiceControl.stop(broker, "Stopping broker")
+    start_broker
+  }
+
   var client = new StompClient
   var clients = List[StompClient]()
 
@@ -322,6 +331,130 @@ class StompMetricsTest extends StompTestSupport {
     }
   }
 
+  test("Topic slow_consumer_policy='drop_newest' Stats") {
+    connect("1.1")
+
+    // Only let the subscription have one un-acked message
+    // so that the rest has to be buffered or dropped.
+    subscribe("0", "/topic/dropping.stats", "client", headers="credit:1\n")
+
+    // The sends should not block on the slow subscription.
+    val body = "x" * 1024 * 2
+    for( i <- 1 to 100 ) {
+      sync_send("/topic/dropping.stats", body)
+    }
+    assert_received(body)
+
+    val stats = topic_status("dropping.stats")
+    stats.metrics.enqueue_item_counter should be(100)
+    stats.metrics.drop_item_counter should be > (0L)
+    stats.consumers.size() should be(1)
+    stats.consumers.get(0).drop_item_counter should be(stats.metrics.drop_item_counter)
+  }
+
+  // Pads the message bodies so that the slow consumer's session fills up
+  // and the rest of the messages get buffered.
+  val slow_padding = ":" + "x" * 1024 * 2
+
+  /**
+   * Receives the next message, acks it and returns the body without
+   * the padding.
+   */
+  def receive_and_ack() = {
+    val frame = client.receive()
+    frame should startWith("MESSAGE\n")
+    val sub_regex = """(?s).*\nsubscription:([^\n]+)\n.*""".r
+    val msgid_regex = """(?s).*\nmessage-id:([^\n]+)\n.*""".r
+    val sub_regex(sub) = frame
+    val msgid_regex(msgid) = frame
+    client.write(
+      "ACK\n" +
+      "subscription:"+sub+"\n" +
+      "message-id:"+msgid+"\n" +
+      "\n")
+    frame.substring(frame.indexOf("\n\n")+2).takeWhile(_ != ':')
+  }
+
+  test("Topic slow_consumer_policy='drop_oldest' keeps the newest messages") {
+    connect("1.1")
+    subscribe("0", "/topic/dropping-oldest.test", "client", headers="credit:1\n")
+    for( i <- 1 to 100 ) {
+      sync_send("/topic/dropping-oldest.test", i + slow_padding)
+    }
+
+    // The last message must not have been dropped.
+    var received = List[String]()
+    while( received.headOption != Some("100") ) {
+      received ::= receive_and_ack()
+    }
+    received = received.reverse
+    received.map(_.toInt) should be(received.map(_.toInt).sorted)
+
+    val stats = topic_status("dropping-oldest.test")
+    stats.metrics.drop_item_counter should be > (0L)
+    stats.metrics.drop_item_counter should be(100L - received.size)
+  }
+
+  test("Topic slow_consumer_policy='conflate' replaces and reorders repeated keys") {
+    connect("1.1")
+    subscribe("0", "/topic/conflating.test", "client", headers="credit:1\n")
+    for( i <- 1 to 50 ) {
+      sync_send("/topic/conflating.test", "a-" + i + slow_padding, "symbol:a\n")
+      sync_send("/topic/conflating.test", "b-" + i + slow_padding, "symbol:b\n")
+    }
+    // Replacing a's buffered message moves it behind b's.
+    sync_send("/topic/conflating.test", "a-51" + slow_padding, "symbol:a\n")
+
+    var received = List[String]()
+    while( !received.contains("a-51") ) {
+      received ::= receive_and_ack()
+    }
+    received = received.reverse
+    received.indexOf("b-50") should be >= (0)
+    received.indexOf("b-50") should be < (received.indexOf("a-51"))
+
+    // Only the latest message of a key is kept, so they stay in order per key.
+    List("a", "b").foreach { key =>
+      val seqs = received.filter(_.startsWith(key + "-")).map(_.stripPrefix(key + "-").toInt)
+      seqs should be(seqs.sorted)
+    }
+
+    val stats = topic_status("conflating.test")
+    stats.metrics.drop_item_counter should be > (0L)
+    stats.metrics.drop_item_counter should be(101L - received.size)
+  }
+
+  test("Topic slow_consumer_policy='disconnect' disconnects the slow consumer") {
+    connect("1.1")
+    subscribe("0", "/topic/disconnecting.test", "client", headers="credit:1\n")
+
+    val producer = new StompClient
+    connect("1.1", producer)
+    for( i <- 1 to 100 ) {
+      sync_send("/topic/disconnecting.test", i + slow_padding, c=producer)
+    }
+
+    within(10, SECONDS) {
+      topic_status("disconnecting.test").consumers.size() should be(0)
+    }
+  }
+
+  test("Topic slow_consumer_timeout disconnects a stalled consumer") {
+    connect("1.1")
+    subscribe("0", "/topic/stalling.test", "client", headers="credit:1\n")
+
+    val producer = new StompClient
+    connect("1.1", producer)
+    for( i <- 1 to 100 ) {
+      sync_send("/topic/stalling.test", i + slow_padding, c=producer)
+    }
+
+    // The buffer never fills up, but the consumer does not take anything.
+    within(10, SECONDS) {
+      topic_status("stalling.test").consumers.size() should be(0)
+    }
+  }
+
   test("Topic Durable Sub Stats.") {
     connect("1.1")
 
@@ -554,6 +687,19 @@ class StompDestinationTest extends StompTestSupport {
     assert_received(4)
   }
 
+  test("retain:set with a retain_key remembers the last message of every key") {
+    connect("1.1")
+    async_send("/topic/keyed.example", 1, "retain:set\nsymbol:A\n")
+    async_send("/topic/keyed.example", 2, "retain:set\nsymbol:B\n")
+    async_send("/topic/keyed.example", 3, "retain:set\nsymbol:A\n")
+    sync_send("/topic/keyed.example", 4)
+    subscribe("0", "/topic/keyed.example")
+    assert_received(2)
+    assert_received(3)
+    async_send("/topic/keyed.example", 5)
+    assert_received(5)
+  }
+
   // This is the test case for https://issues.apache.org/jira/browse/APLO-88
   test("ACK then socket close with/without DISCONNECT, should still ACK") {
     for(i <- 1 until 3) {
@@ -822,6 +968,7 @@ class StompDestinationTest extends StompTestSupport {
     test_selector("color = 'red'", List("color:blue", "not:set", "color:red"), List(3))
     test_selector("hyphen-field = 'red'", List("hyphen-field:blue", "not:set", "hyphen-field:red"), List(3))
     test_selector("age >= 21", List("age:3", "not:set", "age:21", "age:30"), List(3,4))
+    test_selector("JMSType = 'tagged' AND age < 21", List("type:tagged\nage:30", "type:tagged\nage:old", "age:3", "type:tagged\nage:3"), List(4))
 
   }
 
@@ -1118,6 +1265,39 @@ class StompDestinationTest extends StompTestSupport {
     get(3)
   }
 
+  test("Queue with priority_dispatch delivers high priority messages first") {
+    connect("1.1")
+
+    def put(id:Int, priority:Int) = {
+      client.write(
+        "SEND\n" +
+        "destination:/queue/priority.example\n" +
+        "priority:"+priority+"\n" +
+        "\n" +
+        "message:"+id+"\n")
+    }
+    put(1, 4)
+    put(2, 4)
+    put(3, 4)
+    put(4, 9)
+
+    client.write(
+      "SUBSCRIBE\n" +
+      "destination:/queue/priority.example\n" +
+      "id:0\n" +
+      "\n")
+
+    def get(id:Int) = {
+      val frame = client.receive()
+      frame should startWith("MESSAGE\n")
+      frame should endWith regex("\n\nmessage:"+id+"\n")
+    }
+    get(4)
+    get(1)
+    get(2)
+    get(3)
+  }
+
   test("Queue and a selector") {
     connect("1.1")
 
@@ -1149,6 +1329,269 @@ class StompDestinationTest extends StompTestSupport {
     get(3)
   }
 
+  test("Queue with competing selector subscribers") {
+    connect("1.1")
+
+    client.write(
+      "SUBSCRIBE\n" +
+      "destination:/queue/selected-competing\n" +
+      "selector:color='red' AND shape <> 'circle'\n" +
+      "id:1\n" +
+      "\n")
+
+    client.write(
+      "SUBSCRIBE\n" +
+      "destination:/queue/selected-competing\n" +
+      "selector:color IN ('blue', 'green')\n" +
+      "receipt:0\n"+
+      "id:2\n" +
+      "\n")
+
+    wait_for_receipt("0")
+
+    def put(id:Int, color:String, shape:String) = {
+      client.write(
+        "SEND\n" +
+        "destination:/queue/selected-competing\n" +
+        "color:"+color+"\n" +
+        "shape:"+shape+"\n" +
+        "\n" +
+        "message:"+id+"\n")
+    }
+    put(1, "red", "circle")
+    put(2, "blue", "circle")
+    put(3, "red", "square")
+    put(4, "green", "square")
+
+    def get(sub:Int, id:Int) = {
+      val frame = client.receive()
+      frame should startWith("MESSAGE\n")
+      frame should include ("subscription:"+sub+"\n")
+      frame should endWith regex("\n\nmessage:"+id+"\n")
+    }
+    get(2, 2)
+    get(1, 3)
+    get(2, 4)
+  }
+
+  test("Queue with selector subscribers parked on different properties") {
+    connect("1.1")
+    val dest = "/queue/selected-parked"
+    subscribe("1", dest, headers="selector:color='red'\n")
+    subscribe("2", dest, headers="selector:color='blue'\n")
+    subscribe("3", dest, headers="selector:shape='square'\n")
+
+    sync_send(dest, "1", "color:red\nshape:circle\n")
+    sync_send(dest, "2", "color:blue\nshape:circle\n")
+    sync_send(dest, "3", "color:green\nshape:square\n")
+    sync_send(dest, "4", "color:green\nshape:circle\n")
+    assert_received("1", "1")
+    assert_received("2", "2")
+    assert_received("3", "3")
+
+    // Removing a parked selector subscription leaves the others indexed.
+    unsubscribe("2")
+    subscribe("4", dest)
+    assert_received("4", "4")
+    sync_send(dest, "5", "color:blue\nshape:circle\n")
+    assert_received("5", "4")
+    sync_send(dest, "6", "color:red\nshape:circle\n")
+    assert_received("6", "1")
+  }
+
+  test("Queue with message groups") {
+    connect("1.1")
+
+    client.write(
+      "SUBSCRIBE\n" +
+      "destination:/queue/groups.test\n" +
+      "id:1\n" +
+      "\n")
+
+    client.write(
+      "SUBSCRIBE\n" +
+      "destination:/queue/groups.test\n" +
+      "receipt:0\n"+
+      "id:2\n" +
+      "\n")
+
+    wait_for_receipt("0")
+
+    val groups = List("a", "a", "b", "b", "a", "b", "a", "b")
+    groups.zipWithIndex.foreach { case (group, id) =>
+      client.write(
+        "SEND\n" +
+        "destination:/queue/groups.test\n" +
+        "JMSXGroupID:"+group+"\n" +
+        "\n" +
+        "message:"+id+"\n")
+    }
+
+    val p = """(?s).*?\nsubscription:(.+?)\n.*\n\nmessage:(\d+)\n""".r
+    val received = groups.map { _ =>
+      client.receive() match {
+        case p(sub, id) => (groups(id.toInt), sub)
+      }
+    }
+
+    // all the messages of a group went to the same subscription.
+    received.filter(_._1 == "a").map(_._2).distinct.size should be(1)
+    received.filter(_._1 == "b").map(_._2).distinct.size should be(1)
+  }
+
+  test("Queue releases idle message groups past the message_group_limit") {
+    connect("1.1")
+    subscribe("1", "/queue/limited-groups.test", "client")
+
+    async_send("/queue/limited-groups.test", "a1", "JMSXGroupID:a\n")
+    async_send("/queue/limited-groups.test", "b1", "JMSXGroupID:b\n")
+    val ack_a = assert_received("a1")
+    val ack_b = assert_received("b1")
+
+    def owned_groups = {
+      val host = broker.default_virtual_host
+      sync(host) {
+        val router = host.router.asInstanceOf[LocalRouter]
+        router.local_queue_domain.destination_by_id.get("limited-groups.test").get.group_owners.keySet.toArray.map(_.toString).toSet
+      }
+    }
+
+    // Groups with messages in flight are kept even past the limit.
+    owned_groups should be(Set("a", "b"))
+
+    ack_a()
+    within(2, SECONDS) {
+      owned_groups should be(Set("b"))
+    }
+
+    ack_b()
+    async_send("/queue/limited-groups.test", "c1", "JMSXGroupID:c\n")
+    assert_received("c1")()
+    within(2, SECONDS) {
+      owned_groups should be(Set("c"))
+    }
+  }
+
+  test("Queue keeps group order when releasing the group of a full subscription") {
+    connect("1.1")
+    val dest = "/queue/limited-groups.full"
+
+    // Sub 1 can only hold 2 messages so it stays full with a1 and c1.
+    subscribe("1", dest, "client-individual", headers="credit:2\n")
+    sync_send(dest, "a1", "JMSXGroupID:a\n")
+    sync_send(dest, "c1", "JMSXGroupID:c\n")
+    val ack_a1 = assert_received("a1", "1")
+    assert_received("c1", "1")
+    sync_send(dest, "c2", "JMSXGroupID:c\n")
+    sync_send(dest, "a2", "JMSXGroupID:a\n")
+
+    // Sub 2 skips over c2 and a2 since sub 1 owns their groups.
+    subscribe("2", dest, "auto")
+
+    // Releases group a while a2 is still queued ahead of sub 1.
+    ack_a1()
+    sync_send(dest, "a3", "JMSXGroupID:a\n")
+
+    val p = """(?s).*?\nsubscription:(.+?)\n.*\n\n(.+)""".r
+    val received = (1 to 3).map { _ =>
+      client.receive() match {
+        case p(sub, body) => (sub, body)
+      }
+    }
+
+    // a2 must not get stranded behind a3.
+    received.filter(_._1 == "1").map(_._2) should be(List("c2"))
+    received.filter(_._1 == "2").map(_._2) should be(List("a2", "a3"))
+  }
+
+  test("Queue with the least_outstanding dispatch policy") {
+    connect("1.1")
+
+    def put(id:Int) = {
+      client.write(
+        "SEND\n" +
+        "destination:/queue/least.test\n" +
+        "\n" +
+        "message:"+id+"\n")
+    }
+
+    def get(sub:Int, id:Int) = {
+      val frame = client.receive()
+      frame should startWith("MESSAGE\n")
+      frame should include ("subscription:"+sub+"\n")
+      frame should endWith regex("\n\nmessage:"+id+"\n")
+    }
+
+    // sub 2 gets a few messages which it does not ack.
+    client.write(
+      "SUBSCRIBE\n" +
+      "destination:/queue/least.test\n" +
+      "ack:client\n" +
+      "id:2\n" +
+      "\n")
+
+    for( id <- 1 to 3 ) {
+      put(id)
+      get(2, id)
+    }
+
+    client.write(
+      "SUBSCRIBE\n" +
+      "destination:/queue/least.test\n" +
+      "ack:client\n" +
+      "receipt:1\n"+
+      "id:1\n" +
+      "\n")
+    wait_for_receipt("1")
+
+    // sub 1 has less outstanding messages, so it gets all the next ones,
+    // round robin would have handed some of them to sub 2.
+    for( id <- 4 to 6 ) {
+      put(id)
+    }
+    for( id <- 4 to 6 ) {
+      get(1, id)
+    }
+  }
+
+  test("Topic with fan_out delivers to all the subscribers") {
+    connect("1.1")
+
+    val subs = 1 to 3
+    subs.foreach { sub =>
+      client.write(
+        "SUBSCRIBE\n" +
+        "destination:/topic/fanout.test\n" +
+        "id:"+sub+"\n" +
+        "receipt:"+sub+"\n" +
+        "\n")
+      wait_for_receipt(""+sub)
+    }
+
+    def put(id:Int) = {
+      client.write(
+        "SEND\n" +
+        "destination:/topic/fanout.test\n" +
+        "\n" +
+        "message:"+id+"\n")
+    }
+    put(1)
+    put(2)
+
+    // The subscriptions can be served by different partitions, so
+    // only the order of the messages of each subscription is fixed.
+    val received = (1 to subs.size*2).map { i =>
+      val frame = client.receive()
+      frame should startWith("MESSAGE\n")
+      val sub = "subscription:(\\d+)\n".r.findFirstMatchIn(frame).get.group(1).toInt
+      val id = "message:(\\d+)\n$".r.findFirstMatchIn(frame).get.group(1).toInt
+      (sub, id)
+    }
+    subs.foreach { sub =>
+      expect(Seq(1, 2))(received.filter(_._1 == sub).map(_._2))
+    }
+  }
+
   test("Topic and a selector") {
     connect("1.1")
 
@@ -1471,6 +1914,76 @@ class DurableSubscriptionOnLevelDBTest extends StompTestSupport {
   }
 }
 
+class StompPriorityOnLevelDBTest extends StompTestSupport {
+
+  override val broker_config_uri: String = "xml:classpath:apollo-stomp-leveldb.xml"
+
+  test("High priority messages stay ahead of a swapped out backlog") {
+    connect("1.1")
+
+    def put(id:Int, priority:Int) = {
+      sync_send("/queue/priority.backlog", "message:"+id+"\n", "priority:"+priority+"\n")
+    }
+    for( id <- 1 to 20 ) {
+      put(id, 4)
+    }
+    put(21, 9)
+
+    // Let a few queue maintenance runs swap out the backlog.
+    Thread.sleep(3000)
+
+    subscribe("0", "/queue/priority.backlog")
+    assert_received("message:21\n")
+    for( id <- 1 to 20 ) {
+      assert_received("message:"+id+"\n")
+    }
+  }
+}
+
+class StompRetainedOnLevelDBTest extends StompTestSupport {
+
+  override val broker_config_uri: String = "xml:classpath:apollo-stomp-leveldb.xml"
+
+  def receive_bodies(count:Int) = (1 to count).map { i =>
+    val frame = client.receive()
+    frame should startWith("MESSAGE\n")
+    frame.substring(frame.indexOf("\n\n")+2)
+  }.toSet
+
+  test("retained messages are replayed after a restart") {
+    connect("1.1")
+    async_send("/topic/keyed.restart", 1, "retain:set\nsymbol:A\n")
+    async_send("/topic/keyed.restart", 2, "retain:set\nsymbol:B\n")
+    sync_send("/topic/keyed.restart", 3)
+
+    restart_broker
+
+    connect("1.1")
+    subscribe("0", "/topic/keyed.restart")
+    receive_bodies(2) should be(Set("1", "2"))
+    async_send("/topic/keyed.restart", 4)
+    assert_received(4)
+  }
+
+  test("evicted retained messages are loaded back from the store") {
+    connect("1.1")
+    val padding = "x" * 512
+    val expected = (1 to 10).map { i =>
+      val body = i + padding
+      async_send("/topic/evicting.example", body, "retain:set\nsymbol:"+i+"\n")
+      body
+    }.toSet
+
+    // subscribe right away so that the replay races the store.
+    subscribe("0", "/topic/evicting.example")
+    receive_bodies(10) should be(expected)
+    unsubscribe("0")
+
+    subscribe("1", "/topic/evicting.example")
+    receive_bodies(10) should be(expected)
+  }
+}
+
 class DurableSubscriptionOnBDBTest extends DurableSubscriptionOnLevelDBTest {
   override val broker_config_uri: String = "xml:classpath:apollo-stomp-bdb.xml"
 }
@@ -1797,6 +2310,62 @@ class StompAckModeTest extends StompTestSupport {
     
   }
 
+  test("ack:client acks cumulatively across several acks") {
+    connect("1.1")
+
+    def put(id:Int) = {
+      client.write(
+        "SEND\n" +
+        "destination:/queue/ackmode-client-steps\n" +
+        "\n" +
+        "message:"+id+"\n")
+    }
+    (1 to 5).foreach(put(_))
+
+    def subscribe = client.write(
+      "SUBSCRIBE\n" +
+      "destination:/queue/ackmode-client-steps\n" +
+      "ack:client\n" +
+      "id:0\n" +
+      "\n")
+    subscribe
+
+    def get(id:Int) = {
+      val frame = client.receive()
+      frame should startWith("MESSAGE\n")
+      frame should endWith regex("\n\nmessage:"+id+"\n")
+
+      val p = """(?s).*?\nmessage-id:(.+?)\n.*""".r
+      frame match {
+        case p(x) => x
+        case _=> null
+      }
+    }
+
+    def ack(mid:String) = {
+      client.write(
+        "ACK\n" +
+        "subscription:0\n" +
+        "message-id:"+mid+"\n" +
+        "receipt:0\n"+
+        "\n")
+      wait_for_receipt("0")
+    }
+
+    val mids = (1 to 5).map(get(_))
+
+    // Ack the first message and then the next 2 messages..
+    ack(mids(0))
+    ack(mids(2))
+    // Acking an already acked message has no effect.
+    ack(mids(1))
+    client.close
+
+    connect("1.1")
+    subscribe
+    get(4)
+    get(5)
+  }
 
   test("ack:client-individual redelivers on client disconnect") {
     connect("1.1")
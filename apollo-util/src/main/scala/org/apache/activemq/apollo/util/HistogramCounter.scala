@@ -0,0 +1,68 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.util
+
+import java.util.concurrent.atomic.AtomicLongArray
+
+object Histogram {
+  final val BUCKETS = 64
+
+  /**
+   * @returns the bucket a value gets counted in.  Bucket 0 counts the 0
+   *          values and bucket i counts the values from 2^(i-1) to 2^i-1.
+   */
+  def bucket(value: Long) = BUCKETS - java.lang.Long.numberOfLeadingZeros(value)
+}
+
+/**
+ * A histogram which counts values into power of two sized buckets.
+ * The buckets are atomic so that the histogram can be read from
+ * another thread than the one counting the values.
+ */
+class HistogramCounter extends MetricProducer[Histogram] {
+  import Histogram._
+
+  private val buckets = new AtomicLongArray(BUCKETS + 1)
+
+  def apply(reset: Boolean):Histogram = {
+    val rc = new Array[Long](buckets.length)
+    for( i <- 0 until buckets.length ) {
+      rc(i) = if (reset) buckets.getAndSet(i, 0) else buckets.get(i)
+    }
+    Histogram(rc)
+  }
+
+  def clear() = {
+    for( i <- 0 until buckets.length ) {
+      buckets.set(i, 0)
+    }
+  }
+
+  /**
+   * Counts a value in the histogram.
+   */
+  def +=(value: Long): Unit = {
+    if (value > -1) {
+      buckets.incrementAndGet(bucket(value))
+    }
+  }
+
+}
+
+case class Histogram(buckets:Array[Long]) {
+  def count = buckets.sum
+}
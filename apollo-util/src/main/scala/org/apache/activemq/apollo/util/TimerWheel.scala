@@ -0,0 +1,188 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.util
+
+import list.{LinkedNode, LinkedNodeList}
+import collection.mutable.ListBuffer
+
+object TimerWheel {
+  final val SLOT_BITS = 8
+  final val SLOTS = 1 << SLOT_BITS
+  final val SLOT_MASK = SLOTS - 1
+  final val LEVELS = 4
+}
+
+/**
+ * <p>
+ * A hierarchical timing wheel.  Scheduling and canceling a timer are O(1)
+ * operations and advancing the wheel only costs in proportion to the number
+ * of timers which expire and the number of ticks advanced.
+ * </p>
+ * <p>
+ * Time is divided into ticks of the configured resolution.  The first level
+ * wheel holds the timers which expire within the next 256 ticks, and each
+ * following level covers a 256 times bigger time span.  Timers
+ * get cascaded down to the lower levels as time advances.  Timers
+ * are never fired early, but they may fire up to one tick late.
+ * </p>
+ * <p>
+ * This class is not thread safe.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class TimerWheel[T](val resolution:Long, start:Long) {
+  import TimerWheel._
+
+  class Timer(val value:T, val expiration:Long) extends LinkedNode[Timer] {
+    def is_scheduled = isLinked
+  }
+
+  private val levels = new Array[Array[LinkedNodeList[Timer]]](LEVELS)
+  private val ready = new LinkedNodeList[Timer]
+  private var current = start / resolution
+  private var _size = 0
+
+  /**
+   * @returns the number of scheduled timers.
+   */
+  def size = _size
+
+  /**
+   * Schedules a timer which expires at the given time.
+   */
+  def schedule(value:T, expiration:Long):Timer = {
+    val timer = new Timer(value, expiration)
+    link(timer)
+    _size += 1
+    timer
+  }
+
+  /**
+   * Cancels a previously scheduled timer.
+   */
+  def cancel(timer:TimerWheel[T]#Timer):Unit = {
+    if( timer.unlink() ) {
+      _size -= 1
+    }
+  }
+
+  /**
+   * Advances the wheel to the given time and passes all the timers which
+   * have expired to the function.  The expired timers are no longer
+   * scheduled by the time the function is called so it is free to
+   * schedule or cancel timers.
+   *
+   * @returns the number of timers which expired.
+   */
+  def advance(now:Long)(func: Timer=>Unit):Int = {
+    val target = now / resolution
+    val due = ListBuffer[Timer]()
+    drain(ready, due)
+    if( _size == 0 ) {
+      // Nothing left on the wheels, so just jump ahead.
+      current = current.max(target)
+    }
+    while( current < target ) {
+      current += 1
+
+      // Cascade the higher level slots we just moved into.
+      var level = 1
+      var ticks = current
+      while( level < LEVELS && (ticks & SLOT_MASK) == 0 ) {
+        ticks = ticks >>> SLOT_BITS
+        cascade(level, (ticks & SLOT_MASK).toInt)
+        level += 1
+      }
+
+      val slots = levels(0)
+      if( slots!=null ) {
+        val list = slots((current & SLOT_MASK).toInt)
+        if( list!=null ) {
+          drain(list, due)
+        }
+      }
+      drain(ready, due)
+    }
+    due.foreach(func)
+    due.size
+  }
+
+  private def tick(expiration:Long) = (expiration + resolution - 1) / resolution
+
+  private def link(timer:Timer):Unit = {
+    var ticks = tick(timer.expiration)
+    val delta = ticks - current
+    if( delta <= 0 ) {
+      ready.addLast(timer)
+    } else {
+      var level = 0
+      while( level < LEVELS-1 && delta >= (1L << (SLOT_BITS*(level+1))) ) {
+        level += 1
+      }
+      if( level == LEVELS-1 ) {
+        // clamp timers which are beyond the reach of the last level, they
+        // get re-linked when that slot is cascaded.
+        ticks = ticks.min(current + (1L << (SLOT_BITS*LEVELS)) - 1)
+      }
+      slot(level, ((ticks >>> (SLOT_BITS*level)) & SLOT_MASK).toInt).addLast(timer)
+    }
+  }
+
+  private def slot(level:Int, index:Int) = {
+    var slots = levels(level)
+    if( slots == null ) {
+      slots = new Array[LinkedNodeList[Timer]](SLOTS)
+      levels(level) = slots
+    }
+    var rc = slots(index)
+    if( rc == null ) {
+      rc = new LinkedNodeList[Timer]
+      slots(index) = rc
+    }
+    rc
+  }
+
+  private def cascade(level:Int, index:Int) = {
+    val slots = levels(level)
+    if( slots!=null ) {
+      val list = slots(index)
+      if( list!=null && !list.isEmpty ) {
+        slots(index) = null
+        var timer = list.getHead
+        while( timer!=null ) {
+          val next = timer.getNext
+          timer.unlink()
+          link(timer)
+          timer = next
+        }
+      }
+    }
+  }
+
+  private def drain(list:LinkedNodeList[Timer], due:ListBuffer[Timer]) = {
+    var timer = list.getHead
+    while( timer!=null ) {
+      val next = timer.getNext
+      timer.unlink()
+      _size -= 1
+      due += timer
+      timer = next
+    }
+  }
+
+}
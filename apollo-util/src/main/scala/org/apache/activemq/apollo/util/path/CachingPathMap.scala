@@ -0,0 +1,111 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.util.path
+
+import java.util.{Collections, LinkedHashMap, Map, Set}
+
+/**
+  * A PathMap which caches the values matching the literal paths it
+  * gets looked up with, so that repeated lookups don't have to walk the
+  * wildcard tree again.  The cache holds up to max_entries paths, evicting
+  * the least recently used ones.  The limit can be changed with resize.
+  *
+  * Adding or removing a value at a literal path only invalidates the
+  * cached lookup of that path, adding or removing a value at a wildcard
+  * path invalidates the whole cache.  The sets returned by get must not be
+  * modified.
+  *
+  * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+  */
+class CachingPathMap[Value](private var _max_entries: Int) extends PathMap[Value] {
+
+  private val cache = new LinkedHashMap[Path, Set[Value]](16, 0.75f, true) {
+    override def removeEldestEntry(eldest: Map.Entry[Path, Set[Value]]) = size() > _max_entries
+  }
+
+  def max_entries = _max_entries
+
+  def resize(max_entries: Int): Unit = cache.synchronized {
+    _max_entries = max_entries
+    val i = cache.keySet().iterator()
+    while (cache.size() > max_entries && i.hasNext) {
+      i.next()
+      i.remove()
+    }
+  }
+
+  override def get(key: Path): Set[Value] = {
+    if (PathParser.containsWildCards(key)) {
+      return super.get(key)
+    }
+    cache.synchronized {
+      var rc = cache.get(key)
+      if (rc == null) {
+        rc = Collections.unmodifiableSet(super.get(key))
+        cache.put(key, rc)
+      }
+      rc
+    }
+  }
+
+  override def foreachMatch(key: Path)(visitor: Value => Unit): Unit = {
+    if (PathParser.containsWildCards(key)) {
+      super.foreachMatch(key)(visitor)
+    } else {
+      val i = get(key).iterator()
+      while (i.hasNext) {
+        visitor(i.next())
+      }
+    }
+  }
+
+  // The updates hold the cache lock so a concurrent get can't
+  // cache the values from before the update.
+
+  override def put(key: Path, value: Value): Unit = cache.synchronized {
+    super.put(key, value)
+    invalidate(key)
+  }
+
+  override def remove(path: Path, value: Value): Boolean = cache.synchronized {
+    val rc = super.remove(path, value)
+    if (rc) {
+      invalidate(path)
+    }
+    rc
+  }
+
+  override def removeAll(key: Path): Set[Value] = cache.synchronized {
+    val rc = super.removeAll(key)
+    if (!rc.isEmpty) {
+      invalidate(key)
+    }
+    rc
+  }
+
+  def invalidate(key: Path): Unit = cache.synchronized {
+    if (PathParser.containsWildCards(key)) {
+      cache.clear()
+    } else {
+      cache.remove(key)
+    }
+  }
+
+  def cache_size = cache.synchronized {
+    cache.size()
+  }
+}
@@ -18,8 +18,6 @@ package org.apache.activemq.apollo.util.path
 
 import java.util.HashSet
 import java.util.Set
-import java.util.SortedSet
-import java.util.TreeSet
 
 /**
   * A Map-like data structure allowing values to be indexed by
@@ -49,6 +47,18 @@ class PathMap[Value] {
     return findWildcardMatches(key)
   }
 
+  /**
+    * Passes the values matching the given path to the visitor without
+    * allocating a result set.  Unlike get, a value which matches through
+    * more than one entry of the map gets visited more than once.
+    *
+    * @param key the path to lookup
+    * @param visitor called with every matching value
+    */
+  def foreachMatch(key: Path)(visitor: Value => Unit): Unit = {
+    root.visitMatchingValues(key.parts, visitor)
+  }
+
   def put(key: Path, value: Value): Unit = {
     root.add(key, 0, value)
   }
@@ -64,7 +74,7 @@ class PathMap[Value] {
 
   protected def findWildcardMatches(path: Path): Set[Value] = {
     var answer: HashSet[Value] = new HashSet[Value]
-    root.appendMatchingValues(answer, path, 0)
+    root.visitMatchingValues(path.parts, answer.add(_))
     return answer
   }
 
@@ -87,16 +97,15 @@ class PathMap[Value] {
     * @return the largest matching value or null if no value matches
     */
   def chooseValue(path: Path): Value = {
-    var set: Set[Value] = get(path)
-    if ((set == null) || set.isEmpty) {
-      return null.asInstanceOf[Value]
+    var rc: Value = null.asInstanceOf[Value]
+    foreachMatch(path) { value =>
+      if (rc == null) {
+        rc = value
+      } else if (rc.isInstanceOf[java.lang.Comparable[_]] && rc.asInstanceOf[java.lang.Comparable[Value]].compareTo(value) < 0) {
+        rc = value
+      }
     }
-    var first: Value = set.iterator().next()
-    if( set.size()==1 || !first.isInstanceOf[java.lang.Comparable[_]]) {
-      return first;
-    }
-    var sortedSet: SortedSet[Value] = new TreeSet[Value](set)
-    return sortedSet.last
+    return rc
   }
 
   private final val root = new PathMapNode[Value](null)
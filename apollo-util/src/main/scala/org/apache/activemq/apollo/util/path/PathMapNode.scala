@@ -18,25 +18,46 @@ package org.apache.activemq.apollo.util.path
 
 import java.util.ArrayList
 import java.util.Collection
+import java.util.Collections
 import java.util.HashMap
 import java.util.HashSet
 import java.util.List
-import java.util.Map
 import java.util.Set
 import collection.JavaConversions._
 
+object PathMapNode {
+  // nodes with more literal children than this index them in a hash map.
+  val MAX_ARRAY_CHILDREN = 8
+}
+
 /**
   * An implementation class used to implement {@link PathMap}
   *
+  * The nodes form a trie.  Literal children are keyed by the interned
+  * {@link PathSegment} of their name and kept in a small array which is
+  * scanned comparing the segments by reference, until there are more than
+  * MAX_ARRAY_CHILDREN of them and they get indexed in a hash map instead.
+  * Wildcard children are rare so they are kept in an array of their own.
+  * The child tables and the value list only get allocated when needed.
+  *
   * @version $Revision: 1.2 $
   */
 class PathMapNode[Value](val parent: PathMapNode[Value]) extends PathNode[Value] {
+  import PathMapNode._
 
-  val childNodes: Map[Part, PathNode[Value]] = new HashMap[Part, PathNode[Value]]
-  val values: List[Value] = new ArrayList[Value]
+  private[path] val segments: PathSegments = if (parent == null) new PathSegments else parent.segments
+
+  // the part of a wildcard node, literal nodes only hold their segment.
   var part: Part = RootPart
+  var segment: PathSegment = null
+
+  private var literal_children: Array[AnyRef] = null
+  private var literal_count = 0
+  private var literal_index: HashMap[PathSegment, PathMapNode[Value]] = null
+  private var wildcard_children: Array[AnyRef] = null
+  private var values: ArrayList[Value] = null
 
-  var pathLength:Int = if (parent == null) {
+  def pathLength: Int = if (parent == null) {
     0
   } else {
     parent.pathLength + 1
@@ -47,18 +68,32 @@ class PathMapNode[Value](val parent: PathMapNode[Value]) extends PathNode[Value]
     * exist
     */
   def getChild(part: Part): PathMapNode[Value] = {
-    return childNodes.get(part).asInstanceOf[PathMapNode[Value]]
+    part match {
+      case LiteralPart(value) =>
+        val segment = segments.get(value)
+        if (segment == null) {
+          null
+        } else {
+          literalChild(segment)
+        }
+      case _ =>
+        wildcardChild(part)
+    }
   }
 
   /**
     * Returns the child nodes
     */
   def getChildren: Collection[PathNode[Value]] = {
-    return childNodes.values
+    val answer = new ArrayList[PathNode[Value]](getChildCount)
+    foreachChild(answer.add(_))
+    return answer
   }
 
   def getChildCount: Int = {
-    return childNodes.size
+    val literals = if (literal_index != null) literal_index.size else literal_count
+    val wildcards = if (wildcard_children != null) wildcard_children.length else 0
+    return literals + wildcards
   }
 
   /**
@@ -66,28 +101,162 @@ class PathMapNode[Value](val parent: PathMapNode[Value]) extends PathNode[Value]
     * it does not yet exist
     */
   def getChildOrCreate(part: Part): PathMapNode[Value] = {
-    var answer: PathMapNode[Value] = childNodes.get(part).asInstanceOf[PathMapNode[Value]]
+    var answer: PathMapNode[Value] = getChild(part)
     if (answer == null) {
       answer = createChildNode
-      answer.part = part
-      childNodes.put(part, answer)
+      part match {
+        case LiteralPart(value) =>
+          answer.segment = segments.intern(value)
+          addLiteralChild(answer)
+        case _ =>
+          answer.part = part
+          addWildcardChild(answer)
+      }
     }
     return answer
   }
 
+  private def literalChild(segment: PathSegment): PathMapNode[Value] = {
+    if (literal_index != null) {
+      return literal_index.get(segment)
+    }
+    var i = 0
+    while (i < literal_count) {
+      val child = literal_children(i).asInstanceOf[PathMapNode[Value]]
+      if (child.segment eq segment) {
+        return child
+      }
+      i += 1
+    }
+    return null
+  }
+
+  private def wildcardChild(part: Part): PathMapNode[Value] = {
+    if (wildcard_children != null) {
+      var i = 0
+      while (i < wildcard_children.length) {
+        val child = wildcard_children(i).asInstanceOf[PathMapNode[Value]]
+        if (child.part == part) {
+          return child
+        }
+        i += 1
+      }
+    }
+    return null
+  }
+
+  private def addLiteralChild(child: PathMapNode[Value]): Unit = {
+    if (literal_index != null) {
+      literal_index.put(child.segment, child)
+    } else if (literal_count < MAX_ARRAY_CHILDREN) {
+      if (literal_children == null) {
+        literal_children = new Array[AnyRef](2)
+      } else if (literal_count == literal_children.length) {
+        val grown = new Array[AnyRef](literal_count * 2)
+        System.arraycopy(literal_children, 0, grown, 0, literal_count)
+        literal_children = grown
+      }
+      literal_children(literal_count) = child
+      literal_count += 1
+    } else {
+      literal_index = new HashMap[PathSegment, PathMapNode[Value]]
+      var i = 0
+      while (i < literal_count) {
+        val node = literal_children(i).asInstanceOf[PathMapNode[Value]]
+        literal_index.put(node.segment, node)
+        i += 1
+      }
+      literal_index.put(child.segment, child)
+      literal_children = null
+      literal_count = 0
+    }
+  }
+
+  private def removeLiteralChild(child: PathMapNode[Value]): Boolean = {
+    if (literal_index != null) {
+      if (literal_index.get(child.segment) ne child) {
+        return false
+      }
+      literal_index.remove(child.segment)
+      if (literal_index.isEmpty) {
+        literal_index = null
+      }
+      return true
+    }
+    var i = 0
+    while (i < literal_count) {
+      if (literal_children(i) eq child) {
+        System.arraycopy(literal_children, i + 1, literal_children, i, literal_count - i - 1)
+        literal_count -= 1
+        literal_children(literal_count) = null
+        if (literal_count == 0) {
+          literal_children = null
+        }
+        return true
+      }
+      i += 1
+    }
+    return false
+  }
+
+  private def addWildcardChild(child: PathMapNode[Value]): Unit = {
+    if (wildcard_children == null) {
+      wildcard_children = Array[AnyRef](child)
+    } else {
+      wildcard_children = wildcard_children :+ child
+    }
+  }
+
+  private def removeWildcardChild(child: PathMapNode[Value]): Boolean = {
+    if (wildcard_children == null || !wildcard_children.exists(_ eq child)) {
+      return false
+    }
+    wildcard_children = wildcard_children.filterNot(_ eq child)
+    if (wildcard_children.isEmpty) {
+      wildcard_children = null
+    }
+    return true
+  }
+
+  private def foreachChild(func: PathMapNode[Value] => Unit): Unit = {
+    foreachLiteralChild(func)
+    if (wildcard_children != null) {
+      var i = 0
+      while (i < wildcard_children.length) {
+        func(wildcard_children(i).asInstanceOf[PathMapNode[Value]])
+        i += 1
+      }
+    }
+  }
+
+  private def foreachLiteralChild(func: PathMapNode[Value] => Unit): Unit = {
+    if (literal_index != null) {
+      val i = literal_index.values().iterator()
+      while (i.hasNext) {
+        func(i.next())
+      }
+    } else {
+      var i = 0
+      while (i < literal_count) {
+        func(literal_children(i).asInstanceOf[PathMapNode[Value]])
+        i += 1
+      }
+    }
+  }
+
   /**
-    * Returns a mutable List of the values available at this node in the tree
+    * Returns the values available at this node in the tree
     */
   def getValues: List[Value] = {
-    return values
+    return if (values == null) Collections.emptyList[Value] else values
   }
 
   /**
     * Returns a mutable List of the values available at this node in the tree
     */
   def removeValues: List[Value] = {
-    var v: ArrayList[Value] = new ArrayList[Value](values)
-    values.clear
+    var v: List[Value] = if (values == null) new ArrayList[Value] else values
+    values = null
     pruneIfEmpty
     return v
   }
@@ -112,22 +281,37 @@ class PathMapNode[Value](val parent: PathMapNode[Value]) extends PathNode[Value]
   }
 
   def add(path: Path, idx: Int, value: Value): Unit = {
-    if (idx >= path.parts.size) {
-      values.add(value)
+    var node: PathMapNode[Value] = this
+    var remaining = path.parts.drop(idx)
+    while (!remaining.isEmpty) {
+      node = node.getChildOrCreate(remaining.head)
+      remaining = remaining.tail
     }
-    else {
-      getChildOrCreate(path.parts.get(idx)).add(path, idx + 1, value)
+    if (node.values == null) {
+      node.values = new ArrayList[Value](1)
     }
+    node.values.add(value)
   }
 
   def remove(path: Path, idx: Int, value: Value): Boolean = {
-    if (idx >= path.parts.size) {
-      var rc = values.remove(value)
-      pruneIfEmpty
-      return rc
-    } else {
-      return getChildOrCreate(path.parts.get(idx)).remove(path, idx+1, value)
+    var node: PathMapNode[Value] = this
+    var remaining = path.parts.drop(idx)
+    while (!remaining.isEmpty) {
+      node = node.getChild(remaining.head)
+      if (node == null) {
+        return false
+      }
+      remaining = remaining.tail
+    }
+    if (node.values == null) {
+      return false
     }
+    var rc = node.values.remove(value)
+    if (node.values.isEmpty) {
+      node.values = null
+    }
+    node.pruneIfEmpty
+    return rc
   }
 
   def removeAll(answer: Set[Value], path: Path, startIndex: Int): Unit = {
@@ -160,10 +344,7 @@ class PathMapNode[Value](val parent: PathMapNode[Value]) extends PathNode[Value]
   }
 
   def appendDescendantValues(answer: Set[Value]): Unit = {
-    answer.addAll(values)
-    for (child <- childNodes.values) {
-      child.appendDescendantValues(answer)
-    }
+    visitDescendantValues(answer.add(_))
   }
 
   /**
@@ -177,72 +358,108 @@ class PathMapNode[Value](val parent: PathMapNode[Value]) extends PathNode[Value]
     * Matches any entries in the map containing wildcards
     */
   def appendMatchingWildcards(answer: Set[Value], parts: Path, idx: Int): Unit = {
-    if (idx - 1 > pathLength) {
-      return
-    }
+    visitMatchingWildcards(parts.parts.drop(idx), answer.add(_))
+  }
+
+  def appendMatchingValues(answer: Set[Value], path: Path, startIndex: Int): Unit = {
+    visitMatchingValues(path.parts.drop(startIndex), answer.add(_))
+  }
 
-    childNodes.foreach { case (path,node) =>
-      path match {
-        case AnyChildPart => node.appendMatchingValues(answer, parts, idx + 1)
-        case x:RegexChildPart => node.appendMatchingValues(answer, parts, idx + 1)
-        case AnyDescendantPart => answer.addAll(node.getDesendentValues)
-        case x:LiteralPart =>
-        case RootPart =>
+  /**
+    * Passes the values matching the remaining parts of a path to the visitor
+    * without collecting them first.  A value gets visited once for every
+    * matching entry, so it can be visited more than once if it was stored
+    * at several paths matching the parts, or if the parts hold wildcards
+    * which reach the same entry in more than one way.
+    */
+  def visitMatchingValues(parts: scala.List[Part], visitor: Value => Unit): Unit = {
+    if (parts.isEmpty) {
+      visitValues(visitor)
+      val any = wildcardChild(AnyDescendantPart)
+      if (any != null) {
+        any.visitValues(visitor)
       }
+      return
+    }
+    val remaining = parts.tail
+    parts.head match {
+      case AnyDescendantPart =>
+        visitDescendantValues(visitor)
+      case AnyChildPart =>
+        visitMatchingWildcards(parts, visitor)
+        foreachChild(_.visitMatchingValues(remaining, visitor))
+      case RegexChildPart(regex) =>
+        visitMatchingWildcards(parts, visitor)
+        foreachLiteralChild { child =>
+          if (regex.matcher(child.segment.value).matches()) {
+            child.visitMatchingValues(remaining, visitor)
+          }
+        }
+      case LiteralPart(value) =>
+        visitMatchingWildcards(parts, visitor)
+        val segment = segments.get(value)
+        if (segment != null) {
+          val child = literalChild(segment)
+          if (child != null) {
+            child.visitMatchingValues(remaining, visitor)
+          }
+        }
+      case RootPart =>
     }
   }
 
-  def appendMatchingValues(answer: Set[Value], path: Path, startIndex: Int): Unit = {
-    var node: PathNode[Value] = this
-    var couldMatchAny: Boolean = true
-    var size: Int = path.parts.size;
-    var i: Int = startIndex
-    while (i < size && node != null) {
-      var part: Part = path.parts.get(i)
-      part match {
-        case AnyDescendantPart =>
-          answer.addAll(node.getDesendentValues)
-          i += size
-          couldMatchAny = false
-        case AnyChildPart =>
-          node.appendMatchingWildcards(answer, path, i)
-          i += 1
-          node = new AnyChildPathNode[Value](node)
-        case RegexChildPart(r) =>
-          node.appendMatchingWildcards(answer, path, i)
-          i += 1
-          node = new RegexChildPathNode[Value](node, r)
-        case x:LiteralPart =>
-          node.appendMatchingWildcards(answer, path, i)
-          i += 1;
-          node = node.getChild(part)
-        case RootPart =>
+  /**
+    * Passes the values of the wildcard children matching the
+    * remaining parts of a path to the visitor.
+    */
+  def visitMatchingWildcards(parts: scala.List[Part], visitor: Value => Unit): Unit = {
+    if (wildcard_children != null) {
+      var i = 0
+      while (i < wildcard_children.length) {
+        val child = wildcard_children(i).asInstanceOf[PathMapNode[Value]]
+        child.part match {
+          case AnyDescendantPart => child.visitDescendantValues(visitor)
+          case _ => child.visitMatchingValues(parts.tail, visitor)
+        }
+        i += 1
       }
     }
-    if (node != null) {
-      answer.addAll(node.getValues)
-      if (couldMatchAny) {
-        var child: PathNode[Value] = node.getChild(AnyDescendantPart)
-        if (child != null) {
-          answer.addAll(child.getValues)
-        }
+  }
+
+  def visitDescendantValues(visitor: Value => Unit): Unit = {
+    visitValues(visitor)
+    foreachChild(_.visitDescendantValues(visitor))
+  }
+
+  private def visitValues(visitor: Value => Unit): Unit = {
+    if (values != null) {
+      var i = 0
+      while (i < values.size) {
+        visitor(values.get(i))
+        i += 1
       }
     }
   }
 
   def getPart: Part = {
-    return part
+    return if (segment != null) LiteralPart(segment.value) else part
   }
 
   protected def pruneIfEmpty: Unit = {
-    if (parent != null && childNodes.isEmpty && values.isEmpty) {
+    if (parent != null && getChildCount == 0 && (values == null || values.isEmpty)) {
       parent.removeChild(this)
     }
   }
 
   protected def removeChild(node: PathMapNode[Value]): Unit = {
-    childNodes.remove(node.getPart)
+    if (node.segment != null) {
+      if (removeLiteralChild(node)) {
+        segments.release(node.segment)
+      }
+    } else {
+      removeWildcardChild(node)
+    }
     pruneIfEmpty
   }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,72 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.util.path
+
+import java.util.HashMap
+
+/**
+  * An interned literal path segment.  Each distinct segment name used
+  * in a {@link PathMap} is represented by a single PathSegment, so the
+  * trie nodes can compare segments by reference and hash them by their id.
+  *
+  * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+  */
+final class PathSegment(val value: String, val id: Int) {
+  // the number of trie nodes using the segment.
+  private[path] var refs = 0
+
+  override def hashCode = id
+  override def toString = value
+}
+
+/**
+  * Interns the literal segments of the paths stored in a {@link PathMap}.
+  * A segment is dropped once no node of the map uses it anymore, so looking
+  * up a path with segments the map does not hold fails fast.
+  *
+  * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+  */
+class PathSegments {
+
+  private val segments = new HashMap[String, PathSegment]
+  private var next_id = 0
+
+  /**
+    * Returns the interned segment or null if no node uses the segment.
+    */
+  def get(value: String): PathSegment = segments.get(value)
+
+  def intern(value: String): PathSegment = {
+    var rc = segments.get(value)
+    if (rc == null) {
+      rc = new PathSegment(value, next_id)
+      next_id += 1
+      segments.put(value, rc)
+    }
+    rc.refs += 1
+    rc
+  }
+
+  def release(segment: PathSegment): Unit = {
+    segment.refs -= 1
+    if (segment.refs == 0) {
+      segments.remove(segment.value)
+    }
+  }
+
+  def size = segments.size
+}
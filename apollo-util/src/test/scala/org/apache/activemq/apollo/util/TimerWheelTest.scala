@@ -0,0 +1,71 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.util
+
+import org.scalatest.matchers.ShouldMatchers
+import collection.mutable.ListBuffer
+
+class TimerWheelTest extends FunSuiteSupport with ShouldMatchers {
+
+  def fired(wheel:TimerWheel[String], now:Long) = {
+    val rc = ListBuffer[String]()
+    wheel.advance(now) { timer => rc += timer.value }
+    rc.toList
+  }
+
+  test("timers fire once they expire") {
+    val wheel = new TimerWheel[String](10, 0)
+    wheel.schedule("a", 25)
+    wheel.schedule("b", 100)
+    wheel.schedule("c", 5000)
+    wheel.schedule("d", 10000000)
+    wheel.size should be (4)
+
+    fired(wheel, 20) should be (Nil)
+    fired(wheel, 30) should be (List("a"))
+    fired(wheel, 99) should be (Nil)
+    fired(wheel, 100) should be (List("b"))
+    fired(wheel, 4990) should be (Nil)
+    fired(wheel, 5000) should be (List("c"))
+    fired(wheel, 9999990) should be (Nil)
+    fired(wheel, 10000000) should be (List("d"))
+    wheel.size should be (0)
+  }
+
+  test("timers which are already expired fire on the next advance") {
+    val wheel = new TimerWheel[String](10, 1000)
+    wheel.schedule("a", 10)
+    fired(wheel, 1000) should be (List("a"))
+  }
+
+  test("canceled timers do not fire") {
+    val wheel = new TimerWheel[String](10, 0)
+    val a = wheel.schedule("a", 50)
+    wheel.schedule("b", 5000)
+    wheel.cancel(a)
+    wheel.size should be (1)
+    fired(wheel, 6000) should be (List("b"))
+  }
+
+  test("idle wheel jumps ahead") {
+    val wheel = new TimerWheel[String](1, 0)
+    fired(wheel, Long.MaxValue/2) should be (Nil)
+    wheel.schedule("a", Long.MaxValue/2 + 3)
+    fired(wheel, Long.MaxValue/2 + 3) should be (List("a"))
+  }
+
+}
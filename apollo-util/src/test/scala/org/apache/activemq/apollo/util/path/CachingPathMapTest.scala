@@ -0,0 +1,52 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.util.path
+
+import org.junit.Test
+import org.junit.Assert._
+
+/**
+  * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+  */
+class CachingPathMapTest {
+
+  private[path] var parser: PathParser = new PathParser
+
+  @Test def testUpdatesInvalidateTheCache: Unit = {
+    val map = new CachingPathMap[String](10)
+    val path = parser.decode_path("devices.a.b")
+    assertTrue(map.get(path).isEmpty)
+
+    map.put(parser.decode_path("devices.**"), "wildcard")
+    assertEquals(1, map.get(path).size())
+
+    map.put(path, "literal")
+    assertEquals(2, map.get(path).size())
+
+    map.remove(parser.decode_path("devices.**"), "wildcard")
+    assertEquals(1, map.get(path).size())
+
+    // The cache only holds up to 10 paths.
+    (0 until 20).foreach(i => map.get(parser.decode_path("devices." + i)))
+    assertEquals(10, map.cache_size)
+
+    map.resize(5)
+    assertEquals(5, map.cache_size)
+    (0 until 20).foreach(i => map.get(parser.decode_path("devices." + i)))
+    assertEquals(5, map.cache_size)
+  }
+}
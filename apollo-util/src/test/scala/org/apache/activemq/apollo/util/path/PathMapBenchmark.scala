@@ -0,0 +1,86 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.util.path
+
+/**
+ * <p>
+ * Measures how many lookups per second a path map does when it holds a
+ * few hundred wildcard subscriptions and gets looked up with a large
+ * number of distinct paths, like devices publishing to their own topics.
+ * Run it with:
+ * </p>
+ * <pre>
+ * mvn test-compile exec:java -Dexec.mainClass=org.apache.activemq.apollo.util.path.PathMapBenchmark -Dexec.classpathScope=test
+ * </pre>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+object PathMapBenchmark {
+
+  val SUBSCRIPTIONS = 300
+  val DEVICES = 20000
+  val LOOKUPS = 200000
+
+  val parser = new PathParser
+
+  def main(args: Array[String]): Unit = {
+    val paths = (0 until DEVICES).map(device_path(_)).toArray
+
+    val plain = new PathMap[String]
+    populate(plain)
+    val cached = new CachingPathMap[String](DEVICES)
+    populate(cached)
+
+    // warm up the JIT and the cache.
+    benchmark("warm up", plain, paths)
+    benchmark("warm up", cached, paths)
+
+    val expected = benchmark("PathMap", plain, paths)
+    val actual = benchmark("CachingPathMap", cached, paths)
+    if (expected != actual) {
+      println("The maps found a different number of matches: %d != %d".format(expected, actual))
+    }
+  }
+
+  def populate(map: PathMap[String]) = {
+    var i = 0
+    while (i < SUBSCRIPTIONS) {
+      val pattern = (i % 3) match {
+        case 0 => "devices.region-" + i + ".**"
+        case 1 => "devices.*.sensor-" + i
+        case 2 => "devices.region-" + (i % 10) + ".*"
+      }
+      map.put(parser.decode_path(pattern), "sub-" + i)
+      i += 1
+    }
+  }
+
+  def device_path(i: Int) = parser.decode_path("devices.region-" + (i % 10) + ".sensor-" + (i % SUBSCRIPTIONS) + "-" + i)
+
+  def benchmark(name: String, map: PathMap[String], paths: Array[Path]) = {
+    var matches = 0L
+    val start = System.nanoTime()
+    var i = 0
+    while (i < LOOKUPS) {
+      matches += map.get(paths(i % paths.length)).size()
+      i += 1
+    }
+    val duration = System.nanoTime() - start
+    println("%s: %,.0f lookups/second".format(name, LOOKUPS * 1000000000.0 / duration))
+    matches
+  }
+}
@@ -82,5 +82,28 @@ class PathMapMemoryTest {
     }
   }
 
+  @Test def testSegmentsAreInterned: Unit = {
+    var map: PathMap[String] = new PathMap[String]
+    var count: Int = 100
+    var i: Int = 0
+    while (i < count) {
+      map.put(createDestination("region-" + (i % 10) + ".sensor-" + (i / 10 % 5)), "value-" + i)
+      i += 1
+    }
+    // the root is large enough to index its children, its children aren't.
+    assertEquals(10, map.getRootNode.getChildCount)
+    assertEquals(15, map.getRootNode.segments.size)
+    assertEquals(2, map.get(createDestination("region-3.sensor-3")).size)
+    assertEquals(20, map.get(createDestination("*.sensor-3")).size)
+
+    i = 0
+    while (i < count) {
+      map.remove(createDestination("region-" + (i % 10) + ".sensor-" + (i / 10 % 5)), "value-" + i)
+      i += 1
+    }
+    assertEquals(0, map.getRootNode.getChildCount)
+    assertEquals(0, map.getRootNode.segments.size)
+  }
+
   private[path] var parser: PathParser = new PathParser
 }
\ No newline at end of file
@@ -251,6 +251,18 @@ class PathMapTest {
     assertMapValue(map, "FOO.**", v2)
   }
 
+  @Test def testForeachMatch: Unit = {
+    var map: PathMap[String] = new PathMap[String]
+    loadSample2(map)
+    var visited = List[String]()
+    map.foreachMatch(createDestination("TEST.FOO")) { value =>
+      visited ::= value
+    }
+    assertEquals(List(v1, v2, v3, v4), visited.sortWith( _ < _))
+    assertEquals(v4, map.chooseValue(createDestination("TEST.FOO")))
+    assertNull(map.chooseValue(createDestination("OTHER.FOO")))
+  }
+
   protected def loadSample2(map: PathMap[String]): Unit = {
     put(map, "TEST.FOO", v1)
     put(map, "TEST.*", v2)
@@ -434,6 +434,30 @@ case class BrokerResource() extends Resource {
     }
   }
 
+  @POST @Path("virtual-hosts/{id}/store/action/backup")
+  def post_store_backup(@PathParam("id") id : String, @FormParam("directory") directory:String):Unit = {
+    if( directory==null ) {
+      result(BAD_REQUEST, "The directory to back up the store into was not specified.")
+    }
+    unwrap_future_result[Unit] {
+      with_virtual_host(id) { host =>
+        admining(host) {
+          if(host.store!=null) {
+            val rc = FutureResult[Unit]()
+            host.store.backup(new java.io.File(directory), {
+              case None => rc(Success(()))
+              case Some(error) => rc(Failure(create_result(INTERNAL_SERVER_ERROR, error)))
+            })
+            rc
+          } else {
+            result(NOT_FOUND)
+          }
+        }
+      }
+    }
+    result(strip_resolve(".."))
+  }
+
   class JosqlHelper {
 
     def get(o:AnyRef, name:String):AnyRef = {